@@ -0,0 +1,233 @@
+package com.example.android.AFSample;
+
+/**
+ * Sits between the UI and the capture session and coalesces AF commands (regions, AF mode and
+ * AF trigger) so the repeating request is rebuilt at most once per frame interval.
+ * <p>
+ * Commands may be requested from any thread. Pending commands are merged latest-wins: newer regions
+ * or a newer AF mode supersede the pending ones, and a newer AF trigger the pending one, except
+ * that an IDLE never replaces a pending START. With nothing pending, a command that wouldn't change
+ * the submitted request is dropped: regions in the submitted metering cell and AF mode without a
+ * START, or the submitted AF mode without a trigger. Submissions run on the thread behind the
+ * {@link Dispatcher}, which for {@link CameraFragment} is the camera handler. A command stays
+ * pending until it has been submitted: if there is no session or the submission fails, it is
+ * applied by the next flush, at the latest once {@link #reset} is called for a new session.
+ *
+ * @param <R> The type of the metering regions handed to the {@link Target}
+ */
+class AfCommandScheduler<R> {
+
+    /**
+     * Value for {@code afMode} and {@code afTrigger} meaning "leave as it is".
+     */
+    static final int UNCHANGED = -1;
+
+    /**
+     * Value of {@code CaptureRequest.CONTROL_AF_TRIGGER_START}.
+     */
+    static final int AF_TRIGGER_START = 1;
+
+    private static final long DEFAULT_FRAME_INTERVAL_MILLIS = 33;
+
+    /**
+     * Runs the flush on the camera thread.
+     */
+    interface Dispatcher {
+        void dispatch(Runnable runnable, long delayMillis);
+
+        long uptimeMillis();
+    }
+
+    /**
+     * Applies a coalesced command to the capture session.
+     */
+    interface Target<R> {
+        /**
+         * @param regions   The new AF regions, or null to keep the current ones
+         * @param afMode    The new AF mode, or {@link #UNCHANGED}
+         * @param afTrigger The AF trigger to send once, in a single capture ahead of the repeating
+         *                  request, or {@link #UNCHANGED}. The repeating request never carries a
+         *                  trigger, so it isn't sent again on every frame.
+         * @return true if the request was submitted
+         */
+        boolean submit(R regions, int afMode, int afTrigger);
+    }
+
+    private final Dispatcher mDispatcher;
+    private final Target<R> mTarget;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Pending command, guarded by this.
+    private boolean mHasPending;
+    private boolean mFlushScheduled;
+    private R mPendingRegions;
+    private int mPendingCell = -1;
+    private int mPendingMode = UNCHANGED;
+    private int mPendingTrigger = UNCHANGED;
+
+    // Version of the pending command and the version each of its fields was last set in, so a flush
+    // only clears what it submitted. Guarded by this.
+    private long mPendingVersion;
+    private long mRegionsVersion;
+    private long mModeVersion;
+    private long mTriggerVersion;
+
+    // State of the request last submitted, guarded by this.
+    private int mCurrentCell = -1;
+    private int mCurrentMode = UNCHANGED;
+    private long mLastSubmitMillis = Long.MIN_VALUE / 2;
+    private long mFrameIntervalMillis = DEFAULT_FRAME_INTERVAL_MILLIS;
+
+    private volatile long mRequestedCount;
+    private volatile long mSubmittedCount;
+    private volatile long mCoalescedCount;
+
+    AfCommandScheduler(Dispatcher dispatcher, Target<R> target) {
+        mDispatcher = dispatcher;
+        mTarget = target;
+    }
+
+    /**
+     * Requests new AF regions, optionally together with an AF mode and trigger.
+     *
+     * @param cell    The quantized metering cell of {@code regions}, used to de-duplicate taps
+     * @param regions The AF regions
+     */
+    synchronized void requestRegions(int cell, R regions, int afMode, int afTrigger) {
+        mRequestedCount++;
+        if (mHasPending) {
+            // Whatever was pending is superseded or merged into this command.
+            mCoalescedCount++;
+        } else if (cell == mCurrentCell && isCurrentMode(afMode) && afTrigger != AF_TRIGGER_START) {
+            // Nothing would change in the repeating request.
+            mCoalescedCount++;
+            return;
+        }
+        mPendingVersion++;
+        mPendingCell = cell;
+        mPendingRegions = regions;
+        mRegionsVersion = mPendingVersion;
+        setPendingMode(afMode, afTrigger);
+        schedule();
+    }
+
+    /**
+     * Requests a new AF mode, optionally together with an AF trigger.
+     */
+    synchronized void requestMode(int afMode, int afTrigger) {
+        mRequestedCount++;
+        if (mHasPending) {
+            mCoalescedCount++;
+        } else if (isCurrentMode(afMode) && afTrigger == UNCHANGED) {
+            mCoalescedCount++;
+            return;
+        }
+        mPendingVersion++;
+        setPendingMode(afMode, afTrigger);
+        schedule();
+    }
+
+    /**
+     * Forgets the submitted state, e.g. after a new capture session has been configured with
+     * {@code afMode}. Pending commands are kept and will be applied to the new session.
+     */
+    synchronized void reset(int afMode) {
+        mCurrentCell = -1;
+        mCurrentMode = afMode;
+        mLastSubmitMillis = Long.MIN_VALUE / 2;
+        if (mHasPending && !mFlushScheduled) schedule();
+    }
+
+    /**
+     * Sets the minimum time between two submissions, normally the current frame duration.
+     */
+    synchronized void setFrameIntervalMillis(long frameIntervalMillis) {
+        mFrameIntervalMillis = Math.max(0, frameIntervalMillis);
+    }
+
+    long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    long getSubmittedCount() {
+        return mSubmittedCount;
+    }
+
+    long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "AfCommandScheduler{requested=" + mRequestedCount + ", submitted=" + mSubmittedCount
+                + ", coalesced=" + mCoalescedCount + "}";
+    }
+
+    private boolean isCurrentMode(int afMode) {
+        return afMode == UNCHANGED || afMode == mCurrentMode;
+    }
+
+    private void setPendingMode(int afMode, int afTrigger) {
+        if (afMode != UNCHANGED) {
+            mPendingMode = afMode;
+            mModeVersion = mPendingVersion;
+        }
+        // An IDLE never replaces a START still to be sent, or the tap that asked for it would
+        // never get a focus scan.
+        if (afTrigger != UNCHANGED
+                && !(afTrigger == AfController.AF_TRIGGER_IDLE && mPendingTrigger == AF_TRIGGER_START)) {
+            mPendingTrigger = afTrigger;
+            mTriggerVersion = mPendingVersion;
+        }
+    }
+
+    private void schedule() {
+        mHasPending = true;
+        if (mFlushScheduled) return;
+        mFlushScheduled = true;
+        long delay = mLastSubmitMillis + mFrameIntervalMillis - mDispatcher.uptimeMillis();
+        mDispatcher.dispatch(mFlushRunnable, Math.max(0, delay));
+    }
+
+    private void flush() {
+        R regions;
+        int cell, afMode, afTrigger;
+        long version;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (!mHasPending) return;
+            regions = mPendingRegions;
+            cell = mPendingCell;
+            afMode = mPendingMode;
+            afTrigger = mPendingTrigger;
+            version = mPendingVersion;
+        }
+
+        // The command stays pending if this fails or throws.
+        boolean submitted = mTarget.submit(regions, afMode, afTrigger);
+
+        synchronized (this) {
+            if (!submitted) return;
+            mSubmittedCount++;
+            mLastSubmitMillis = mDispatcher.uptimeMillis();
+            if (regions != null) mCurrentCell = cell;
+            if (afMode != UNCHANGED) mCurrentMode = afMode;
+            // Fields set again while submitting stay pending for the next flush.
+            if (mRegionsVersion <= version) {
+                mPendingRegions = null;
+                mPendingCell = -1;
+            }
+            if (mModeVersion <= version) mPendingMode = UNCHANGED;
+            if (mTriggerVersion <= version) mPendingTrigger = UNCHANGED;
+            mHasPending = mPendingRegions != null || mPendingMode != UNCHANGED
+                    || mPendingTrigger != UNCHANGED;
+            if (mHasPending && !mFlushScheduled) schedule();
+        }
+    }
+}
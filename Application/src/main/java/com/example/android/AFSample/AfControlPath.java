@@ -0,0 +1,224 @@
+package com.example.android.AFSample;
+
+import java.util.Arrays;
+
+/**
+ * The tap-to-focus logic of {@link CameraFragment}: turns taps, AF mode switches and capture
+ * results into AF commands for the repeating request, through an {@link AfCommandScheduler}, and
+ * tracks the AF state with an {@link AfController}.
+ * <p>
+ * Everything that touches the camera is behind the {@link Host}, so the same logic runs against a
+ * real capture session in the app and against a stand-in in {@code AfReplay} in the benchmark module.
+ * <p>
+ * Taps, switches and {@link #configureMetering} come from the UI thread; capture results and
+ * {@link #onSessionConfigured} from the thread behind the scheduler's dispatcher.
+ *
+ * @param <R> The type of the metering regions, {@code MeteringRectangle[]} in the app
+ */
+class AfControlPath<R> {
+
+    /**
+     * Values of {@code CaptureRequest.CONTROL_AF_MODE_*}.
+     */
+    static final int AF_MODE_OFF = 0;
+    static final int AF_MODE_AUTO = 1;
+    static final int AF_MODE_CONTINUOUS_VIDEO = 3;
+
+    interface Host<R> {
+        /**
+         * Builds the metering regions for a rectangle of the sensor active array.
+         */
+        R createRegions(int left, int top, int right, int bottom);
+
+        /**
+         * Updates the repeating request and sends {@code afTrigger}, unless it's
+         * {@link AfCommandScheduler#UNCHANGED}, once in a capture built from the same fields, as
+         * {@link AfCommandScheduler.Target#submit}. The repeating request keeps the IDLE trigger.
+         *
+         * @return The first request submitted with the new fields, the trigger capture if there is
+         * one, or null if nothing could be submitted
+         */
+        Object submit(R regions, int afMode, int afTrigger);
+
+        /**
+         * Starts a software AF search of the regions just submitted.
+         *
+         * @param touchNanos When the region was tapped, as {@link #nanoTime()}
+         */
+        void startSoftwareFocus(long touchNanos);
+
+        void cancelSoftwareFocus();
+
+        /**
+         * Called on every {@link AfController} state change.
+         */
+        void onAfStateChanged(int state, long frameNumber);
+
+        /**
+         * The clock of the latency measurements, {@code System.nanoTime()} in the app.
+         */
+        long nanoTime();
+    }
+
+    private final Host<R> mHost;
+    private final AfCommandScheduler<R> mScheduler;
+    private final AfController mController;
+    private final FocusLatencyTracker mLatencyTracker = new FocusLatencyTracker();
+
+    private volatile boolean mContinuous;
+    private volatile boolean mSoftware;
+
+    // Only touched on the UI thread.
+    private final MeteringMapper mMeteringMapper = new MeteringMapper();
+    private final Object[] mRegionCache = new Object[MeteringMapper.CELL_COUNT];
+    private final int[] mRegion = new int[4];
+
+    AfControlPath(AfCommandScheduler.Dispatcher dispatcher, Host<R> host) {
+        mHost = host;
+        mScheduler = new AfCommandScheduler<R>(dispatcher, new AfCommandScheduler.Target<R>() {
+            @Override
+            public boolean submit(R regions, int afMode, int afTrigger) {
+                Object request = mHost.submit(regions, afMode, afTrigger);
+                if (request == null) return false;
+                if (regions != null) mLatencyTracker.onSubmitted(mHost.nanoTime(), request);
+                return true;
+            }
+        });
+        mController = new AfController(new AfController.Listener() {
+            @Override
+            public void onAfStateChanged(int state, long frameNumber) {
+                mHost.onAfStateChanged(state, frameNumber);
+            }
+        });
+    }
+
+    AfCommandScheduler<R> getScheduler() {
+        return mScheduler;
+    }
+
+    AfController getController() {
+        return mController;
+    }
+
+    FocusLatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    boolean isContinuous() {
+        return mContinuous;
+    }
+
+    boolean isSoftware() {
+        return mSoftware;
+    }
+
+    /**
+     * The AF mode selected by the switches.
+     */
+    int getAfMode() {
+        if (mSoftware) return AF_MODE_OFF;
+        return mContinuous ? AF_MODE_CONTINUOUS_VIDEO : AF_MODE_AUTO;
+    }
+
+    /**
+     * Recomputes the view-to-sensor transform, see {@link MeteringMapper#configure}.
+     */
+    void configureMetering(int displayRotation, int activeWidth, int activeHeight) {
+        if (mMeteringMapper.configure(displayRotation, activeWidth, activeHeight)) {
+            Arrays.fill(mRegionCache, null);
+        }
+    }
+
+    /**
+     * Selects continuous instead of single AF. Ignored by the request while software AF is on.
+     */
+    void setContinuous(boolean continuous) {
+        mContinuous = continuous;
+        if (mSoftware) {
+            // Applied when the software AF is turned off.
+        } else if (continuous) {
+            mScheduler.requestMode(AF_MODE_CONTINUOUS_VIDEO, AfController.AF_TRIGGER_CANCEL);
+        } else {
+            mScheduler.requestMode(AF_MODE_AUTO, AfCommandScheduler.UNCHANGED);
+        }
+    }
+
+    /**
+     * Switches between the HAL's AF and the software search.
+     */
+    void setSoftware(boolean software) {
+        mSoftware = software;
+        if (software) {
+            mScheduler.requestMode(AF_MODE_OFF, AfController.AF_TRIGGER_CANCEL);
+        } else {
+            mHost.cancelSoftwareFocus();
+            mScheduler.requestMode(getAfMode(), AfCommandScheduler.UNCHANGED);
+        }
+    }
+
+    /**
+     * Focuses on a tap on the preview.
+     *
+     * @return The metering cell of the tap, or {@link MeteringMapper#NO_CELL}
+     */
+    int onTap(float x, float y, int viewWidth, int viewHeight) {
+        int cell = mMeteringMapper.mapTap(x, y, viewWidth, viewHeight);
+        if (cell == MeteringMapper.NO_CELL) return cell;
+        long nowNanos = mHost.nanoTime();
+        if (mSoftware) {
+            mScheduler.requestRegions(cell, getRegions(cell), AF_MODE_OFF, AfCommandScheduler.UNCHANGED);
+            mHost.startSoftwareFocus(nowNanos);
+            return cell;
+        }
+        mLatencyTracker.onTouch(nowNanos, mContinuous
+                ? FocusLatencyTracker.MODE_CONTINUOUS : FocusLatencyTracker.MODE_AUTO);
+        // Continuous mode triggers the AF by itself when the regions change.
+        if (mContinuous) {
+            mScheduler.requestRegions(cell, getRegions(cell), AF_MODE_CONTINUOUS_VIDEO, AfController.AF_TRIGGER_CANCEL);
+        } else {
+            mScheduler.requestRegions(cell, getRegions(cell), AF_MODE_AUTO, AfController.AF_TRIGGER_START);
+        }
+        return cell;
+    }
+
+    /**
+     * Forgets the state of the previous session once a new one is configured.
+     *
+     * @param minFrameDurationNanos The minimum frame duration of the session's streams, or 0 if
+     *                              unknown; AF commands are submitted at most once per frame
+     * @return The AF mode the new session's request has to start with
+     */
+    int onSessionConfigured(long minFrameDurationNanos) {
+        int afMode = getAfMode();
+        if (minFrameDurationNanos > 0) mScheduler.setFrameIntervalMillis(minFrameDurationNanos / 1000000);
+        mScheduler.reset(afMode);
+        mController.reset();
+        return afMode;
+    }
+
+    /**
+     * Consumes the AF fields of a capture result. Missing keys are passed as
+     * {@link AfController#UNKNOWN}.
+     *
+     * @param request The request of the result, matched by identity with the submitted ones
+     */
+    void onCaptureResult(long frameNumber, int afState, int lensState, int afTrigger, Object request) {
+        mController.onCaptureResult(frameNumber, afState, lensState, afTrigger);
+        mLatencyTracker.onResult(mHost.nanoTime(), request, mController.getState());
+    }
+
+    /**
+     * Returns the regions of a metering cell. They're cached per cell, so repeated taps and reticle
+     * drags don't allocate.
+     */
+    @SuppressWarnings("unchecked")
+    private R getRegions(int cell) {
+        R regions = (R) mRegionCache[cell];
+        if (regions == null) {
+            mMeteringMapper.getRegion(cell, mRegion);
+            regions = mHost.createRegions(mRegion[0], mRegion[1], mRegion[2], mRegion[3]);
+            mRegionCache[cell] = regions;
+        }
+        return regions;
+    }
+}
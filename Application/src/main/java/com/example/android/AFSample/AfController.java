@@ -0,0 +1,164 @@
+package com.example.android.AFSample;
+
+/**
+ * Tracks the auto focus state from the capture results.
+ * <p>
+ * The controller goes through {@link #STATE_IDLE} -> {@link #STATE_SCANNING} ->
+ * {@link #STATE_FOCUSED} / {@link #STATE_FAILED} and publishes every transition to its
+ * {@link Listener}, which is the focused signal to gate work on. The first result carrying an AF
+ * START, sent in a single capture, moves it to scanning before the HAL's AF state does.
+ * <p>
+ * The sharpness of the AF region measured on the analysis stream is fed in with
+ * {@link #onSharpness}, so we can see how sharp the region actually is when the HAL reports it's
+ * focused.
+ * <p>
+ * {@link #onCaptureResult} must be called from a single thread, {@link #onSharpness} from another
+ * single thread; the state can be read from any thread.
+ */
+class AfController {
+
+    static final int STATE_IDLE = 0;
+    static final int STATE_SCANNING = 1;
+    static final int STATE_FOCUSED = 2;
+    static final int STATE_FAILED = 3;
+
+    /**
+     * Values of {@code CaptureResult.CONTROL_AF_STATE_*}.
+     */
+    static final int AF_STATE_INACTIVE = 0;
+    static final int AF_STATE_PASSIVE_SCAN = 1;
+    static final int AF_STATE_PASSIVE_FOCUSED = 2;
+    static final int AF_STATE_ACTIVE_SCAN = 3;
+    static final int AF_STATE_FOCUSED_LOCKED = 4;
+    static final int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+    static final int AF_STATE_PASSIVE_UNFOCUSED = 6;
+
+    /**
+     * Values of {@code CaptureResult.LENS_STATE_*}.
+     */
+    static final int LENS_STATE_STATIONARY = 0;
+    static final int LENS_STATE_MOVING = 1;
+
+    /**
+     * Values of {@code CaptureResult.CONTROL_AF_TRIGGER_*}.
+     */
+    static final int AF_TRIGGER_IDLE = 0;
+    static final int AF_TRIGGER_START = 1;
+    static final int AF_TRIGGER_CANCEL = 2;
+
+    /**
+     * Value passed for keys missing from a capture result.
+     */
+    static final int UNKNOWN = -1;
+
+    interface Listener {
+        /**
+         * Called when the controller changes state.
+         *
+         * @param state       One of the {@code STATE_*} constants
+         * @param frameNumber The frame number of the result that caused the transition
+         */
+        void onAfStateChanged(int state, long frameNumber);
+    }
+
+    private final Listener mListener;
+
+    private volatile int mState = STATE_IDLE;
+
+    private int mLastAfTrigger = AF_TRIGGER_IDLE;
+
+    private volatile double mSharpness;
+    private volatile double mFocusedSharpness;
+
+    AfController(Listener listener) {
+        mListener = listener;
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * The sharpness of the AF region in the last analyzed frame.
+     */
+    double getSharpness() {
+        return mSharpness;
+    }
+
+    /**
+     * The sharpness of the AF region when the controller last entered {@link #STATE_FOCUSED}.
+     */
+    double getFocusedSharpness() {
+        return mFocusedSharpness;
+    }
+
+    /**
+     * Records the sharpness of the AF region measured on a frame.
+     */
+    void onSharpness(double sharpness) {
+        mSharpness = sharpness;
+    }
+
+    /**
+     * Goes back to {@link #STATE_IDLE}, e.g. when the capture session is recreated.
+     */
+    void reset() {
+        mLastAfTrigger = AF_TRIGGER_IDLE;
+        mState = STATE_IDLE;
+    }
+
+    /**
+     * Consumes the AF related fields of a capture result. Missing keys are passed as
+     * {@link #UNKNOWN}.
+     */
+    void onCaptureResult(long frameNumber, int afState, int lensState, int afTrigger) {
+        if (afTrigger != UNKNOWN) {
+            if (afTrigger == AF_TRIGGER_START && afTrigger != mLastAfTrigger) {
+                setState(STATE_SCANNING, frameNumber);
+            }
+            mLastAfTrigger = afTrigger;
+        }
+        if (afState == UNKNOWN) return;
+        setState(toState(afState, lensState), frameNumber);
+    }
+
+    private void setState(int state, long frameNumber) {
+        if (state == mState) return;
+        if (state == STATE_FOCUSED) mFocusedSharpness = mSharpness;
+        mState = state;
+        mListener.onAfStateChanged(state, frameNumber);
+    }
+
+    private static int toState(int afState, int lensState) {
+        switch (afState) {
+            case AF_STATE_PASSIVE_SCAN:
+            case AF_STATE_ACTIVE_SCAN:
+                return STATE_SCANNING;
+            case AF_STATE_PASSIVE_FOCUSED:
+            case AF_STATE_FOCUSED_LOCKED:
+                // Some HALs report focused before the lens has settled.
+                return lensState == LENS_STATE_MOVING ? STATE_SCANNING : STATE_FOCUSED;
+            case AF_STATE_NOT_FOCUSED_LOCKED:
+            case AF_STATE_PASSIVE_UNFOCUSED:
+                return STATE_FAILED;
+            case AF_STATE_INACTIVE:
+            default:
+                return STATE_IDLE;
+        }
+    }
+
+    static String stateToString(int state) {
+        switch (state) {
+            case STATE_IDLE:
+                return "IDLE";
+            case STATE_SCANNING:
+                return "SCANNING";
+            case STATE_FOCUSED:
+                return "FOCUSED";
+            case STATE_FAILED:
+                return "FAILED";
+            default:
+                return "UNKNOWN(" + state + ")";
+        }
+    }
+}
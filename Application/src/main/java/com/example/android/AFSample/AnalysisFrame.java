@@ -0,0 +1,54 @@
+package com.example.android.AFSample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A camera frame handed to the analyzers: the luma plane of the image, read in place, and the
+ * image that owns it. Instances are pooled by {@link AnalysisPipeline} and reused for every frame,
+ * so analyzers must not keep them after {@code analyze} returns.
+ * <p>
+ * The image is only carried around so the pipeline's releaser can close it.
+ */
+final class AnalysisFrame {
+
+    /**
+     * The Y plane, valid until the frame is released.
+     */
+    ByteBuffer luma;
+    int rowStride;
+    int pixelStride;
+    int width;
+    int height;
+
+    /**
+     * Sensor timestamp of the frame, as in {@code CaptureResult.SENSOR_TIMESTAMP}.
+     */
+    long timestampNanos;
+
+    /**
+     * {@code System.nanoTime()} when the frame was acquired, to tell how long it waited.
+     */
+    long acquiredNanos;
+
+    /**
+     * The image backing {@link #luma}, e.g. an {@code android.media.Image}.
+     */
+    Object image;
+
+    void set(ByteBuffer luma, int rowStride, int pixelStride, int width, int height, long timestampNanos,
+             long acquiredNanos, Object image) {
+        this.luma = luma;
+        this.rowStride = rowStride;
+        this.pixelStride = pixelStride;
+        this.width = width;
+        this.height = height;
+        this.timestampNanos = timestampNanos;
+        this.acquiredNanos = acquiredNanos;
+        this.image = image;
+    }
+
+    void clear() {
+        luma = null;
+        image = null;
+    }
+}
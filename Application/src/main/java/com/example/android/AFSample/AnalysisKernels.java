@@ -0,0 +1,137 @@
+package com.example.android.AFSample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The {@link FrameAnalysisScheduler.Kernel}s we run on the analysis stream.
+ */
+final class AnalysisKernels {
+
+    private AnalysisKernels() {}     // do not instantiate
+
+    /**
+     * One of the {@link SharpnessEngine} metrics.
+     */
+    static final class Sharpness implements FrameAnalysisScheduler.Kernel {
+        private final int mMetric;
+
+        Sharpness(int metric) {
+            mMetric = metric;
+        }
+
+        @Override
+        public String getName() {
+            return SharpnessEngine.metricToString(mMetric);
+        }
+
+        @Override
+        public int getAccumulators() {
+            return SharpnessEngine.ACCUMULATORS;
+        }
+
+        @Override
+        public void accumulate(AnalysisFrame frame, int left, int top, int right, int bottom, long[] acc, int offset) {
+            SharpnessEngine.accumulate(mMetric, frame.luma, frame.rowStride, frame.pixelStride,
+                    left, right, top, bottom, acc, offset);
+        }
+
+        @Override
+        public double finish(long[] acc, int offset) {
+            return SharpnessEngine.finish(mMetric, acc, offset);
+        }
+    }
+
+    /**
+     * Histogram of the luma in {@link #BINS} bins. The value is the mean luma.
+     */
+    static final class LuminanceHistogram implements FrameAnalysisScheduler.Kernel {
+        static final int BINS = 32;
+        private static final int BIN_SHIFT = 3;
+
+        @Override
+        public String getName() {
+            return "luminance";
+        }
+
+        /**
+         * The bins, then the sum of the luma.
+         */
+        @Override
+        public int getAccumulators() {
+            return BINS + 1;
+        }
+
+        @Override
+        public void accumulate(AnalysisFrame frame, int left, int top, int right, int bottom, long[] acc, int offset) {
+            ByteBuffer luma = frame.luma;
+            int ps = frame.pixelStride;
+            long sum = 0;
+            for (int y = top; y < bottom; y++) {
+                int i = y * frame.rowStride + left * ps;
+                int end = i + (right - left) * ps;
+                for (; i < end; i += ps) {
+                    int value = luma.get(i) & 0xFF;
+                    acc[offset + (value >> BIN_SHIFT)]++;
+                    sum += value;
+                }
+            }
+            acc[offset + BINS] += sum;
+        }
+
+        @Override
+        public double finish(long[] acc, int offset) {
+            long count = 0;
+            for (int i = 0; i < BINS; i++) count += acc[offset + i];
+            return count == 0 ? 0 : (double) acc[offset + BINS] / count;
+        }
+    }
+
+    /**
+     * Fraction of the pixels whose central difference gradient {@code |gx| + |gy|} is above a
+     * threshold.
+     */
+    static final class EdgeDensity implements FrameAnalysisScheduler.Kernel {
+        private final int mThreshold;
+
+        EdgeDensity(int threshold) {
+            mThreshold = threshold;
+        }
+
+        @Override
+        public String getName() {
+            return "edge_density";
+        }
+
+        /**
+         * Edge pixels, then all pixels.
+         */
+        @Override
+        public int getAccumulators() {
+            return 2;
+        }
+
+        @Override
+        public void accumulate(AnalysisFrame frame, int left, int top, int right, int bottom, long[] acc, int offset) {
+            ByteBuffer luma = frame.luma;
+            int ps = frame.pixelStride;
+            int rowStride = frame.rowStride;
+            long edges = 0;
+            for (int y = top; y < bottom; y++) {
+                int i = y * rowStride + left * ps;
+                int end = i + (right - left) * ps;
+                for (; i < end; i += ps) {
+                    int gx = (luma.get(i + ps) & 0xFF) - (luma.get(i - ps) & 0xFF);
+                    int gy = (luma.get(i + rowStride) & 0xFF) - (luma.get(i - rowStride) & 0xFF);
+                    if (Math.abs(gx) + Math.abs(gy) > mThreshold) edges++;
+                }
+            }
+            acc[offset] += edges;
+            acc[offset + 1] += (long) (right - left) * (bottom - top);
+        }
+
+        @Override
+        public double finish(long[] acc, int offset) {
+            return acc[offset + 1] == 0 ? 0 : (double) acc[offset] / acc[offset + 1];
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.android.AFSample;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Hands camera frames from the thread acquiring them to an analyzer running on an
+ * {@link Executor}, without ever blocking the producer.
+ * <p>
+ * The pipeline owns a fixed pool of {@link AnalysisFrame}s: up to {@code queueCapacity} frames
+ * waiting for the analyzer plus the one being analyzed. When the producer needs a frame and the
+ * pool is empty, the oldest waiting frame is dropped and reused, so a slow analyzer always sees
+ * the most recent frames and the camera never runs out of buffers. Every frame is returned to the
+ * {@link Releaser} exactly once, dropped or analyzed.
+ * <p>
+ * The producer calls {@link #obtain()} and {@link #submit}; frames are analyzed one at a time in
+ * arrival order.
+ */
+class AnalysisPipeline {
+
+    interface Analyzer {
+        /**
+         * Analyzes a frame. The frame and its buffers are only valid until this returns.
+         */
+        void analyze(AnalysisFrame frame);
+    }
+
+    interface Releaser {
+        /**
+         * Frees what backs the frame, e.g. closes its image. Called on the producer or analyzer
+         * thread.
+         */
+        void release(AnalysisFrame frame);
+    }
+
+    private final Executor mExecutor;
+    private final Releaser mReleaser;
+    private volatile Analyzer mAnalyzer;
+
+    // Guarded by this.
+    private final AnalysisFrame[] mFree;
+    private int mFreeCount;
+    private final AnalysisFrame[] mPending;
+    private int mPendingHead;
+    private int mPendingCount;
+    private boolean mDraining;
+    private long mAcquired;
+    private long mDropped;
+    private long mAnalyzed;
+    private int mInFlight;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param queueCapacity Frames that may wait for the analyzer, at least 1
+     * @param executor      Runs the analyzer
+     * @param releaser      Frees the frames
+     */
+    AnalysisPipeline(int queueCapacity, Executor executor, Releaser releaser) {
+        mExecutor = executor;
+        mReleaser = releaser;
+        mPending = new AnalysisFrame[queueCapacity];
+        mFree = new AnalysisFrame[maxHeldFrames(queueCapacity)];
+        for (int i = 0; i < mFree.length; i++) mFree[i] = new AnalysisFrame();
+        mFreeCount = mFree.length;
+    }
+
+    /**
+     * Returns how many frames a pipeline holds at most, so the producer can size its buffers.
+     */
+    static int maxHeldFrames(int queueCapacity) {
+        return queueCapacity + 1;
+    }
+
+    void setAnalyzer(Analyzer analyzer) {
+        mAnalyzer = analyzer;
+    }
+
+    /**
+     * Takes a frame to fill, dropping the oldest waiting frame if the pool is empty.
+     *
+     * @return The frame, or null if every frame is being analyzed; the new frame is then dropped
+     */
+    AnalysisFrame obtain() {
+        AnalysisFrame frame;
+        synchronized (this) {
+            mAcquired++;
+            if (mFreeCount > 0) return mFree[--mFreeCount];
+            mDropped++;
+            if (mPendingCount == 0) return null;
+            frame = pollPending();
+        }
+        mReleaser.release(frame);
+        frame.clear();
+        return frame;
+    }
+
+    /**
+     * Queues a frame returned by {@link #obtain()} for the analyzer.
+     */
+    void submit(AnalysisFrame frame) {
+        synchronized (this) {
+            mPending[(mPendingHead + mPendingCount) % mPending.length] = frame;
+            mPendingCount++;
+            if (mDraining) return;
+            mDraining = true;
+        }
+        mExecutor.execute(mDrainRunnable);
+    }
+
+    /**
+     * Drops the frames waiting for the analyzer, e.g. before the producer goes away.
+     */
+    void clear() {
+        while (true) {
+            AnalysisFrame frame;
+            synchronized (this) {
+                if (mPendingCount == 0) return;
+                frame = pollPending();
+                mDropped++;
+            }
+            recycle(frame);
+        }
+    }
+
+    synchronized long getAcquired() {
+        return mAcquired;
+    }
+
+    synchronized long getDropped() {
+        return mDropped;
+    }
+
+    synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AnalysisPipeline{acquired=" + mAcquired + ", analyzed=" + mAnalyzed + ", dropped=" + mDropped
+                + ", waiting=" + mPendingCount + ", inFlight=" + mInFlight + "}";
+    }
+
+    private void drain() {
+        while (true) {
+            AnalysisFrame frame;
+            synchronized (this) {
+                if (mPendingCount == 0) {
+                    mDraining = false;
+                    return;
+                }
+                frame = pollPending();
+                mInFlight++;
+            }
+            try {
+                Analyzer analyzer = mAnalyzer;
+                if (analyzer != null) analyzer.analyze(frame);
+            } finally {
+                synchronized (this) {
+                    mInFlight--;
+                    mAnalyzed++;
+                }
+                recycle(frame);
+            }
+        }
+    }
+
+    private AnalysisFrame pollPending() {
+        AnalysisFrame frame = mPending[mPendingHead];
+        mPending[mPendingHead] = null;
+        mPendingHead = (mPendingHead + 1) % mPending.length;
+        mPendingCount--;
+        return frame;
+    }
+
+    private void recycle(AnalysisFrame frame) {
+        mReleaser.release(frame);
+        frame.clear();
+        synchronized (this) {
+            mFree[mFreeCount++] = frame;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.AFSample;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A low resolution {@code YUV_420_888} output of the capture session whose frames are given to an
+ * analyzer on the CPU.
+ * <p>
+ * Images are acquired on their own thread and analyzed on another one, both separate from the
+ * camera thread that drives AF. The analyzer reads the Y plane of the {@link Image} in place; the
+ * image is closed once it's analyzed or dropped by the {@link AnalysisPipeline}. The reader holds
+ * one more image than the pipeline can keep, so the camera always has a buffer to write to.
+ */
+class AnalysisStream implements ImageReader.OnImageAvailableListener {
+
+    private static final String TAG = "AnalysisStream";
+
+    /**
+     * Frames that may wait while the analyzer is busy. Older ones are dropped.
+     */
+    private static final int QUEUE_CAPACITY = 2;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final HandlerThread mReaderThread;
+    private final HandlerThread mAnalysisThread;
+    private final Handler mAnalysisHandler;
+    private final ImageReader mReader;
+    private final AnalysisPipeline mPipeline;
+
+    AnalysisStream(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mReaderThread = new HandlerThread("CameraAnalysisReader");
+        mReaderThread.start();
+        mAnalysisThread = new HandlerThread("CameraAnalysis");
+        mAnalysisThread.start();
+        mAnalysisHandler = new Handler(mAnalysisThread.getLooper());
+        mPipeline = new AnalysisPipeline(QUEUE_CAPACITY,
+                new Executor() {
+                    @Override
+                    public void execute(Runnable runnable) {
+                        mAnalysisHandler.post(runnable);
+                    }
+                },
+                new AnalysisPipeline.Releaser() {
+                    @Override
+                    public void release(AnalysisFrame frame) {
+                        ((Image) frame.image).close();
+                    }
+                });
+        mReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888,
+                AnalysisPipeline.maxHeldFrames(QUEUE_CAPACITY) + 1);
+        mReader.setOnImageAvailableListener(this, new Handler(mReaderThread.getLooper()));
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    /**
+     * Sets the analyzer, called on the analysis thread. May be null.
+     */
+    void setAnalyzer(AnalysisPipeline.Analyzer analyzer) {
+        mPipeline.setAnalyzer(analyzer);
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        long acquiredNanos = System.nanoTime();
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            // Can't happen with the pipeline holding fewer images than the reader's maximum.
+            Log.w(TAG, "Could not acquire an image", e);
+            return;
+        }
+        if (image == null) return;
+        AnalysisFrame frame = mPipeline.obtain();
+        if (frame == null) {
+            image.close();
+            return;
+        }
+        Image.Plane luma = image.getPlanes()[0];
+        frame.set(luma.getBuffer(), luma.getRowStride(), luma.getPixelStride(), image.getWidth(),
+                image.getHeight(), image.getTimestamp(), acquiredNanos, image);
+        mPipeline.submit(frame);
+    }
+
+    /**
+     * Stops the stream and frees its images. The capture session using the surface must be closed.
+     */
+    void close() {
+        mReader.setOnImageAvailableListener(null, null);
+        quit(mReaderThread);
+        mPipeline.clear();
+        quit(mAnalysisThread);
+        mReader.close();
+    }
+
+    @Override
+    public String toString() {
+        return "AnalysisStream{" + mWidth + "x" + mHeight + ", " + mPipeline + "}";
+    }
+
+    private static void quit(HandlerThread thread) {
+        thread.quitSafely();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.Rect;
@@ -34,15 +35,20 @@ import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.display.DisplayManager;
+import android.opengl.GLSurfaceView;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.support.annotation.IntRange;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.constraint.ConstraintLayout;
 import android.support.v4.app.ActivityCompat;
@@ -50,7 +56,6 @@ import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
-import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.GestureDetector;
@@ -65,13 +70,11 @@ import android.widget.ImageView;
 import android.widget.Switch;
 import android.widget.Toast;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 
 public class CameraFragment extends Fragment implements ActivityCompat.OnRequestPermissionsResultCallback {
 
@@ -95,14 +98,35 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
     private static final String TAG = "Camera2BasicFragment";
 
     /**
-     * Max preview width that is guaranteed by Camera2 API
+     * Frame rate the preview size has to sustain.
      */
-    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final int PREVIEW_TARGET_FPS = 30;
 
     /**
-     * Max preview height that is guaranteed by Camera2 API
+     * Max width of the frames analyzed on the CPU.
      */
-    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final int ANALYSIS_MAX_WIDTH = 640;
+
+    /**
+     * Weight of the metering area sent with every tap.
+     */
+    private static final int METERING_WEIGHT = 1000;
+
+    /**
+     * How the GL preview schedules its draws, see {@link FramePacer}.
+     */
+    private static final int FRAME_PACING = FramePacer.PACING_IMMEDIATE;
+
+    /**
+     * Capture results that may wait for the result thread before new ones are dropped, 2 s of
+     * preview at 30 fps.
+     */
+    private static final int RESULT_HANDOFF_CAPACITY = 64;
+
+    /**
+     * Frame cadence of the {@link TextureView} preview, to compare against {@link PreviewRenderer}.
+     */
+    private final FrameStats mTextureViewFrameStats = new FrameStats("TextureView");
 
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
@@ -112,8 +136,7 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
 
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
-            if(usingTextureView) openCamera(width, height);
-//            else setReady(texture, width, height);
+            if(usingTextureView) startPreview(texture, width, height);
         }
 
         @Override
@@ -128,14 +151,39 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture texture) {
+            // TextureView does the drawing itself, so we can only track the frame cadence.
+            mTextureViewFrameStats.onFrame(texture.getTimestamp(), 0, 0);
         }
 
     };
 
     /**
-     * ID of the current {@link CameraDevice}.
+     * What {@link #setUpCameraOutputs} chose for the camera, computed on the UI or GL thread and
+     * read on the camera thread. Immutable, so publishing it through a volatile field is enough.
+     */
+    private static final class CameraOutputs {
+        final String cameraId;
+        final Rect activeArraySize;
+        final Size previewSize;
+        // Null if the camera has no suitable YUV output.
+        final Size analysisSize;
+        // The minimum frame duration of the slowest of the outputs, 0 if unknown.
+        final long minFrameDurationNanos;
+
+        CameraOutputs(String cameraId, Rect activeArraySize, Size previewSize, Size analysisSize,
+                long minFrameDurationNanos) {
+            this.cameraId = cameraId;
+            this.activeArraySize = activeArraySize;
+            this.previewSize = previewSize;
+            this.analysisSize = analysisSize;
+            this.minFrameDurationNanos = minFrameDurationNanos;
+        }
+    }
+
+    /**
+     * The outputs of the current camera, or null until {@link #setUpCameraOutputs} has run.
      */
-    private String mCameraId;
+    private volatile CameraOutputs mOutputs;
 
     /**
      * An {@link AutoFitTextureView} for camera preview.
@@ -157,12 +205,128 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
      */
     private CameraDevice mCameraDevice;
 
+    private final PreviewSizeSelector mPreviewSizeSelector =
+            new PreviewSizeSelector(16, 9, PREVIEW_TARGET_FPS);
+
+    /**
+     * The YUV output analyzed on the CPU. Kept across sessions while its size doesn't change.
+     */
+    private AnalysisStream mAnalysisStream;
+
+    /**
+     * The AF region last submitted, in active-array coordinates, or null for the center.
+     */
+    private volatile Rect mFocusRegion;
+
+    /**
+     * Analysis stream frames older than this are skipped.
+     */
+    private static final long MAX_ANALYSIS_FRAME_AGE_NANOS = 50000000L;
+
+    /**
+     * Index of the sharpness kernel of {@link #mFrameAnalysisScheduler}.
+     */
+    private static final int KERNEL_SHARPNESS = 0;
+
+    /**
+     * Analyzes {@link #mFocusRegion} on the analysis stream and feeds its sharpness to
+     * {@link #mAfController}.
+     */
+    private final FrameAnalysisScheduler mFrameAnalysisScheduler = new FrameAnalysisScheduler(
+            new FrameAnalysisScheduler.Kernel[]{
+                    new AnalysisKernels.Sharpness(SharpnessEngine.LAPLACIAN_VARIANCE),
+                    new AnalysisKernels.LuminanceHistogram(),
+                    new AnalysisKernels.EdgeDensity(32)},
+            FrameAnalysisScheduler.defaultParallelism(), MAX_ANALYSIS_FRAME_AGE_NANOS,
+            new FrameAnalysisScheduler.RegionSource() {
+                // Only touched on the analysis thread.
+                private final int[] mRegion = new int[4];
+
+                @Override
+                public void getRegion(AnalysisFrame frame, int[] out) {
+                    CameraOutputs outputs = mOutputs;
+                    Rect activeArray = outputs != null ? outputs.activeArraySize : null;
+                    if (activeArray == null) {
+                        Arrays.fill(out, 0);
+                        return;
+                    }
+                    Rect focusRegion = mFocusRegion;
+                    if (focusRegion != null) {
+                        mRegion[0] = focusRegion.left;
+                        mRegion[1] = focusRegion.top;
+                        mRegion[2] = focusRegion.right;
+                        mRegion[3] = focusRegion.bottom;
+                    } else {
+                        // Same size as the regions of the metering mapper.
+                        mRegion[0] = activeArray.width() * 2 / 5;
+                        mRegion[1] = activeArray.height() * 2 / 5;
+                        mRegion[2] = activeArray.width() * 3 / 5;
+                        mRegion[3] = activeArray.height() * 3 / 5;
+                    }
+                    SharpnessEngine.toImageRegion(mRegion, activeArray.width(), activeArray.height(),
+                            frame.width, frame.height, out);
+                }
+            },
+            new FrameAnalysisScheduler.Listener() {
+                // Only touched on the analysis thread.
+                private final CaptureResultRing.Record mRecord = new CaptureResultRing.Record();
+
+                @Override
+                public void onFrameAnalyzed(long timestampNanos, FrameAnalysisScheduler.Results results) {
+                    double sharpness = results.getValue(KERNEL_SHARPNESS);
+                    mHillClimbFocus.onSharpness(timestampNanos, sharpness);
+                    // The HAL's AF only cares about frames taken with the lens at rest.
+                    if (mCaptureResults.findByTimestamp(timestampNanos, mRecord)
+                            && mRecord.lensState == AfController.LENS_STATE_MOVING) {
+                        return;
+                    }
+                    mAfController.onSharpness(sharpness);
+                }
+            });
+
+    /**
+     * The {@link SurfaceTexture} of the current preview view, or null until it's available.
+     */
+    private volatile SurfaceTexture mPreviewSurfaceTexture;
+
+
+    /**
+     * The preview output of the current session. On API 26+ the session may be created with a
+     * deferred output, before the preview surface exists; {@link #mPreviewSurface} is null until the
+     * surface has been added to it. Only touched on the camera thread.
+     */
+    private OutputConfiguration mPreviewOutput;
+
+    /**
+     * The preview size {@link #mPreviewOutput} was created with.
+     */
+    private Size mPreviewOutputSize;
+
+    /**
+     * The {@link Surface} the preview requests target, or null if none is bound yet.
+     */
+    private Surface mPreviewSurface;
+
+    /**
+     * Whether the repeating preview request is running on {@link #mCaptureSession}.
+     */
+    private volatile boolean mPreviewStarted;
+
     /**
-     * The {@link android.util.Size} of camera preview.
+     * When the user flipped the surface type, or 0 if no switch is in progress.
      */
-    private Size mPreviewSize;
+    private volatile long mSurfaceSwitchStartNanos;
 
-    private SurfaceTexture mGLSurfaceTexture;
+    /**
+     * Timestamps of the startup phases, from onResume to the first frame.
+     */
+    private final StartupTrace mStartupTrace = new StartupTrace();
+
+    /**
+     * Time from flipping the surface type to the first frame of the new session. Only written on
+     * the camera thread.
+     */
+    private final LatencyHistogram mSurfaceSwitchLatency = new LatencyHistogram("surface_switch");
 
     /**
      * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state.
@@ -172,40 +336,62 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
         @Override
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             // This method is called when the camera is opened.  We start camera preview here.
-            mCameraOpenCloseLock.release();
+            mStartupTrace.mark(StartupTrace.CAMERA_OPENED);
             mCameraDevice = cameraDevice;
-            createCameraPreviewSession();
+            mCameraLifecycle.onOpened();
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
-            mCameraDevice = null;
+            mCameraDevice = cameraDevice;
+            mCameraLifecycle.onDisconnected();
         }
 
         @Override
         public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
-            mCameraDevice = null;
+            mCameraDevice = cameraDevice;
+            mCameraLifecycle.onDisconnected();
             Activity activity = getActivity();
             if (null != activity) {
                 activity.finish();
             }
         }
 
+        @Override
+        public void onClosed(@NonNull CameraDevice cameraDevice) {
+            mCameraLifecycle.onClosed();
+        }
+
     };
 
     /**
-     * An additional thread for running tasks that shouldn't block the UI.
+     * The camera thread: receives the device, session and capture callbacks and submits the
+     * requests, including the AF commands. Anything slow is kept off it so commands aren't delayed.
+     */
+    private HandlerThread mControlThread;
+
+    /**
+     * A {@link Handler} for running tasks on {@link #mControlThread}, which measures their queueing.
+     */
+    private MeteredHandler mControlHandler;
+
+    /**
+     * Takes the capture results from the camera thread to the result thread, which records and
+     * logs them and feeds {@link #mHillClimbFocus}.
      */
-    private HandlerThread mBackgroundThread;
+    private ResultHandoff<CaptureEvent> mResultHandoff;
 
     /**
-     * A {@link Handler} for running tasks in the background.
+     * A capture result on its way to the result thread, owned by a slot of {@link #mResultHandoff}.
      */
-    private Handler mBackgroundHandler;
+    private static final class CaptureEvent {
+        CaptureRequest request;
+        // Null if the capture failed.
+        TotalCaptureResult result;
+        int afState;
+        int lensState;
+        int afTrigger;
+    }
 
 
     /**
@@ -219,13 +405,119 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
     private CaptureRequest mPreviewRequest;
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * Opens and closes the camera on the camera thread, so neither the UI nor the GL thread waits
+     * for it. Open and close requests made while a transition is running are coalesced.
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private final CameraLifecycle mCameraLifecycle = new CameraLifecycle(
+            new AfCommandScheduler.Dispatcher() {
+                @Override
+                public void dispatch(Runnable runnable, long delayMillis) {
+                    Handler handler = mControlHandler;
+                    if (handler != null) handler.postDelayed(runnable, delayMillis);
+                }
+
+                @Override
+                public long uptimeMillis() {
+                    return SystemClock.uptimeMillis();
+                }
+            },
+            new CameraLifecycle.Host() {
+                @Override
+                public void openDevice() {
+                    Activity activity = getActivity();
+                    CameraOutputs outputs = mOutputs;
+                    if (activity == null || outputs == null) {
+                        mCameraLifecycle.onOpenFailed();
+                        return;
+                    }
+                    CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+                    try {
+                        manager.openCamera(outputs.cameraId, mStateCallback, mControlHandler);
+                    } catch (CameraAccessException | SecurityException e) {
+                        e.printStackTrace();
+                        mCameraLifecycle.onOpenFailed();
+                    }
+                }
+
+                @Override
+                public void startSession() {
+                    createCameraPreviewSession();
+                }
 
-    private Rect activeArraySize = null;
+                @Override
+                public void closeDevice() {
+                    closePreviewSession();
+                    if (null != mCameraDevice) {
+                        mCameraDevice.close();
+                        mCameraDevice = null;
+                    }
+                    if (null != mAnalysisStream) {
+                        mAnalysisStream.close();
+                        mAnalysisStream = null;
+                    }
+                }
+
+                @Override
+                public long nanoTime() {
+                    return System.nanoTime();
+                }
+            });
+
+    /**
+     * The closest focus distance of the camera in diopters, 0 if it can't focus.
+     */
+    private volatile float mMinFocusDistance;
+
+    /**
+     * Where the lens is kept between software AF searches. Only touched on the camera thread.
+     */
+    private float mManualFocusDistance;
+
+    /**
+     * The sequence id and steps of the last software AF burst, to fail its steps if the sequence is
+     * aborted. Only touched on the camera thread.
+     */
+    private int mFocusBurstSequenceId = -1;
+    private int mFocusBurstFirstStep;
+    private int mFocusBurstSize;
+
+    /**
+     * Searches the sharpest lens position for the tapped region when software AF is on.
+     * Its bursts and the end of a search are handled on the camera thread.
+     */
+    private final HillClimbFocus mHillClimbFocus = new HillClimbFocus(new HillClimbFocus.Driver() {
+        @Override
+        public void capture(final float[] distances, final int firstStep) {
+            Handler handler = mControlHandler;
+            if (handler == null) return;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    captureFocusBurst(distances, firstStep);
+                }
+            });
+        }
+
+        @Override
+        public void onFinished(final boolean focused, final float distance) {
+            Handler handler = mControlHandler;
+            if (handler == null) return;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "Software AF " + (focused ? "focused" : "failed") + " at " + distance + " diopters");
+                    setManualFocusDistance(distance);
+                }
+            });
+            ImageView reticleView = mReticleView;
+            if (reticleView != null) reticleView.post(mUpdateReticleRunnable);
+        }
 
-    private boolean usingContinuousAF = false;
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    });
 
     private boolean usingTextureView = true;
 
@@ -236,24 +528,265 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
     private PreviewRenderer mRenderer;
 
     /**
-     * This is the scalar range that we can actually use with the reticle. We avoid the borders so the rectangle we send is always the same size.
+     * Requests a render of {@link #mGLSurfaceView} for every new camera frame.
      */
-    private Range<Float> activeRange = new Range<>(0.1f,0.9f);
+    private FramePacer mFramePacer;
 
     private ImageView mReticleView;
 
     /**
-     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     * What we know about the camera, so reopening it skips the characteristics queries.
+     */
+    private CameraProfileCache mProfileCache;
+
+    private final Runnable mSaveProfileRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mProfileCache.save();
+        }
+    };
+
+    private final Runnable mConfigureMeteringRunnable = new Runnable() {
+        @Override
+        public void run() {
+            configureMetering();
+        }
+    };
+
+    /**
+     * Keeps the metering of {@link #mAfControlPath} in sync with the display rotation. A 180 degree rotation
+     * doesn't recreate the activity, so we can't rely on {@link #setUpCameraOutputs} alone.
+     */
+    private final DisplayManager.DisplayListener mDisplayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {}
+
+        @Override
+        public void onDisplayRemoved(int displayId) {}
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            configureMetering();
+        }
+    };
+
+    /**
+     * Turns taps and the AF switches into AF commands, coalesced into at most one repeating request
+     * per frame, and tracks the AF state and the tap-to-focus latency from the capture results.
+     */
+    private final AfControlPath<MeteringRectangle[]> mAfControlPath = new AfControlPath<MeteringRectangle[]>(
+            new AfCommandScheduler.Dispatcher() {
+                @Override
+                public void dispatch(Runnable runnable, long delayMillis) {
+                    Handler handler = mControlHandler;
+                    if (handler != null) handler.postDelayed(runnable, delayMillis);
+                }
+
+                @Override
+                public long uptimeMillis() {
+                    return SystemClock.uptimeMillis();
+                }
+            },
+            new AfControlPath.Host<MeteringRectangle[]>() {
+                @Override
+                public MeteringRectangle[] createRegions(int left, int top, int right, int bottom) {
+                    // we assume the device supports at least one metering area.
+                    return new MeteringRectangle[]{
+                            new MeteringRectangle(new Rect(left, top, right, bottom), METERING_WEIGHT)};
+                }
+
+                @Override
+                public Object submit(MeteringRectangle[] regions, int afMode, int afTrigger) {
+                    if (mCaptureSession == null || !mPreviewStarted) return null;
+                    try {
+                        if (regions != null) {
+                            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+                            mFocusRegion = regions[0].getRect();
+                        }
+                        if (afMode != AfCommandScheduler.UNCHANGED) mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+                        CaptureRequest triggerRequest = null;
+                        if (afTrigger != AfCommandScheduler.UNCHANGED && afTrigger != CaptureRequest.CONTROL_AF_TRIGGER_IDLE) {
+                            // The trigger goes out on one frame only; captures run ahead of the
+                            // repeating request.
+                            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, afTrigger);
+                            triggerRequest = mPreviewRequestBuilder.build();
+                            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+                            mCaptureSession.capture(triggerRequest, mCaptureCallback, mControlHandler);
+                        }
+                        mPreviewRequest = mPreviewRequestBuilder.build();
+                        mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mControlHandler);
+                        return triggerRequest != null ? triggerRequest : mPreviewRequest;
+                    } catch (CameraAccessException e) {
+                        e.printStackTrace();
+                        return null;
+                    }
+                }
+
+                @Override
+                public void startSoftwareFocus(long touchNanos) {
+                    CameraFragment.this.startSoftwareFocus(touchNanos);
+                }
+
+                @Override
+                public void cancelSoftwareFocus() {
+                    mHillClimbFocus.cancel();
+                }
+
+                @Override
+                public void onAfStateChanged(int state, long frameNumber) {
+                    Log.d(TAG, "AF state " + AfController.stateToString(state) + " at frame " + frameNumber);
+                    ImageView reticleView = mReticleView;
+                    if (reticleView != null) reticleView.post(mUpdateReticleRunnable);
+                }
+
+                @Override
+                public long nanoTime() {
+                    return System.nanoTime();
+                }
+            });
+
+    /**
+     * Tracks the AF state from the capture results, see {@link #mAfControlPath}.
+     */
+    private final AfController mAfController = mAfControlPath.getController();
+
+    /**
+     * Dims the reticle while the AF is scanning. Posted on every AF state change, so it's allocated
+     * once.
+     */
+    private final Runnable mUpdateReticleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mReticleView != null) {
+                boolean scanning = mAfController.getState() == AfController.STATE_SCANNING || mHillClimbFocus.isRunning();
+                mReticleView.setAlpha(scanning ? 0.5f : 1f);
+            }
+        }
+    };
+
+    /**
+     * The metadata of the recent capture results, written on the result thread and read from the
+     * analysis and UI threads.
+     */
+    private final CaptureResultRing mCaptureResults = new CaptureResultRing();
+
+    /**
+     * Capture results, taps and preview frame times, kept on disk for debugging. See
+     * {@code TelemetryLogReader} in the benchmark module to read it.
+     */
+    private TelemetryLog mTelemetryLog;
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} that feeds the preview results to
+     * {@link #mAfController} on the camera thread and hands them on to the result thread.
      */
     private CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            if (mStartupTrace.mark(StartupTrace.FIRST_FRAME)) Log.i(TAG, mStartupTrace.toString());
+            long switchStartNanos = mSurfaceSwitchStartNanos;
+            if (switchStartNanos != 0 && session == mCaptureSession) {
+                mSurfaceSwitchStartNanos = 0;
+                mSurfaceSwitchLatency.record(System.nanoTime() - switchStartNanos);
+                Log.i(TAG, mSurfaceSwitchLatency.toString());
+            }
+            int afState = getInt(result, CaptureResult.CONTROL_AF_STATE);
+            int lensState = getInt(result, CaptureResult.LENS_STATE);
+            int afTrigger = getInt(result, CaptureResult.CONTROL_AF_TRIGGER);
+            mAfControlPath.onCaptureResult(result.getFrameNumber(), afState, lensState, afTrigger, request);
+            publishCaptureEvent(request, result, afState, lensState, afTrigger);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+            publishCaptureEvent(request, null, AfController.UNKNOWN, AfController.UNKNOWN, AfController.UNKNOWN);
+        }
 
+        @Override
+        public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session, int sequenceId) {
+            // None of the burst frames will have a result, count them all as failed.
+            if (sequenceId != mFocusBurstSequenceId) return;
+            for (int i = 0; i < mFocusBurstSize; i++) mHillClimbFocus.onCaptureFailed(mFocusBurstFirstStep + i);
         }
 
     };
 
+    /**
+     * Hands a capture result, or a failure if {@code result} is null, to the result thread. Called
+     * on the camera thread.
+     * <p>
+     * If the result thread is behind and the event is dropped, a software AF burst frame is failed
+     * here instead, so the pass it belongs to doesn't wait for it.
+     */
+    private void publishCaptureEvent(CaptureRequest request, TotalCaptureResult result, int afState,
+                                     int lensState, int afTrigger) {
+        ResultHandoff<CaptureEvent> handoff = mResultHandoff;
+        CaptureEvent event = handoff != null ? handoff.claim() : null;
+        if (event == null) {
+            Object step = request.getTag();
+            if (step instanceof Integer) mHillClimbFocus.onCaptureFailed((Integer) step);
+            return;
+        }
+        event.request = request;
+        event.result = result;
+        event.afState = afState;
+        event.lensState = lensState;
+        event.afTrigger = afTrigger;
+        handoff.publish();
+    }
+
+    /**
+     * Records a capture result and feeds it to {@link #mHillClimbFocus}. Called on the result
+     * thread.
+     */
+    private void processCaptureEvent(CaptureEvent event) {
+        CaptureRequest request = event.request;
+        TotalCaptureResult result = event.result;
+        event.request = null;
+        event.result = null;
+        mHillClimbFocus.onFrame();
+        Object step = request.getTag();
+        if (result == null) {
+            if (step instanceof Integer) mHillClimbFocus.onCaptureFailed((Integer) step);
+            return;
+        }
+
+        int afState = event.afState;
+        int lensState = event.lensState;
+        int afTrigger = event.afTrigger;
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        Float focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+        Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        MeteringRectangle[] afRegions = result.get(CaptureResult.CONTROL_AF_REGIONS);
+        Rect afRegion = afRegions != null && afRegions.length > 0 ? afRegions[0].getRect() : null;
+        long sensorTimestamp = timestamp != null ? timestamp : CaptureResultRing.UNKNOWN;
+        float distance = focusDistance != null ? focusDistance : Float.NaN;
+        long exposure = exposureTime != null ? exposureTime : CaptureResultRing.UNKNOWN;
+        int iso = getInt(result, CaptureResult.SENSOR_SENSITIVITY);
+        int left = afRegion != null ? afRegion.left : 0;
+        int top = afRegion != null ? afRegion.top : 0;
+        int right = afRegion != null ? afRegion.right : 0;
+        int bottom = afRegion != null ? afRegion.bottom : 0;
+        mCaptureResults.add(sensorTimestamp, result.getFrameNumber(), afState, afTrigger, lensState,
+                distance, exposure, iso, left, top, right, bottom);
+        mTelemetryLog.logCaptureResult(sensorTimestamp, result.getFrameNumber(), afState, afTrigger,
+                lensState, distance, exposure, iso, left, top, right, bottom);
+
+        if (step instanceof Integer) {
+            if (timestamp != null && focusDistance != null) {
+                mHillClimbFocus.onResult((Integer) step, timestamp, focusDistance);
+            } else {
+                mHillClimbFocus.onCaptureFailed((Integer) step);
+            }
+        }
+    }
+
+    private static int getInt(CaptureResult result, CaptureResult.Key<Integer> key) {
+        Integer value = result.get(key);
+        return value != null ? value : AfController.UNKNOWN;
+    }
+
     /**
      * Shows a {@link Toast} on the UI thread.
      *
@@ -271,54 +804,6 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
         }
     }
 
-    /**
-     * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
-     * is at least as large as the respective texture view size, and that is at most as large as the
-     * respective max size, and whose aspect ratio matches with the specified value. If such size
-     * doesn't exist, choose the largest one that is at most as large as the respective max size,
-     * and whose aspect ratio matches with the specified value.
-     *
-     * @param choices           The list of sizes that the camera supports for the intended output
-     *                          class
-     * @param textureViewWidth  The width of the texture view relative to sensor coordinate
-     * @param textureViewHeight The height of the texture view relative to sensor coordinate
-     * @param maxWidth          The maximum width that can be chosen
-     * @param maxHeight         The maximum height that can be chosen
-     * @param aspectRatio       The aspect ratio
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
-     */
-    private static Size chooseOptimalSize(Size[] choices, int textureViewWidth, int textureViewHeight, int maxWidth, int maxHeight, Size aspectRatio) {
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        // Collect the supported resolutions that are smaller than the preview Surface
-        List<Size> notBigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
-                    option.getHeight() == option.getWidth() * h / w) {
-                if (option.getWidth() >= textureViewWidth &&
-                        option.getHeight() >= textureViewHeight) {
-                    bigEnough.add(option);
-                } else {
-                    notBigEnough.add(option);
-                }
-            }
-        }
-
-        // Pick the smallest of those big enough. If there is no one big enough, pick the
-        // largest of those not big enough.
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else if (notBigEnough.size() > 0) {
-            return Collections.max(notBigEnough, new CompareSizesByArea());
-        } else {
-            Log.e(TAG, "Couldn't find any suitable preview size");
-            return choices[0];
-        }
-    }
-
     public static CameraFragment newInstance() {
         return new CameraFragment();
     }
@@ -330,27 +815,25 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
 
     @Override
     public void onViewCreated(@NonNull final View view, Bundle savedInstanceState) {
+        mProfileCache = CameraProfileCache.getInstance(getActivity().getFilesDir());
+        // External files can be pulled with adb without root.
+        File telemetryDir = getActivity().getExternalFilesDir(null);
+        if (telemetryDir == null) telemetryDir = getActivity().getFilesDir();
+        mTelemetryLog = TelemetryLog.getInstance(new File(telemetryDir, "telemetry"));
+        mTextureViewFrameStats.setTelemetryLog(mTelemetryLog, TelemetryLog.SURFACE_TEXTURE_VIEW);
         ((Switch)view.findViewById(R.id.switch_continuous_focus_mode)).setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                usingContinuousAF = isChecked;
-                mBackgroundHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            if (usingContinuousAF) {
-                                //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, null);
-                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
-                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
-                            }
-                            else mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_AUTO);
-                            mPreviewRequest = mPreviewRequestBuilder.build();
-                            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-                        } catch (CameraAccessException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
+                mAfControlPath.setContinuous(isChecked);
+                logAfSwitches();
+            }
+        });
+
+        ((Switch)view.findViewById(R.id.switch_software_focus_mode)).setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                mAfControlPath.setSoftware(isChecked);
+                logAfSwitches();
             }
         });
 
@@ -360,7 +843,7 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
                 // If nothing has changed, we ignore this call
                 if(usingTextureView == !isChecked) return;
                 usingTextureView = !isChecked;
-                if(mBackgroundHandler != null) setSurfaceType();
+                if(mControlHandler != null) setSurfaceType();
             }
         });
 
@@ -420,73 +903,10 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
                 boolean result = gestureDetector.onTouchEvent(event);
                 if(event.getAction() == MotionEvent.ACTION_UP){
 
-                    float x = event.getX() / v.getWidth();
-                    float y = event.getY() / v.getHeight();
-
-                    int displayRotation = getActivity().getWindowManager().getDefaultDisplay().getRotation();
-                    switch (displayRotation) {
-                        case Surface.ROTATION_0:
-                            float aux = x;
-                            x = y;
-                            y = 1 - aux;
-                            break;
-                        case Surface.ROTATION_270:
-                            x = 1 - x;
-                            y = 1 - y;
-                            break;
-                        default:
-                    }
-
-                    // we assume the device supports at least one metering area.
-                    final MeteringRectangle[] meteringAreas = new MeteringRectangle[1];
-
-                    x = activeRange.clamp(x);
-                    y = activeRange.clamp(y);
-
-                    RectF rect = new RectF(x - 0.1f, y - 0.1f, x + 0.1f, y + 0.1f);
-
-                    Log.d(TAG, "onTouch: " + x + ":" + y);
-
-                    meteringAreas[0] = convertRectToMeteringRectangle(rect, activeArraySize, 1000);
-
-                    mBackgroundHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                // here we update the metering areas and trigger the focus (if using Auto mode)
-                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, meteringAreas);
-
-                                // here we trigger the focus if using Auto mode. Continuous mode triggers the AF automatically
-                                if (usingContinuousAF) {
-                                    // we shouldn't need to update the AF Mode, but just in case
-                                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
-
-                                    //mPreviewRequest = mPreviewRequestBuilder.build();
-                                    //mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-
-                                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
-
-                                    mPreviewRequest = mPreviewRequestBuilder.build();
-                                    mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-                                }
-                                else {
-                                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_AUTO);
-                                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
-
-                                    mPreviewRequest = mPreviewRequestBuilder.build();
-                                    mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-
-                                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
-
-
-                                    mPreviewRequest = mPreviewRequestBuilder.build();
-                                    mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-                                }
-                            } catch (CameraAccessException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    });
+                    // here we update the metering areas and trigger the focus if using Auto mode.
+                    int cell = mAfControlPath.onTap(event.getX(), event.getY(), v.getWidth(), v.getHeight());
+                    mTelemetryLog.logTap(event.getX(), event.getY(), v.getWidth(), v.getHeight(),
+                            event.getAction(), cell, mAfControlPath.getAfMode());
                     v.performClick();
                 }
                 return result;
@@ -500,126 +920,313 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
         }
     }
 
-    private static MeteringRectangle convertRectToMeteringRectangle(RectF rect, Rect activeArray, @IntRange(from=0,to=1000) int weight) {
-        // rect is of type [0, 0] - [1, 1] and we must convert it to [0, 0] - [sensor width-1, sensor height-1].
+    private void logAfSwitches() {
+        mTelemetryLog.logAfSwitches(mAfControlPath.isContinuous(), mAfControlPath.isSoftware());
+    }
 
-        int left = (int)(rect.left * (activeArray.width()-1));
-        int right = (int)(rect.right * (activeArray.width()-1));
-        int top = (int)(rect.top * (activeArray.height()-1));
-        int bottom = (int)(rect.bottom * (activeArray.height()-1));
+    /**
+     * Starts a software AF search of the region just tapped.
+     *
+     * @param touchNanos When the region was tapped, for the time to focus
+     */
+    private void startSoftwareFocus(final long touchNanos) {
+        final float minFocusDistance = mMinFocusDistance;
+        Handler handler = mControlHandler;
+        if (minFocusDistance <= 0 || handler == null) {
+            showToast("This camera can't focus");
+            return;
+        }
+        // Posted after the new AF region, so the analysis follows it by the first burst frames.
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHillClimbFocus.start(minFocusDistance, touchNanos);
+                if (mReticleView != null) mReticleView.post(mUpdateReticleRunnable);
+            }
+        });
+    }
 
-        left = Math.min(left, activeArray.width()-1);
-        right = Math.min(right, activeArray.width()-1);
-        top = Math.min(top, activeArray.height()-1);
-        bottom = Math.min(bottom, activeArray.height()-1);
+    /**
+     * Captures one frame at each focus distance of a software AF pass, in a single burst. Called on
+     * the camera thread.
+     */
+    private void captureFocusBurst(float[] distances, int firstStep) {
+        if (mCaptureSession == null || !mPreviewStarted || !mAfControlPath.isSoftware()) {
+            mHillClimbFocus.cancel();
+            return;
+        }
+        try {
+            List<CaptureRequest> burst = new ArrayList<>(distances.length);
+            for (int i = 0; i < distances.length; i++) {
+                mPreviewRequestBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, distances[i]);
+                mPreviewRequestBuilder.setTag(firstStep + i);
+                burst.add(mPreviewRequestBuilder.build());
+            }
+            mPreviewRequestBuilder.setTag(null);
+            mPreviewRequestBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, mManualFocusDistance);
+            mFocusBurstSequenceId = mCaptureSession.captureBurst(burst, mCaptureCallback, mControlHandler);
+            mFocusBurstFirstStep = firstStep;
+            mFocusBurstSize = distances.length;
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            mHillClimbFocus.cancel();
+        }
+    }
 
-        return new MeteringRectangle(new Rect(left, top, right, bottom), weight);
+    /**
+     * Keeps the lens at {@code distance} in the repeating request. Called on the camera thread.
+     */
+    private void setManualFocusDistance(float distance) {
+        mManualFocusDistance = distance;
+        if (mCaptureSession == null || !mPreviewStarted) return;
+        try {
+            mPreviewRequestBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, distance);
+            mPreviewRequest = mPreviewRequestBuilder.build();
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mControlHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Recomputes the view-to-sensor transform of {@link #mAfControlPath} from the current display
+     * rotation and the active array of {@link #mOutputs}. Must be called on the UI thread.
+     */
+    private void configureMetering() {
+        Activity activity = getActivity();
+        CameraOutputs outputs = mOutputs;
+        if (activity == null || outputs == null) return;
+        Rect activeArray = outputs.activeArraySize;
+        int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        mAfControlPath.configureMetering(displayRotation, activeArray.width(), activeArray.height());
+        mTelemetryLog.logDisplay(displayRotation, activeArray.width(), activeArray.height());
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        startBackgroundThread();
+        if (mControlThread == null) startBackgroundThread();
+        DisplayManager displayManager = (DisplayManager) getActivity().getSystemService(Context.DISPLAY_SERVICE);
+        displayManager.registerDisplayListener(mDisplayListener, null);
+        mStartupTrace.begin();
+        prewarmCamera();
         setSurfaceType();
     }
 
+    /**
+     * Starts opening the camera before the preview view has a surface, so the device open runs in
+     * parallel with view creation and EGL setup. The view size isn't known yet, so the preview size
+     * is estimated from the fragment's (or the display's) size; {@link #startPreview} corrects it
+     * once the surface arrives.
+     */
+    private void prewarmCamera() {
+        Activity activity = getActivity();
+        if (mCameraLifecycle.isOpenRequested() || ContextCompat.checkSelfPermission(activity, Manifest.permission.CAMERA)
+                != PackageManager.PERMISSION_GRANTED) {
+            // The permission is requested once a preview surface is there, as before.
+            return;
+        }
+        View root = getView();
+        int width = root != null ? root.getWidth() : 0;
+        int height = root != null ? root.getHeight() : 0;
+        if (width == 0 || height == 0) {
+            Point displaySize = new Point();
+            activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
+            width = displaySize.x;
+            height = displaySize.y;
+        }
+        openCamera(width, height);
+    }
+
+    /**
+     * Shows the preview view selected by {@link #usingTextureView}, replacing the other one.
+     * <p>
+     * When switching, the camera device stays open: only the capture session is recreated with the
+     * new view's surface. On API 26+ the new session is configured with a deferred output while the
+     * new view is being created, and the surface is added to it once available.
+     */
     private void setSurfaceType(){
         final ConstraintLayout container = getActivity().findViewById(R.id.fragment_container);
         boolean switchingSurfaces = false;
         if (usingTextureView) {
             if(mGLSurfaceView != null){
                 mRenderer.stopRendering();
-                mGLSurfaceView.onPause();
+                mFramePacer.release();
+                Log.i(TAG, mFramePacer.toString());
                 switchingSurfaces = true;
-                closeCamera();
-                container.removeView(mGLSurfaceView);
+                final GLSurfaceView glSurfaceView = mGLSurfaceView;
+                stopPreview(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Pausing the view releases the renderer's SurfaceTexture.
+                        glSurfaceView.onPause();
+                        container.removeView(glSurfaceView);
+                    }
+                });
                 mGLSurfaceView = null;
             }
-            mBackgroundHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    getActivity().runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            if(mTextureView == null){
-                                ConstraintLayout.LayoutParams params = new ConstraintLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
-                                params.leftToLeft = container.getId();
-                                params.rightToRight = container.getId();
-                                params.topToTop = container.getId();
-                                params.bottomToBottom = container.getId();
-                                mTextureView = new AutoFitTextureView(getActivity());
-                                mTextureView.setLayoutParams(params);
-                                container.addView(mTextureView, 0);
-                            }
-                            // When the screen is turned off and turned back on, the SurfaceTexture is already
-                            // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
-                            // a camera and start preview from here (otherwise, we wait until the surface is ready in
-                            // the SurfaceTextureListener).
-                            if (mTextureView.isAvailable()) {
-                                openCamera(mTextureView.getWidth(), mTextureView.getHeight());
-                            } else {
-                                mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
-                            }
-                            setListeners();
-                        }
-                    });
-                }
-            }, switchingSurfaces ? 1000 : 0);
+            if(mTextureView == null){
+                mTextureView = new AutoFitTextureView(getActivity());
+                mTextureView.setLayoutParams(createPreviewLayoutParams(container));
+                container.addView(mTextureView, 0);
+            }
+            // When the screen is turned off and turned back on, the SurfaceTexture is already
+            // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
+            // a camera and start preview from here (otherwise, we wait until the surface is ready in
+            // the SurfaceTextureListener).
+            if (mTextureView.isAvailable()) {
+                startPreview(mTextureView.getSurfaceTexture(), mTextureView.getWidth(), mTextureView.getHeight());
+            } else {
+                mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+            }
         } else {
             if(mTextureView != null){
                 switchingSurfaces = true;
-                closeCamera();
-                container.removeView(mTextureView);
+                final TextureView textureView = mTextureView;
+                stopPreview(new Runnable() {
+                    @Override
+                    public void run() {
+                        container.removeView(textureView);
+                    }
+                });
                 mTextureView = null;
             }
-            mBackgroundHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    getActivity().runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            if(mGLSurfaceView == null) {
-                                ConstraintLayout.LayoutParams params = new ConstraintLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
-                                params.leftToLeft = container.getId();
-                                params.rightToRight = container.getId();
-                                params.topToTop = container.getId();
-                                params.bottomToBottom = container.getId();
-                                mGLSurfaceView = new AutoFitGLSurfaceView(getActivity());
-                                mGLSurfaceView.setLayoutParams(params);
-                                container.addView(mGLSurfaceView, 0);
-
-                                mRenderer = new PreviewRenderer(new SurfaceTexture.OnFrameAvailableListener() {
-                                    @Override
-                                    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                                        if(mGLSurfaceView != null) mGLSurfaceView.requestRender();
-                                    }
-                                }, mGLSurfaceView.getWidth(), mGLSurfaceView.getHeight(), new PreviewRenderer.SurfaceListener() {
-                                    @Override
-                                    public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture) {
-                                        mGLSurfaceTexture = surfaceTexture;
-                                        openCamera(mGLSurfaceView.getWidth(), mGLSurfaceView.getHeight());
-                                    }
-                                });
+            if(mGLSurfaceView == null) {
+                mGLSurfaceView = new AutoFitGLSurfaceView(getActivity());
+                mGLSurfaceView.setLayoutParams(createPreviewLayoutParams(container));
+                container.addView(mGLSurfaceView, 0);
 
-                                mGLSurfaceView.setEGLContextClientVersion(3);
-                                mGLSurfaceView.setRenderer(mRenderer);
-                            }
-                            setListeners();
-                        }
-                    });
-                }
-            }, switchingSurfaces ? 1000 : 0);
+                mFramePacer = new FramePacer(mGLSurfaceView, FRAME_PACING);
+                mRenderer = new PreviewRenderer(mFramePacer, mGLSurfaceView.getWidth(), mGLSurfaceView.getHeight(), new PreviewRenderer.SurfaceListener() {
+                    @Override
+                    public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture) {
+                        startPreview(surfaceTexture, mGLSurfaceView.getWidth(), mGLSurfaceView.getHeight());
+                    }
+                }, getActivity().getCodeCacheDir());
+
+                mRenderer.getFrameStats().setTelemetryLog(mTelemetryLog, TelemetryLog.SURFACE_GL);
+
+                mGLSurfaceView.setEGLContextClientVersion(3);
+                mGLSurfaceView.setRenderer(mRenderer);
+                mGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+            } else {
+                // Coming back from onPause, the renderer reports its surface again once resumed.
+                mGLSurfaceView.onResume();
+            }
+        }
+        if (switchingSurfaces) mSurfaceSwitchStartNanos = System.nanoTime();
+        setListeners();
+    }
+
+    private static ConstraintLayout.LayoutParams createPreviewLayoutParams(ConstraintLayout container) {
+        ConstraintLayout.LayoutParams params = new ConstraintLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+        params.leftToLeft = container.getId();
+        params.rightToRight = container.getId();
+        params.topToTop = container.getId();
+        params.bottomToBottom = container.getId();
+        return params;
+    }
+
+    /**
+     * Starts the preview on {@code texture}, opening the camera if it isn't open yet. Called on the
+     * UI thread for the {@link TextureView} and on the GL thread for {@link PreviewRenderer}.
+     */
+    private void startPreview(SurfaceTexture texture, int width, int height) {
+        mStartupTrace.mark(StartupTrace.SURFACE_READY);
+        mPreviewSurfaceTexture = texture;
+        if (!mCameraLifecycle.isOpenRequested()) {
+            openCamera(width, height);
+            return;
+        }
+        setUpCameraOutputs(width, height);
+        if(usingTextureView) configureTransform(width, height);
+        Handler handler = mControlHandler;
+        if (handler != null) handler.post(mBindPreviewSurfaceRunnable);
+    }
+
+    /**
+     * Stops the preview before its view goes away, keeping the camera open. Must be called on the
+     * UI thread.
+     *
+     * @param removeView Removes the old view, run on the UI thread once the session drawing into its
+     *                   surface is closed, so the surface isn't abandoned under a running session
+     */
+    private void stopPreview(final Runnable removeView) {
+        mPreviewSurfaceTexture = null;
+        final Activity activity = getActivity();
+        Handler handler = mControlHandler;
+        if (handler == null) {
+            removeView.run();
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                recreatePreviewSession();
+                activity.runOnUiThread(removeView);
+            }
+        });
+    }
+
+    private final Runnable mBindPreviewSurfaceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            bindPreviewSurface();
+        }
+    };
+
+    /**
+     * Closes the session of the old preview view and, on API 26+, configures the next one. Called
+     * on the camera thread.
+     */
+    private void recreatePreviewSession() {
+        closePreviewSession();
+        // With deferred outputs the new session can be configured while the new view is created.
+        if (mCameraDevice != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            createCameraPreviewSession();
         }
     }
 
     @Override
     public void onPause() {
+        DisplayManager displayManager = (DisplayManager) getActivity().getSystemService(Context.DISPLAY_SERVICE);
+        displayManager.unregisterDisplayListener(mDisplayListener);
         if(mGLSurfaceView != null) mGLSurfaceView.onPause();
+        Log.i(TAG, mAfControlPath.getScheduler().toString());
+        Log.i(TAG, "Focus latency:\n" + mAfControlPath.getLatencyTracker().toText());
+        Log.i(TAG, mAfControlPath.getLatencyTracker().toJson());
+        Log.i(TAG, mTextureViewFrameStats.toString());
+        if (mRenderer != null) Log.i(TAG, mRenderer.getFrameStats().toString());
+        if (mFramePacer != null) Log.i(TAG, mFramePacer.toString());
+        if (mAnalysisStream != null) Log.i(TAG, mAnalysisStream.toString());
+        Log.i(TAG, mFrameAnalysisScheduler + " focusedSharpness=" + mAfController.getFocusedSharpness());
+        Log.i(TAG, mHillClimbFocus.toString());
+        CaptureResultRing.Record lastResult = new CaptureResultRing.Record();
+        if (mCaptureResults.readLatest(lastResult) >= 0) Log.i(TAG, "Last capture result: " + lastResult);
+        mTelemetryLog.flush();
+        Log.i(TAG, mTelemetryLog.toString());
+        Log.i(TAG, mControlHandler.getMetrics().toString());
+        Log.i(TAG, mResultHandoff.toString());
+        Log.i(TAG, mCameraLifecycle.toString());
         closeCamera();
-        stopBackgroundThread();
         super.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+        // The threads outlive onPause so a quick resume can reopen the camera while it's closing;
+        // they stop once the camera is closed.
+        if (mControlThread != null) {
+            mCameraLifecycle.close(new CameraLifecycle.Callback() {
+                @Override
+                public void onComplete(boolean success) {
+                    stopBackgroundThread();
+                }
+            });
+        }
+        super.onDestroy();
+    }
+
     private void requestCameraPermission() {
         if (shouldShowRequestPermissionRationale(Manifest.permission.CAMERA)) {
             new ConfirmationDialog().show(getChildFragmentManager(), FRAGMENT_DIALOG);
@@ -652,102 +1259,120 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
         final Activity activity = getActivity();
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
         try {
-            for (String cameraId : manager.getCameraIdList()) {
-                CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-
-                // We don't use a front facing camera in this sample.
-                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) continue;
-
-                StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                if (map == null) continue;
-
-                activeArraySize = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-
-                // Find out if we need to swap dimension to get the preview size relative to sensor
-                // coordinate.
-                final int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-                //noinspection ConstantConditions
-                int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                boolean swappedDimensions = false;
-                switch (displayRotation) {
-                    case Surface.ROTATION_0:
-                    case Surface.ROTATION_180:
-                        if (sensorOrientation == 90 || sensorOrientation == 270) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    case Surface.ROTATION_90:
-                    case Surface.ROTATION_270:
-                        if (sensorOrientation == 0 || sensorOrientation == 180) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    default:
-                        Log.e(TAG, "Display rotation is invalid: " + displayRotation);
-                }
+            String[] cameraIds = manager.getCameraIdList();
+            CameraProfileCache.Profile profile = mProfileCache.getProfile(cameraIds);
+            boolean profileChanged = false;
+            if (profile == null) {
+                profile = queryCameraProfile(manager, cameraIds);
+                if (profile == null) return;
+                mProfileCache.setProfile(cameraIds, profile);
+                profileChanged = true;
+            }
+
+            mMinFocusDistance = profile.minFocusDistance;
+
+            // Find out if we need to swap dimension to get the preview size relative to sensor
+            // coordinate.
+            final int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            int sensorOrientation = profile.sensorOrientation;
+            boolean swappedDimensions = false;
+            switch (displayRotation) {
+                case Surface.ROTATION_0:
+                case Surface.ROTATION_180:
+                    if (sensorOrientation == 90 || sensorOrientation == 270) {
+                        swappedDimensions = true;
+                    }
+                    break;
+                case Surface.ROTATION_90:
+                case Surface.ROTATION_270:
+                    if (sensorOrientation == 0 || sensorOrientation == 180) {
+                        swappedDimensions = true;
+                    }
+                    break;
+                default:
+                    Log.e(TAG, "Display rotation is invalid: " + displayRotation);
+            }
 
-                Point displaySize = new Point();
-                activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
+            Point displaySize = new Point();
+            activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
+            String displayConfig = CameraProfileCache.displayConfig(displayRotation, width, height, displaySize.x, displaySize.y);
+            Size previewSize = mProfileCache.getPreviewSize(displayConfig);
+            if (previewSize == null) {
                 int rotatedPreviewWidth = width;
                 int rotatedPreviewHeight = height;
-                int maxPreviewWidth = displaySize.x;
-                int maxPreviewHeight = displaySize.y;
+                int rotatedDisplayWidth = displaySize.x;
+                int rotatedDisplayHeight = displaySize.y;
 
                 if (swappedDimensions) {
                     rotatedPreviewWidth = height;
                     rotatedPreviewHeight = width;
-                    maxPreviewWidth = displaySize.y;
-                    maxPreviewHeight = displaySize.x;
+                    rotatedDisplayWidth = displaySize.y;
+                    rotatedDisplayHeight = displaySize.x;
                 }
 
-                if (maxPreviewWidth > MAX_PREVIEW_WIDTH) maxPreviewWidth = MAX_PREVIEW_WIDTH;
-                if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) maxPreviewHeight = MAX_PREVIEW_HEIGHT;
-
                 // Danger, W.R.! Attempting to use too large a preview size could exceed the camera
                 // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-                // garbage capture data.
-                mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                        rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                        maxPreviewHeight, new Size(16,9));
-
-                // We fit the aspect ratio of TextureView to the size of preview we picked.
-                final int orientation = getResources().getConfiguration().orientation;
-                if(mTextureView != null) {
-                    if (orientation == Configuration.ORIENTATION_LANDSCAPE)
-                        mTextureView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-                    else
-                        mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
+                // garbage capture data. The selector penalizes sizes beyond the guaranteed preview
+                // stream and those that can't keep up with the target frame rate.
+                int index = mPreviewSizeSelector.select(profile.outputWidths, profile.outputHeights,
+                        profile.minFrameDurations, rotatedPreviewWidth, rotatedPreviewHeight,
+                        rotatedDisplayWidth, rotatedDisplayHeight);
+                if (index == PreviewSizeSelector.NO_SIZE) {
+                    Log.e(TAG, "Couldn't find any suitable preview size");
+                    return;
                 }
-                if(mGLSurfaceView != null){
-                    activity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (orientation == Configuration.ORIENTATION_LANDSCAPE)
-                                mGLSurfaceView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-                            else
-                                mGLSurfaceView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
-                            mRenderer.setVerticalFlip(displayRotation == Surface.ROTATION_270);
-                            switch (displayRotation) {
-                                case Surface.ROTATION_0:
-                                    mRenderer.setOrientation(0);
-                                    break;
-                                case Surface.ROTATION_180:
-                                    mRenderer.setOrientation(180);
-                                    break;
-                                case Surface.ROTATION_90:
-                                case Surface.ROTATION_270:
-                                    mRenderer.setOrientation(270);
-                                    break;
-                                default:
-                                    Log.e(TAG, "Display rotation is invalid: " + displayRotation);
-                            }
+                previewSize = new Size(profile.outputWidths[index], profile.outputHeights[index]);
+                mProfileCache.putPreviewSize(displayConfig, previewSize);
+                profileChanged = true;
+            }
+            final Size finalPreviewSize = previewSize;
+            Size analysisSize = chooseAnalysisSize(profile, previewSize);
+            long minFrameDurationNanos = minFrameDuration(profile.outputWidths, profile.outputHeights,
+                    profile.minFrameDurations, previewSize);
+            if (analysisSize != null) {
+                minFrameDurationNanos = Math.max(minFrameDurationNanos, minFrameDuration(profile.yuvWidths,
+                        profile.yuvHeights, profile.yuvMinFrameDurations, analysisSize));
+            }
+            mOutputs = new CameraOutputs(profile.cameraId, profile.activeArraySize, previewSize,
+                    analysisSize, minFrameDurationNanos);
+            activity.runOnUiThread(mConfigureMeteringRunnable);
+            if (profileChanged && mControlHandler != null) mControlHandler.post(mSaveProfileRunnable);
+
+            // We fit the aspect ratio of TextureView to the size of preview we picked.
+            final int orientation = getResources().getConfiguration().orientation;
+            if(mTextureView != null) {
+                if (orientation == Configuration.ORIENTATION_LANDSCAPE)
+                    mTextureView.setAspectRatio(previewSize.getWidth(), previewSize.getHeight());
+                else
+                    mTextureView.setAspectRatio(previewSize.getHeight(), previewSize.getWidth());
+            }
+            if(mGLSurfaceView != null){
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (orientation == Configuration.ORIENTATION_LANDSCAPE)
+                            mGLSurfaceView.setAspectRatio(finalPreviewSize.getWidth(), finalPreviewSize.getHeight());
+                        else
+                            mGLSurfaceView.setAspectRatio(finalPreviewSize.getHeight(), finalPreviewSize.getWidth());
+                        mRenderer.setVerticalFlip(displayRotation == Surface.ROTATION_270);
+                        switch (displayRotation) {
+                            case Surface.ROTATION_0:
+                                mRenderer.setOrientation(0);
+                                break;
+                            case Surface.ROTATION_180:
+                                mRenderer.setOrientation(180);
+                                break;
+                            case Surface.ROTATION_90:
+                            case Surface.ROTATION_270:
+                                mRenderer.setOrientation(270);
+                                break;
+                            default:
+                                Log.e(TAG, "Display rotation is invalid: " + displayRotation);
                         }
-                    });
-                }
-                mCameraId = cameraId;
-                return;
+                    }
+                });
             }
+            mStartupTrace.mark(StartupTrace.CHARACTERISTICS_READY);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         } catch (NullPointerException e) {
@@ -759,7 +1384,85 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
     }
 
     /**
-     * Opens the camera specified by {@link CameraFragment#mCameraId}.
+     * Chooses the size of the analysis stream: the YUV size closest to the preview's aspect ratio
+     * that is at most {@link #ANALYSIS_MAX_WIDTH} wide.
+     */
+    private Size chooseAnalysisSize(CameraProfileCache.Profile profile, Size previewSize) {
+        int width = Math.min(previewSize.getWidth(), ANALYSIS_MAX_WIDTH);
+        int height = (int) ((long) width * previewSize.getHeight() / previewSize.getWidth());
+        PreviewSizeSelector selector =
+                new PreviewSizeSelector(previewSize.getWidth(), previewSize.getHeight(), PREVIEW_TARGET_FPS);
+        int index = selector.select(profile.yuvWidths, profile.yuvHeights, profile.yuvMinFrameDurations,
+                width, height, width, height);
+        if (index == PreviewSizeSelector.NO_SIZE) return null;
+        return new Size(profile.yuvWidths[index], profile.yuvHeights[index]);
+    }
+
+    /**
+     * Returns the minimum frame duration of {@code size} in a size list of the profile, or 0 if it
+     * isn't listed.
+     */
+    private static long minFrameDuration(int[] widths, int[] heights, long[] minFrameDurations, Size size) {
+        for (int i = 0; i < widths.length; i++) {
+            if (widths[i] == size.getWidth() && heights[i] == size.getHeight()) return minFrameDurations[i];
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the camera we use and reads what we need of its characteristics.
+     *
+     * @return The profile of the camera, or null if there is no suitable camera
+     */
+    private static CameraProfileCache.Profile queryCameraProfile(CameraManager manager, String[] cameraIds)
+            throws CameraAccessException {
+        for (String cameraId : cameraIds) {
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+
+            // We don't use a front facing camera in this sample.
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) continue;
+
+            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map == null) continue;
+
+            Float minFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+            Size[] outputSizes = map.getOutputSizes(SurfaceTexture.class);
+            long[] minFrameDurations = new long[outputSizes.length];
+            for (int i = 0; i < outputSizes.length; i++) {
+                minFrameDurations[i] = map.getOutputMinFrameDuration(SurfaceTexture.class, outputSizes[i]);
+            }
+            Size[] yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+            long[] yuvMinFrameDurations = new long[yuvSizes.length];
+            for (int i = 0; i < yuvSizes.length; i++) {
+                yuvMinFrameDurations[i] = map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, yuvSizes[i]);
+            }
+            //noinspection ConstantConditions
+            return new CameraProfileCache.Profile(cameraId,
+                    characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE),
+                    characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION),
+                    minFocusDistance != null ? minFocusDistance : 0f,
+                    widthsOf(outputSizes), heightsOf(outputSizes), minFrameDurations,
+                    widthsOf(yuvSizes), heightsOf(yuvSizes), yuvMinFrameDurations);
+        }
+        return null;
+    }
+
+    private static int[] widthsOf(Size[] sizes) {
+        int[] widths = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) widths[i] = sizes[i].getWidth();
+        return widths;
+    }
+
+    private static int[] heightsOf(Size[] sizes) {
+        int[] heights = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) heights[i] = sizes[i].getHeight();
+        return heights;
+    }
+
+    /**
+     * Opens the camera chosen by {@link #setUpCameraOutputs}. The device is opened on the
+     * camera thread; this doesn't wait for it.
      */
     private void openCamera(int width, int height) {
         if (ContextCompat.checkSelfPermission(getActivity(), Manifest.permission.CAMERA)
@@ -767,120 +1470,216 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
             requestCameraPermission();
             return;
         }
+        mStartupTrace.mark(StartupTrace.PERMISSION_CHECKED);
 
         setUpCameraOutputs(width, height);
         if(usingTextureView) configureTransform(width, height);
-        Activity activity = getActivity();
-        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-        try {
-            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock camera opening.");
-            }
-            manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
-        }
+        mCameraLifecycle.open(null);
     }
 
     /**
-     * Closes the current {@link CameraDevice}.
+     * Starts closing the current {@link CameraDevice}, without waiting for it.
      */
     private void closeCamera() {
-        try {
-            mCameraOpenCloseLock.acquire();
-            if (null != mCaptureSession) {
-                mCaptureSession.close();
-                mCaptureSession = null;
-            }
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-        } finally {
-            mCameraOpenCloseLock.release();
-        }
+        mCameraLifecycle.close(null);
     }
 
     /**
-     * Starts a background thread and its {@link Handler}.
+     * Starts the camera thread with its {@link Handler} and the result thread.
      */
     private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        mResultHandoff = new ResultHandoff<CaptureEvent>("CameraResults", RESULT_HANDOFF_CAPACITY,
+                new ResultHandoff.Factory<CaptureEvent>() {
+                    @Override
+                    public CaptureEvent create() {
+                        return new CaptureEvent();
+                    }
+                },
+                new ResultHandoff.Consumer<CaptureEvent>() {
+                    @Override
+                    public void consume(CaptureEvent event) {
+                        processCaptureEvent(event);
+                    }
+                });
+        mResultHandoff.start();
+        mControlThread = new HandlerThread("CameraControl");
+        mControlThread.start();
+        mControlHandler = new MeteredHandler(mControlThread.getLooper(), "CameraControl");
     }
 
     /**
-     * Stops the background thread and its {@link Handler}.
+     * Stops the result thread, then lets the camera thread finish its queue and exit. Called on the
+     * camera thread once the camera is closed.
      */
     private void stopBackgroundThread() {
-        mBackgroundThread.quitSafely();
         try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
+            mResultHandoff.stop();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        mControlThread.quitSafely();
     }
 
     /**
-     * Creates a new {@link CameraCaptureSession} for camera preview.
+     * Creates a new {@link CameraCaptureSession} for camera preview. Called on the camera thread.
+     * <p>
+     * If the preview surface isn't available yet, on API 26+ the session is created with a deferred
+     * output that {@link #bindPreviewSurface} completes later; before that we wait for the surface.
      */
     private void createCameraPreviewSession() {
+        SurfaceTexture texture = mPreviewSurfaceTexture;
+        if (texture == null && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return;
+        // One snapshot, so the preview and analysis streams match even if the outputs change.
+        CameraOutputs outputs = mOutputs;
         try {
+            // We set up a CaptureRequest.Builder, the output Surface is added once we have it.
+            mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            mPreviewSurface = texture != null ? createPreviewSurface(texture, outputs.previewSize) : null;
+            if (mPreviewSurface != null) mPreviewRequestBuilder.addTarget(mPreviewSurface);
+            AnalysisStream analysisStream = ensureAnalysisStream(outputs.analysisSize);
+            if (analysisStream != null) mPreviewRequestBuilder.addTarget(analysisStream.getSurface());
 
-            SurfaceTexture texture = usingTextureView ? mTextureView.getSurfaceTexture() : mGLSurfaceTexture;
-            assert texture != null;
+            // Here, we create a CameraCaptureSession for camera preview.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                mPreviewOutput = mPreviewSurface != null
+                        ? new OutputConfiguration(mPreviewSurface)
+                        : new OutputConfiguration(outputs.previewSize, SurfaceTexture.class);
+                mPreviewOutputSize = outputs.previewSize;
+                mCameraDevice.createCaptureSessionByOutputConfigurations(analysisStream != null
+                                ? Arrays.asList(mPreviewOutput, new OutputConfiguration(analysisStream.getSurface()))
+                                : Collections.singletonList(mPreviewOutput),
+                        mSessionStateCallback, mControlHandler);
+                mCameraLifecycle.onConfiguring();
+            } else {
+                mCameraDevice.createCaptureSession(analysisStream != null
+                                ? Arrays.asList(mPreviewSurface, analysisStream.getSurface())
+                                : Arrays.asList(mPreviewSurface),
+                        mSessionStateCallback, mControlHandler);
+                mCameraLifecycle.onConfiguring();
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
 
-            // We configure the size of default buffer to be the size of camera preview we want.
-            texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+    /**
+     * Returns the analysis stream of the given size, creating it if needed. Called on the camera
+     * thread with no session using the current stream.
+     *
+     * @param size The size of the stream, or null for none
+     */
+    private AnalysisStream ensureAnalysisStream(Size size) {
+        if (mAnalysisStream != null && (size == null || mAnalysisStream.getWidth() != size.getWidth()
+                || mAnalysisStream.getHeight() != size.getHeight())) {
+            mAnalysisStream.close();
+            mAnalysisStream = null;
+        }
+        if (mAnalysisStream == null && size != null) {
+            mAnalysisStream = new AnalysisStream(size.getWidth(), size.getHeight());
+            mAnalysisStream.setAnalyzer(mFrameAnalysisScheduler);
+        }
+        return mAnalysisStream;
+    }
 
-            // This is the output Surface we need to start preview.
-            Surface surface = new Surface(texture);
+    private final CameraCaptureSession.StateCallback mSessionStateCallback = new CameraCaptureSession.StateCallback() {
 
-            // We set up a CaptureRequest.Builder with the output Surface.
-            mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            mPreviewRequestBuilder.addTarget(surface);
+        @Override
+        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+            // The camera is already closed
+            if (null == mCameraDevice) return;
+
+            mStartupTrace.mark(StartupTrace.SESSION_CONFIGURED);
+            mCaptureSession = cameraCaptureSession;
+            CameraOutputs outputs = mOutputs;
+            int afMode = mAfControlPath.onSessionConfigured(outputs != null ? outputs.minFrameDurationNanos : 0);
+            mTelemetryLog.logSessionConfigured(afMode);
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+            if (afMode == CaptureRequest.CONTROL_AF_MODE_OFF) {
+                mPreviewRequestBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, mManualFocusDistance);
+            }
 
-            // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface), new CameraCaptureSession.StateCallback() {
+            // When the session is ready, we start displaying the preview, unless we're still waiting
+            // for the surface of a deferred output.
+            if (mPreviewSurface != null) {
+                startRepeatingPreview();
+            } else if (mPreviewSurfaceTexture != null) {
+                bindPreviewSurface();
+            }
+        }
 
-                        @Override
-                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                            // The camera is already closed
-                            if (null == mCameraDevice) return;
-
-                            // When the session is ready, we start displaying the preview.
-                            mCaptureSession = cameraCaptureSession;
-                            try {
-
-                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
-
-                                // Finally, we start displaying the camera preview.
-                                mPreviewRequest = mPreviewRequestBuilder.build();
-                                mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-                            } catch (CameraAccessException e) {
-                                e.printStackTrace();
-                            }
-                        }
+        @Override
+        public void onConfigureFailed(
+                @NonNull CameraCaptureSession cameraCaptureSession) {
+            mCameraLifecycle.onSessionClosed();
+            showToast("Failed");
+        }
+    };
 
-                        @Override
-                        public void onConfigureFailed(
-                                @NonNull CameraCaptureSession cameraCaptureSession) {
-                            showToast("Failed");
-                        }
-                    }, null
-            );
+    /**
+     * Starts the preview on {@link #mPreviewSurfaceTexture}, which has just become available. Called
+     * on the camera thread.
+     */
+    private void bindPreviewSurface() {
+        // If the camera is still opening, onOpened will create the session with the surface.
+        if (mCameraDevice == null || mPreviewSurfaceTexture == null) return;
+        if (mPreviewSurface != null) return;
+        Size previewSize = mOutputs.previewSize;
+        if (mPreviewOutput != null && previewSize.equals(mPreviewOutputSize)
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // onConfigured binds the surface if the deferred session isn't ready yet.
+            if (mCaptureSession == null) return;
+            try {
+                Surface surface = createPreviewSurface(mPreviewSurfaceTexture, previewSize);
+                mPreviewOutput.addSurface(surface);
+                mCaptureSession.finalizeOutputConfigurations(Collections.singletonList(mPreviewOutput));
+                mPreviewSurface = surface;
+                mPreviewRequestBuilder.addTarget(surface);
+                startRepeatingPreview();
+                return;
+            } catch (CameraAccessException | IllegalArgumentException e) {
+                Log.w(TAG, "Could not finalize the deferred preview output", e);
+            }
+        }
+        closePreviewSession();
+        createCameraPreviewSession();
+    }
+
+    private Surface createPreviewSurface(SurfaceTexture texture, Size previewSize) {
+        // We configure the size of default buffer to be the size of camera preview we want.
+        texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
+
+        // This is the output Surface we need to start preview.
+        return new Surface(texture);
+    }
+
+    private void startRepeatingPreview() {
+        try {
+            // Finally, we start displaying the camera preview.
+            mPreviewRequest = mPreviewRequestBuilder.build();
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mControlHandler);
+            mPreviewStarted = true;
+            mCameraLifecycle.onStreaming();
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Closes the preview session, keeping the camera open.
+     */
+    private void closePreviewSession() {
+        mPreviewStarted = false;
+        mHillClimbFocus.cancel();
+        if (null != mCaptureSession) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        mPreviewOutput = null;
+        mPreviewOutputSize = null;
+        mPreviewSurface = null;
+        mCameraLifecycle.onSessionClosed();
+    }
+
     /**
      * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
      * This method should be called after the camera preview size is determined in
@@ -891,21 +1690,23 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
      */
     private void configureTransform(int viewWidth, int viewHeight) {
         Activity activity = getActivity();
-        if (null == mTextureView || null == mPreviewSize || null == activity) {
+        CameraOutputs outputs = mOutputs;
+        if (null == mTextureView || null == outputs || null == activity) {
             return;
         }
+        Size previewSize = outputs.previewSize;
         int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
         Matrix matrix = new Matrix();
         RectF viewRect = new RectF(0, 0, viewWidth, viewHeight);
-        RectF bufferRect = new RectF(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        RectF bufferRect = new RectF(0, 0, previewSize.getHeight(), previewSize.getWidth());
         float centerX = viewRect.centerX();
         float centerY = viewRect.centerY();
         if (Surface.ROTATION_90 == rotation || Surface.ROTATION_270 == rotation) {
             bufferRect.offset(centerX - bufferRect.centerX(), centerY - bufferRect.centerY());
             matrix.setRectToRect(viewRect, bufferRect, Matrix.ScaleToFit.FILL);
             float scale = Math.max(
-                    (float) viewHeight / mPreviewSize.getHeight(),
-                    (float) viewWidth / mPreviewSize.getWidth());
+                    (float) viewHeight / previewSize.getHeight(),
+                    (float) viewWidth / previewSize.getWidth());
             matrix.postScale(scale, scale, centerX, centerY);
             matrix.postRotate(90 * (rotation - 2), centerX, centerY);
         } else if (Surface.ROTATION_180 == rotation) {
@@ -914,21 +1715,6 @@ public class CameraFragment extends Fragment implements ActivityCompat.OnRequest
         mTextureView.setTransform(matrix);
     }
 
-
-    /**
-     * Compares two {@code Size}s based on their areas.
-     */
-    static class CompareSizesByArea implements Comparator<Size> {
-
-        @Override
-        public int compare(Size lhs, Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
-                    (long) rhs.getWidth() * rhs.getHeight());
-        }
-
-    }
-
     /**
      * Shows an error message dialog.
      */
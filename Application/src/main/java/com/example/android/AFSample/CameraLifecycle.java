@@ -0,0 +1,329 @@
+package com.example.android.AFSample;
+
+import java.util.ArrayList;
+
+/**
+ * The lifecycle of the camera device and its session, as a state machine run on the camera thread:
+ * <pre>
+ *   CLOSED -&gt; OPENING -&gt; OPEN -&gt; CONFIGURING -&gt; STREAMING -&gt; CLOSING -&gt; CLOSED
+ *                         ^--------------------------'  (session recreated)
+ * </pre>
+ * {@link #open} and {@link #close} may be called from any thread and never wait: they post the
+ * request to the camera thread and report its outcome to an optional {@link Callback} there.
+ * Requests are coalesced by the state they want. Opening while the camera is opening or open, or
+ * closing while it's closing or closed, only adds a callback. A close while the device is still
+ * opening closes it as soon as it opens, since an open can't be cancelled. An open while it's
+ * closing reopens it once it's closed.
+ * <p>
+ * The {@link Host} does the camera calls and reports their results through the {@code on...}
+ * methods, on the camera thread. The time spent opening, configuring and closing is kept in
+ * {@link LatencyHistogram}s.
+ */
+class CameraLifecycle {
+
+    static final int CLOSED = 0;
+    static final int OPENING = 1;
+    static final int OPEN = 2;
+    static final int CONFIGURING = 3;
+    static final int STREAMING = 4;
+    static final int CLOSING = 5;
+
+    private static final String[] STATE_NAMES = {
+            "closed", "opening", "open", "configuring", "streaming", "closing"};
+
+    /**
+     * Does the camera calls, on the camera thread.
+     */
+    interface Host {
+        /**
+         * Starts opening the device. The outcome is reported with {@link #onOpened} or
+         * {@link #onOpenFailed}, which may be called before this returns.
+         */
+        void openDevice();
+
+        /**
+         * Called when the device has opened and is still wanted, to create the session if it can.
+         * Creating it is reported with {@link #onConfiguring}.
+         */
+        void startSession();
+
+        /**
+         * Closes the session and starts closing the device. The end is reported with
+         * {@link #onClosed}.
+         */
+        void closeDevice();
+
+        long nanoTime();
+    }
+
+    /**
+     * The outcome of a request, called on the camera thread.
+     */
+    interface Callback {
+        /**
+         * @param success Whether the camera reached the requested state: false for an open that
+         *                failed or was overtaken by a close, and for a close overtaken by an open
+         *                before the device started closing.
+         */
+        void onComplete(boolean success);
+    }
+
+    private final AfCommandScheduler.Dispatcher mDispatcher;
+    private final Host mHost;
+
+    /**
+     * The state wanted by the last request made, on any thread.
+     */
+    private volatile boolean mOpenRequested;
+
+    private volatile int mState = CLOSED;
+
+    // Only touched on the camera thread.
+    private boolean mWantOpen;
+    private long mStateStartNanos;
+    private long mOpenStartNanos;
+    private boolean mFirstStream;
+    private final ArrayList<Callback> mOpenCallbacks = new ArrayList<>();
+    private final ArrayList<Callback> mCloseCallbacks = new ArrayList<>();
+    private long mTransitions;
+    private long mCoalesced;
+    private long mFailures;
+    private final LatencyHistogram mOpenLatency = new LatencyHistogram("opening");
+    private final LatencyHistogram mConfigureLatency = new LatencyHistogram("configuring");
+    private final LatencyHistogram mCloseLatency = new LatencyHistogram("closing");
+    private final LatencyHistogram mOpenToStreaming = new LatencyHistogram("open_to_streaming");
+
+    /**
+     * @param dispatcher Runs the requests on the camera thread
+     */
+    CameraLifecycle(AfCommandScheduler.Dispatcher dispatcher, Host host) {
+        mDispatcher = dispatcher;
+        mHost = host;
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * Returns whether the last request made, even one that hasn't run yet, was an open.
+     */
+    boolean isOpenRequested() {
+        return mOpenRequested;
+    }
+
+    static String stateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    /**
+     * Opens the camera unless it's open or opening already. May be called on any thread.
+     *
+     * @param callback Called on the camera thread once the device is open or the open failed. May
+     *                 be null.
+     */
+    void open(final Callback callback) {
+        mOpenRequested = true;
+        mDispatcher.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                doOpen(callback);
+            }
+        }, 0);
+    }
+
+    /**
+     * Closes the camera unless it's closed or closing already. May be called on any thread.
+     *
+     * @param callback Called on the camera thread once the device is closed. May be null.
+     */
+    void close(final Callback callback) {
+        mOpenRequested = false;
+        mDispatcher.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                doClose(callback);
+            }
+        }, 0);
+    }
+
+    /**
+     * Called on the camera thread when the device has opened.
+     */
+    void onOpened() {
+        if (mState != OPENING) return;
+        enter(OPEN);
+        if (!mWantOpen) {
+            complete(mOpenCallbacks, false);
+            startClosing();
+            return;
+        }
+        complete(mOpenCallbacks, true);
+        mHost.startSession();
+    }
+
+    /**
+     * Called on the camera thread when the device couldn't be opened.
+     */
+    void onOpenFailed() {
+        if (mState != OPENING) return;
+        mFailures++;
+        mWantOpen = false;
+        enter(CLOSED);
+        complete(mOpenCallbacks, false);
+        complete(mCloseCallbacks, true);
+    }
+
+    /**
+     * Called on the camera thread when a session is being created on the open device.
+     */
+    void onConfiguring() {
+        if (mState == OPEN || mState == STREAMING) enter(CONFIGURING);
+    }
+
+    /**
+     * Called on the camera thread when the repeating request has started.
+     */
+    void onStreaming() {
+        if (mState != CONFIGURING && mState != OPEN) return;
+        enter(STREAMING);
+        if (mFirstStream) {
+            mFirstStream = false;
+            mOpenToStreaming.record(mHost.nanoTime() - mOpenStartNanos);
+        }
+    }
+
+    /**
+     * Called on the camera thread when the session has been closed or failed to configure, with
+     * the device kept open.
+     */
+    void onSessionClosed() {
+        if (mState == CONFIGURING || mState == STREAMING) enter(OPEN);
+    }
+
+    /**
+     * Called on the camera thread when the device was disconnected or hit an error.
+     */
+    void onDisconnected() {
+        if (mState == CLOSED || mState == CLOSING) return;
+        mFailures++;
+        mWantOpen = false;
+        complete(mOpenCallbacks, false);
+        startClosing();
+    }
+
+    /**
+     * Called on the camera thread when the device has closed.
+     */
+    void onClosed() {
+        if (mState == CLOSED) return;
+        enter(CLOSED);
+        complete(mCloseCallbacks, true);
+        if (mWantOpen) startOpening();
+    }
+
+    private void doOpen(Callback callback) {
+        mWantOpen = true;
+        switch (mState) {
+            case CLOSED:
+                if (callback != null) mOpenCallbacks.add(callback);
+                startOpening();
+                break;
+            case OPENING:
+                // Kept open when it opens.
+                mCoalesced++;
+                complete(mCloseCallbacks, false);
+                if (callback != null) mOpenCallbacks.add(callback);
+                break;
+            case CLOSING:
+                // Reopened once closed.
+                mCoalesced++;
+                if (callback != null) mOpenCallbacks.add(callback);
+                break;
+            default:
+                mCoalesced++;
+                if (callback != null) callback.onComplete(true);
+                break;
+        }
+    }
+
+    private void doClose(Callback callback) {
+        mWantOpen = false;
+        switch (mState) {
+            case CLOSED:
+                mCoalesced++;
+                if (callback != null) callback.onComplete(true);
+                break;
+            case OPENING:
+                // Closed as soon as it opens.
+                mCoalesced++;
+                if (callback != null) mCloseCallbacks.add(callback);
+                break;
+            case CLOSING:
+                // Not reopened once closed.
+                mCoalesced++;
+                complete(mOpenCallbacks, false);
+                if (callback != null) mCloseCallbacks.add(callback);
+                break;
+            default:
+                if (callback != null) mCloseCallbacks.add(callback);
+                startClosing();
+                break;
+        }
+    }
+
+    private void startOpening() {
+        mOpenStartNanos = mHost.nanoTime();
+        mFirstStream = true;
+        enter(OPENING);
+        mHost.openDevice();
+    }
+
+    private void startClosing() {
+        enter(CLOSING);
+        mHost.closeDevice();
+    }
+
+    private void enter(int state) {
+        long now = mHost.nanoTime();
+        switch (mState) {
+            case OPENING:
+                mOpenLatency.record(now - mStateStartNanos);
+                break;
+            case CONFIGURING:
+                mConfigureLatency.record(now - mStateStartNanos);
+                break;
+            case CLOSING:
+                mCloseLatency.record(now - mStateStartNanos);
+                break;
+        }
+        if (state == CLOSED) mFirstStream = false;
+        mState = state;
+        mStateStartNanos = now;
+        mTransitions++;
+    }
+
+    private static void complete(ArrayList<Callback> callbacks, boolean success) {
+        if (callbacks.isEmpty()) return;
+        // A callback may make a new request, which is only queued behind this one.
+        Callback[] pending = callbacks.toArray(new Callback[callbacks.size()]);
+        callbacks.clear();
+        for (Callback callback : pending) callback.onComplete(success);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CameraLifecycle{state=").append(stateName(mState))
+                .append(", transitions=").append(mTransitions)
+                .append(", coalesced=").append(mCoalesced)
+                .append(", failures=").append(mFailures).append("}\n");
+        mOpenLatency.appendText(sb);
+        sb.append('\n');
+        mConfigureLatency.appendText(sb);
+        sb.append('\n');
+        mOpenToStreaming.appendText(sb);
+        sb.append('\n');
+        mCloseLatency.appendText(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.android.AFSample;
+
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers what {@link CameraFragment} learned about the device's camera, so reopening the camera
+ * (on resume, on surface switches) doesn't have to query every camera's characteristics and choose
+ * a preview size again.
+ * <p>
+ * The profile is kept in memory for the process and persisted to a small binary file. It's thrown
+ * away when the OS build fingerprint or the list of camera ids changes.
+ */
+class CameraProfileCache {
+
+    private static final String TAG = "CameraProfileCache";
+
+    private static final int FILE_VERSION = 4;
+
+    private static CameraProfileCache sInstance;
+
+    /**
+     * What we use of a camera's characteristics.
+     */
+    static final class Profile {
+        final String cameraId;
+        final Rect activeArraySize;
+        final int sensorOrientation;
+        /**
+         * {@code LENS_INFO_MINIMUM_FOCUS_DISTANCE} in diopters, 0 for fixed focus lenses.
+         */
+        final float minFocusDistance;
+        /**
+         * Output sizes for {@code SurfaceTexture}, as parallel arrays.
+         */
+        final int[] outputWidths;
+        final int[] outputHeights;
+        /**
+         * Minimum frame duration of every output size, in nanoseconds.
+         */
+        final long[] minFrameDurations;
+        /**
+         * Output sizes for {@code YUV_420_888} and their minimum frame durations.
+         */
+        final int[] yuvWidths;
+        final int[] yuvHeights;
+        final long[] yuvMinFrameDurations;
+
+        Profile(String cameraId, Rect activeArraySize, int sensorOrientation, float minFocusDistance,
+                int[] outputWidths, int[] outputHeights, long[] minFrameDurations, int[] yuvWidths,
+                int[] yuvHeights, long[] yuvMinFrameDurations) {
+            this.cameraId = cameraId;
+            this.activeArraySize = activeArraySize;
+            this.sensorOrientation = sensorOrientation;
+            this.minFocusDistance = minFocusDistance;
+            this.outputWidths = outputWidths;
+            this.outputHeights = outputHeights;
+            this.minFrameDurations = minFrameDurations;
+            this.yuvWidths = yuvWidths;
+            this.yuvHeights = yuvHeights;
+            this.yuvMinFrameDurations = yuvMinFrameDurations;
+        }
+    }
+
+    private final File mFile;
+
+    // Guarded by this.
+    private boolean mLoaded;
+    private String mFingerprint;
+    private String[] mCameraIds;
+    private Profile mProfile;
+    private final Map<String, Size> mPreviewSizes = new HashMap<>();
+
+    private CameraProfileCache(File file) {
+        mFile = file;
+    }
+
+    static synchronized CameraProfileCache getInstance(File filesDir) {
+        if (sInstance == null) sInstance = new CameraProfileCache(new File(filesDir, "camera_profile.bin"));
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached profile, or null if there is none or the device changed since it was saved.
+     *
+     * @param cameraIds The current {@code CameraManager.getCameraIdList()}
+     */
+    synchronized Profile getProfile(String[] cameraIds) {
+        if (!mLoaded) {
+            mLoaded = true;
+            load();
+        }
+        if (mProfile == null) return null;
+        if (!Build.FINGERPRINT.equals(mFingerprint) || !Arrays.equals(cameraIds, mCameraIds)) {
+            Log.i(TAG, "Device changed, dropping the camera profile");
+            clear();
+            return null;
+        }
+        return mProfile;
+    }
+
+    /**
+     * Replaces the cached profile and forgets the preview sizes chosen for the previous one.
+     */
+    synchronized void setProfile(String[] cameraIds, Profile profile) {
+        mLoaded = true;
+        mFingerprint = Build.FINGERPRINT;
+        mCameraIds = cameraIds.clone();
+        mProfile = profile;
+        mPreviewSizes.clear();
+    }
+
+    /**
+     * Returns the preview size chosen for a display configuration, or null.
+     */
+    synchronized Size getPreviewSize(String displayConfig) {
+        return mPreviewSizes.get(displayConfig);
+    }
+
+    synchronized void putPreviewSize(String displayConfig, Size previewSize) {
+        mPreviewSizes.put(displayConfig, previewSize);
+    }
+
+    /**
+     * Builds the key of a display configuration for {@link #getPreviewSize}.
+     */
+    static String displayConfig(int displayRotation, int viewWidth, int viewHeight, int displayWidth, int displayHeight) {
+        return displayRotation + ":" + viewWidth + "x" + viewHeight + ":" + displayWidth + "x" + displayHeight;
+    }
+
+    /**
+     * Writes the cache to disk. Does I/O, so don't call it on the UI or GL thread.
+     */
+    synchronized void save() {
+        if (mProfile == null) return;
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(mFingerprint);
+            out.writeInt(mCameraIds.length);
+            for (String id : mCameraIds) out.writeUTF(id);
+            out.writeUTF(mProfile.cameraId);
+            Rect active = mProfile.activeArraySize;
+            out.writeInt(active.left);
+            out.writeInt(active.top);
+            out.writeInt(active.right);
+            out.writeInt(active.bottom);
+            out.writeInt(mProfile.sensorOrientation);
+            out.writeFloat(mProfile.minFocusDistance);
+            writeSizes(out, mProfile.outputWidths, mProfile.outputHeights, mProfile.minFrameDurations);
+            writeSizes(out, mProfile.yuvWidths, mProfile.yuvHeights, mProfile.yuvMinFrameDurations);
+            out.writeInt(mPreviewSizes.size());
+            for (Map.Entry<String, Size> entry : mPreviewSizes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().getWidth());
+                out.writeInt(entry.getValue().getHeight());
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mFile)) tmpFile.delete();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the camera profile", e);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void load() {
+        if (!mFile.isFile()) return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_VERSION) return;
+            mFingerprint = in.readUTF();
+            mCameraIds = new String[in.readInt()];
+            for (int i = 0; i < mCameraIds.length; i++) mCameraIds[i] = in.readUTF();
+            String cameraId = in.readUTF();
+            Rect active = new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            int sensorOrientation = in.readInt();
+            float minFocusDistance = in.readFloat();
+            int outputSizes = in.readInt();
+            int[] outputWidths = new int[outputSizes];
+            int[] outputHeights = new int[outputSizes];
+            long[] minFrameDurations = new long[outputSizes];
+            readSizes(in, outputWidths, outputHeights, minFrameDurations);
+            int yuvSizes = in.readInt();
+            int[] yuvWidths = new int[yuvSizes];
+            int[] yuvHeights = new int[yuvSizes];
+            long[] yuvMinFrameDurations = new long[yuvSizes];
+            readSizes(in, yuvWidths, yuvHeights, yuvMinFrameDurations);
+            int previewSizes = in.readInt();
+            for (int i = 0; i < previewSizes; i++) {
+                mPreviewSizes.put(in.readUTF(), new Size(in.readInt(), in.readInt()));
+            }
+            mProfile = new Profile(cameraId, active, sensorOrientation, minFocusDistance, outputWidths,
+                    outputHeights, minFrameDurations, yuvWidths, yuvHeights, yuvMinFrameDurations);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not load the camera profile", e);
+            clear();
+            mFile.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void writeSizes(DataOutputStream out, int[] widths, int[] heights, long[] minFrameDurations)
+            throws IOException {
+        out.writeInt(widths.length);
+        for (int i = 0; i < widths.length; i++) {
+            out.writeInt(widths[i]);
+            out.writeInt(heights[i]);
+            out.writeLong(minFrameDurations[i]);
+        }
+    }
+
+    private static void readSizes(DataInputStream in, int[] widths, int[] heights, long[] minFrameDurations)
+            throws IOException {
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = in.readInt();
+            heights[i] = in.readInt();
+            minFrameDurations[i] = in.readLong();
+        }
+    }
+
+    private void clear() {
+        mFingerprint = null;
+        mCameraIds = null;
+        mProfile = null;
+        mPreviewSizes.clear();
+    }
+}
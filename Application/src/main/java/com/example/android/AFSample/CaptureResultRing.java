@@ -0,0 +1,177 @@
+package com.example.android.AFSample;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The metadata of the last {@link #CAPACITY} capture results, stored as primitives so the results
+ * themselves don't have to be kept.
+ * <p>
+ * There is one writer, the thread processing the capture results, and any number of readers. Each
+ * slot is guarded by a sequence word written before and after its fields: a reader copies the
+ * fields between two reads of the sequence and retries or gives up if they differ, so readers never
+ * block the writer and never see a half written record. All words are read and written through an
+ * {@link AtomicLongArray}, which gives the ordering the sequence check relies on.
+ * <p>
+ * Records are addressed by their index since the ring was created; {@link #getCount()} is the index
+ * of the next record. Writing and reading records doesn't allocate.
+ */
+class CaptureResultRing {
+
+    static final int CAPACITY = 64;
+
+    /**
+     * Value stored for missing keys, as in {@link AfController#UNKNOWN}.
+     */
+    static final int UNKNOWN = -1;
+
+    /**
+     * A copy of one record. Reused by its reader.
+     */
+    static final class Record {
+        long sensorTimestampNanos;
+        long frameNumber;
+        int afState;
+        int afTrigger;
+        int lensState;
+        int iso;
+        float focusDistance;
+        long exposureTimeNanos;
+        int afRegionLeft;
+        int afRegionTop;
+        int afRegionRight;
+        int afRegionBottom;
+
+        @Override
+        public String toString() {
+            return "Record{frame=" + frameNumber + ", timestamp=" + sensorTimestampNanos
+                    + ", afState=" + afState + ", afTrigger=" + afTrigger + ", lensState=" + lensState
+                    + ", focusDistance=" + focusDistance + ", exposure=" + exposureTimeNanos + "ns, iso=" + iso
+                    + ", afRegion=[" + afRegionLeft + "," + afRegionTop + "," + afRegionRight + "," + afRegionBottom + "]}";
+        }
+    }
+
+    private static final int MASK = CAPACITY - 1;
+
+    // Words of a slot.
+    private static final int SEQUENCE = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int FRAME_NUMBER = 2;
+    private static final int STATES = 3;
+    private static final int FOCUS_DISTANCE = 4;
+    private static final int EXPOSURE_TIME = 5;
+    private static final int AF_REGION_LEFT_TOP = 6;
+    private static final int AF_REGION_RIGHT_BOTTOM = 7;
+    private static final int STRIDE = 8;
+
+    /**
+     * Times a reader retries a slot the writer is overwriting before giving up.
+     */
+    private static final int READ_RETRIES = 4;
+
+    private final AtomicLongArray mSlots = new AtomicLongArray(CAPACITY * STRIDE);
+    private volatile long mCount;
+
+    /**
+     * Appends a record, overwriting the oldest one. Only called by the writer thread.
+     */
+    void add(long sensorTimestampNanos, long frameNumber, int afState, int afTrigger, int lensState,
+             float focusDistance, long exposureTimeNanos, int iso,
+             int afRegionLeft, int afRegionTop, int afRegionRight, int afRegionBottom) {
+        long index = mCount;
+        int base = (int) (index & MASK) * STRIDE;
+        // Odd while the slot is being written, then even and unique to the record.
+        mSlots.set(base + SEQUENCE, 2 * index + 1);
+        mSlots.set(base + TIMESTAMP, sensorTimestampNanos);
+        mSlots.set(base + FRAME_NUMBER, frameNumber);
+        mSlots.set(base + STATES, (afState & 0xFFL) | (afTrigger & 0xFFL) << 8 | (lensState & 0xFFL) << 16
+                | (long) iso << 32);
+        mSlots.set(base + FOCUS_DISTANCE, Float.floatToRawIntBits(focusDistance));
+        mSlots.set(base + EXPOSURE_TIME, exposureTimeNanos);
+        mSlots.set(base + AF_REGION_LEFT_TOP, pack(afRegionLeft, afRegionTop));
+        mSlots.set(base + AF_REGION_RIGHT_BOTTOM, pack(afRegionRight, afRegionBottom));
+        mSlots.set(base + SEQUENCE, 2 * index + 2);
+        mCount = index + 1;
+    }
+
+    /**
+     * The number of records added so far, i.e. the index of the next one.
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Copies record {@code index} to {@code out}.
+     *
+     * @return False if the record hasn't been written yet or was already overwritten
+     */
+    boolean read(long index, Record out) {
+        if (index < 0) return false;
+        int base = (int) (index & MASK) * STRIDE;
+        long expected = 2 * index + 2;
+        for (int i = 0; i < READ_RETRIES; i++) {
+            long sequence = mSlots.get(base + SEQUENCE);
+            if (sequence != expected) {
+                // Not written yet, overwritten, or being written.
+                if (sequence == expected - 1) continue;
+                return false;
+            }
+            out.sensorTimestampNanos = mSlots.get(base + TIMESTAMP);
+            out.frameNumber = mSlots.get(base + FRAME_NUMBER);
+            long states = mSlots.get(base + STATES);
+            out.afState = unpackByte(states);
+            out.afTrigger = unpackByte(states >> 8);
+            out.lensState = unpackByte(states >> 16);
+            out.iso = (int) (states >> 32);
+            out.focusDistance = Float.intBitsToFloat((int) mSlots.get(base + FOCUS_DISTANCE));
+            out.exposureTimeNanos = mSlots.get(base + EXPOSURE_TIME);
+            long leftTop = mSlots.get(base + AF_REGION_LEFT_TOP);
+            long rightBottom = mSlots.get(base + AF_REGION_RIGHT_BOTTOM);
+            out.afRegionLeft = (int) leftTop;
+            out.afRegionTop = (int) (leftTop >> 32);
+            out.afRegionRight = (int) rightBottom;
+            out.afRegionBottom = (int) (rightBottom >> 32);
+            return mSlots.get(base + SEQUENCE) == expected;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the most recent record to {@code out}.
+     *
+     * @return Its index, or -1 if there is none
+     */
+    long readLatest(Record out) {
+        for (int i = 0; i < READ_RETRIES; i++) {
+            long index = mCount - 1;
+            if (index < 0) return -1;
+            if (read(index, out)) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the record of the frame with the given sensor timestamp, newest first.
+     *
+     * @return True if it was found and copied to {@code out}
+     */
+    boolean findByTimestamp(long sensorTimestampNanos, Record out) {
+        long count = mCount;
+        for (long index = count - 1; index >= 0 && index >= count - CAPACITY; index--) {
+            int base = (int) (index & MASK) * STRIDE;
+            if (mSlots.get(base + TIMESTAMP) != sensorTimestampNanos) continue;
+            // The timestamp may belong to a record being written; read() checks.
+            if (read(index, out) && out.sensorTimestampNanos == sensorTimestampNanos) return true;
+        }
+        return false;
+    }
+
+    private static long pack(int low, int high) {
+        return (low & 0xFFFFFFFFL) | (long) high << 32;
+    }
+
+    private static int unpackByte(long value) {
+        int b = (int) (value & 0xFF);
+        return b == 0xFF ? UNKNOWN : b;
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.AFSample;
+
+/**
+ * Measures how long a tap-to-focus takes, split by AF mode.
+ * <p>
+ * For every tap it timestamps the touch, the submission of the request carrying the new AF
+ * regions, the first capture result of that request and the final focused / not focused state,
+ * and records the latencies from the touch into {@link LatencyHistogram}s. A newer tap abandons
+ * the measurement of an older one that hasn't finished yet.
+ * <p>
+ * {@link #onTouch} is called from the UI thread; everything else from the camera thread, which is
+ * the only writer of the histograms.
+ */
+class FocusLatencyTracker {
+
+    static final int MODE_AUTO = 0;
+    static final int MODE_CONTINUOUS = 1;
+    private static final String[] MODE_NAMES = {"auto", "continuous_video"};
+
+    private static final int PHASE_NONE = 0;
+    private static final int PHASE_SUBMITTED = 1;
+    private static final int PHASE_APPLIED = 2;
+    private static final int PHASE_SCANNING = 3;
+
+    private final LatencyHistogram[] mTouchToSubmit = new LatencyHistogram[2];
+    private final LatencyHistogram[] mTouchToApplied = new LatencyHistogram[2];
+    private final LatencyHistogram[] mTouchToFocused = new LatencyHistogram[2];
+    private final LatencyHistogram[] mTouchToFailed = new LatencyHistogram[2];
+
+    // Written by the UI thread. mTouchMode is written before the volatile mTouchNanos.
+    private int mTouchMode;
+    private volatile long mTouchNanos = -1;
+
+    // Camera thread state.
+    private long mConsumedTouchNanos = -1;
+    private long mStartNanos;
+    private int mMode;
+    private int mPhase = PHASE_NONE;
+    private Object mRequest;
+
+    FocusLatencyTracker() {
+        for (int mode = 0; mode < 2; mode++) {
+            mTouchToSubmit[mode] = new LatencyHistogram(MODE_NAMES[mode] + ".touch_to_submit");
+            mTouchToApplied[mode] = new LatencyHistogram(MODE_NAMES[mode] + ".touch_to_regions_applied");
+            mTouchToFocused[mode] = new LatencyHistogram(MODE_NAMES[mode] + ".touch_to_focused");
+            mTouchToFailed[mode] = new LatencyHistogram(MODE_NAMES[mode] + ".touch_to_not_focused");
+        }
+    }
+
+    /**
+     * Called on the UI thread when the user taps the preview.
+     */
+    void onTouch(long nanos, int mode) {
+        mTouchMode = mode;
+        mTouchNanos = nanos;
+    }
+
+    /**
+     * Called on the camera thread when a request with new AF regions has been submitted.
+     *
+     * @param request The submitted request, matched by identity against the capture results
+     */
+    void onSubmitted(long nanos, Object request) {
+        long touchNanos = mTouchNanos;
+        if (touchNanos < 0 || touchNanos == mConsumedTouchNanos) return;
+        mConsumedTouchNanos = touchNanos;
+        mStartNanos = touchNanos;
+        mMode = mTouchMode;
+        mRequest = request;
+        mPhase = PHASE_SUBMITTED;
+        mTouchToSubmit[mMode].record(nanos - mStartNanos);
+    }
+
+    /**
+     * Called on the camera thread for every capture result.
+     *
+     * @param request The request the result belongs to
+     * @param afState The {@link AfController} state after consuming this result
+     */
+    @SuppressWarnings("fallthrough")
+    void onResult(long nanos, Object request, int afState) {
+        switch (mPhase) {
+            case PHASE_SUBMITTED:
+                if (request != mRequest) return;
+                mTouchToApplied[mMode].record(nanos - mStartNanos);
+                mRequest = null;
+                mPhase = PHASE_APPLIED;
+                // fall through, the AF may already be scanning on this frame
+            case PHASE_APPLIED:
+                if (afState == AfController.STATE_SCANNING) mPhase = PHASE_SCANNING;
+                break;
+            case PHASE_SCANNING:
+                if (afState == AfController.STATE_FOCUSED) {
+                    mTouchToFocused[mMode].record(nanos - mStartNanos);
+                    mPhase = PHASE_NONE;
+                } else if (afState == AfController.STATE_FAILED) {
+                    mTouchToFailed[mMode].record(nanos - mStartNanos);
+                    mPhase = PHASE_NONE;
+                }
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Returns a JSON snapshot of all the histograms, in milliseconds.
+     */
+    String toJson() {
+        StringBuilder sb = new StringBuilder("{\"focus_latency\":[");
+        for (int mode = 0; mode < 2; mode++) {
+            if (mode > 0) sb.append(',');
+            mTouchToSubmit[mode].appendJson(sb);
+            sb.append(',');
+            mTouchToApplied[mode].appendJson(sb);
+            sb.append(',');
+            mTouchToFocused[mode].appendJson(sb);
+            sb.append(',');
+            mTouchToFailed[mode].appendJson(sb);
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Returns a text snapshot of all the histograms, one per line.
+     */
+    String toText() {
+        StringBuilder sb = new StringBuilder();
+        for (int mode = 0; mode < 2; mode++) {
+            mTouchToSubmit[mode].appendText(sb);
+            sb.append('\n');
+            mTouchToApplied[mode].appendText(sb);
+            sb.append('\n');
+            mTouchToFocused[mode].appendText(sb);
+            sb.append('\n');
+            mTouchToFailed[mode].appendText(sb);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
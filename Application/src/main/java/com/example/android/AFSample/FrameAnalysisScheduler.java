@@ -0,0 +1,302 @@
+package com.example.android.AFSample;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a set of {@link Kernel}s over a region of every analyzed frame, split into row tiles that
+ * are processed in parallel.
+ * <p>
+ * The thread calling {@link #analyze} and up to {@code parallelism - 1} pool threads claim tiles
+ * from a shared counter until none are left, so a frame takes about {@code 1 / parallelism} of the
+ * single threaded time and a slow core doesn't hold back the others. Every tile writes its sums to
+ * its own slice of an array, and the calling thread merges the slices once the last tile is done,
+ * so no locks are taken on the way. Each frame is published to the pool threads as a {@link Job}
+ * with its own tile counters, so a pool thread that starts late can only claim tiles of the frame
+ * it picked up, and only while that frame is still being analyzed. Frames that waited longer than
+ * the maximum age for the analyzer are skipped instead of delaying the fresher ones behind them. A
+ * kernel that throws still counts its tile as done, and {@link #analyze} rethrows the failure once
+ * every tile is.
+ * <p>
+ * The CPU time of every kernel and the wall time of every frame are recorded. {@link #analyze} must
+ * be called from a single thread.
+ */
+class FrameAnalysisScheduler implements AnalysisPipeline.Analyzer {
+
+    interface Kernel {
+        String getName();
+
+        /**
+         * Number of {@code long} sums the kernel accumulates.
+         */
+        int getAccumulators();
+
+        /**
+         * Adds the sums over {@code [left, right) x [top, bottom)} to
+         * {@code acc[offset..offset + getAccumulators())}. The rectangle is at least one pixel inside
+         * the image, and two on the right.
+         */
+        void accumulate(AnalysisFrame frame, int left, int top, int right, int bottom, long[] acc, int offset);
+
+        /**
+         * Turns the merged sums into the kernel's value.
+         */
+        double finish(long[] acc, int offset);
+    }
+
+    interface RegionSource {
+        /**
+         * Fills {left, top, right, bottom} with the region of the frame to analyze, in image
+         * pixels.
+         */
+        void getRegion(AnalysisFrame frame, int[] out);
+    }
+
+    interface Listener {
+        /**
+         * Called on the analyzing thread with the results of a frame.
+         *
+         * @param timestampNanos The sensor timestamp of the frame
+         * @param results        Only valid during the call
+         */
+        void onFrameAnalyzed(long timestampNanos, Results results);
+    }
+
+    /**
+     * The merged sums and values of the kernels for one frame. Reused for every frame.
+     */
+    static final class Results {
+        private final int[] mOffsets;
+        private final long[] mSums;
+        private final double[] mValues;
+
+        Results(int[] offsets, int stride) {
+            mOffsets = offsets;
+            mSums = new long[stride];
+            mValues = new double[offsets.length];
+        }
+
+        double getValue(int kernel) {
+            return mValues[kernel];
+        }
+
+        long getSum(int kernel, int index) {
+            return mSums[mOffsets[kernel] + index];
+        }
+    }
+
+    /**
+     * One frame being analyzed: its region and tiles, and the counters the threads share for it.
+     */
+    private static final class Job {
+        final AnalysisFrame frame;
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+        final int tiles;
+        final Thread waiter;
+        final AtomicInteger nextTile = new AtomicInteger();
+        final AtomicInteger remainingTiles;
+        /**
+         * What a kernel threw on one of the tiles; the remaining tiles are then skipped.
+         */
+        volatile Throwable failure;
+
+        Job(AnalysisFrame frame, int left, int top, int right, int bottom, int tiles, Thread waiter) {
+            this.frame = frame;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.tiles = tiles;
+            this.waiter = waiter;
+            remainingTiles = new AtomicInteger(tiles);
+        }
+    }
+
+    /**
+     * Tiles per thread, so tiles that are slower than others (e.g. more edges) even out.
+     */
+    private static final int TILES_PER_THREAD = 2;
+
+    private static final int MIN_TILE_ROWS = 8;
+
+    private final Kernel[] mKernels;
+    private final int[] mOffsets;
+    private final int mStride;
+    private final int mMaxTiles;
+    private final long mMaxFrameAgeNanos;
+    private final RegionSource mRegionSource;
+    private final Listener mListener;
+    private final ThreadPoolExecutor mExecutor;
+    private final Runnable[] mHelpers;
+
+    // Per tile sums and kernel CPU times, each tile only writes its own slice. The tiles of a frame
+    // are all done before the next frame clears them.
+    private final long[] mTileSums;
+    private final long[] mTileNanos;
+
+    /**
+     * The frame being analyzed, or null between frames.
+     */
+    private volatile Job mJob;
+
+    // Only touched by the analyzing thread.
+    private final int[] mRegion = new int[4];
+    private final Results mResults;
+    private final LatencyHistogram mFrameTime = new LatencyHistogram("frame");
+    private final LatencyHistogram[] mKernelTimes;
+    private volatile long mAnalyzed;
+    private volatile long mSkipped;
+
+    /**
+     * @param kernels          The kernels to run, in the order of {@link Results#getValue}
+     * @param parallelism      Threads working on a frame, including the analyzing thread
+     * @param maxFrameAgeNanos Frames older than this when analysis starts are skipped
+     */
+    FrameAnalysisScheduler(Kernel[] kernels, int parallelism, long maxFrameAgeNanos,
+                           RegionSource regionSource, Listener listener) {
+        mKernels = kernels.clone();
+        mOffsets = new int[kernels.length];
+        mKernelTimes = new LatencyHistogram[kernels.length];
+        int stride = 0;
+        for (int k = 0; k < kernels.length; k++) {
+            mOffsets[k] = stride;
+            stride += kernels[k].getAccumulators();
+            mKernelTimes[k] = new LatencyHistogram(kernels[k].getName());
+        }
+        mStride = stride;
+        mMaxTiles = parallelism * TILES_PER_THREAD;
+        mTileSums = new long[mMaxTiles * stride];
+        mTileNanos = new long[mMaxTiles * kernels.length];
+        mResults = new Results(mOffsets, stride);
+        mMaxFrameAgeNanos = maxFrameAgeNanos;
+        mRegionSource = regionSource;
+        mListener = listener;
+
+        int helpers = Math.max(0, parallelism - 1);
+        mHelpers = new Runnable[helpers];
+        for (int i = 0; i < helpers; i++) {
+            mHelpers[i] = new Runnable() {
+                @Override
+                public void run() {
+                    Job job = mJob;
+                    if (job != null) processTiles(job);
+                }
+            };
+        }
+        if (helpers > 0) {
+            // Idle threads go away, so the pool doesn't need to be shut down.
+            mExecutor = new ThreadPoolExecutor(helpers, helpers, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "FrameAnalysis-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Threads to use for frame analysis on this device: all cores but the ones the camera and UI
+     * threads need.
+     */
+    static int defaultParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+    }
+
+    @Override
+    public void analyze(AnalysisFrame frame) {
+        long startNanos = System.nanoTime();
+        if (startNanos - frame.acquiredNanos > mMaxFrameAgeNanos) {
+            mSkipped++;
+            return;
+        }
+        mRegionSource.getRegion(frame, mRegion);
+        // Keep the kernels' neighbourhood inside the image.
+        int left = Math.max(1, mRegion[0]);
+        int top = Math.max(1, mRegion[1]);
+        int right = Math.min(frame.width - 2, mRegion[2]);
+        int bottom = Math.min(frame.height - 1, mRegion[3]);
+        if (right <= left || bottom <= top) return;
+
+        int tiles = Math.max(1, Math.min(mMaxTiles, (bottom - top) / MIN_TILE_ROWS));
+        Arrays.fill(mTileSums, 0, tiles * mStride, 0);
+        Arrays.fill(mTileNanos, 0, tiles * mKernels.length, 0);
+        Job job = new Job(frame, left, top, right, bottom, tiles, Thread.currentThread());
+        mJob = job;
+
+        int helpers = Math.min(mHelpers.length, tiles - 1);
+        for (int i = 0; i < helpers; i++) mExecutor.execute(mHelpers[i]);
+        processTiles(job);
+        while (job.remainingTiles.get() > 0) LockSupport.park(this);
+        mJob = null;
+        if (job.failure instanceof Error) throw (Error) job.failure;
+        if (job.failure != null) throw (RuntimeException) job.failure;
+
+        long[] sums = mResults.mSums;
+        Arrays.fill(sums, 0);
+        for (int t = 0; t < tiles; t++) {
+            int base = t * mStride;
+            for (int j = 0; j < mStride; j++) sums[j] += mTileSums[base + j];
+        }
+        for (int k = 0; k < mKernels.length; k++) {
+            mResults.mValues[k] = mKernels[k].finish(sums, mOffsets[k]);
+            long nanos = 0;
+            for (int t = 0; t < tiles; t++) nanos += mTileNanos[t * mKernels.length + k];
+            mKernelTimes[k].record(nanos);
+        }
+        mFrameTime.record(System.nanoTime() - startNanos);
+        mAnalyzed++;
+        mListener.onFrameAnalyzed(frame.timestampNanos, mResults);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FrameAnalysisScheduler{analyzed=").append(mAnalyzed)
+                .append(", skipped=").append(mSkipped).append(", threads=").append(mHelpers.length + 1)
+                .append(", ").append(mFrameTime);
+        for (LatencyHistogram kernelTime : mKernelTimes) sb.append(", ").append(kernelTime);
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Claims and processes tiles of the job until there are none left. Once they're all claimed
+     * the job never hands out a tile again, so a thread still holding it does nothing.
+     */
+    private void processTiles(Job job) {
+        while (true) {
+            int tile = job.nextTile.getAndIncrement();
+            if (tile >= job.tiles) return;
+            int height = job.bottom - job.top;
+            int top = job.top + (int) ((long) height * tile / job.tiles);
+            int bottom = job.top + (int) ((long) height * (tile + 1) / job.tiles);
+            try {
+                for (int k = 0; k < mKernels.length && job.failure == null; k++) {
+                    long startNanos = System.nanoTime();
+                    mKernels[k].accumulate(job.frame, job.left, top, job.right, bottom, mTileSums,
+                            tile * mStride + mOffsets[k]);
+                    mTileNanos[tile * mKernels.length + k] = System.nanoTime() - startNanos;
+                }
+            } catch (RuntimeException | Error e) {
+                job.failure = e;
+            } finally {
+                // Counted down even if a kernel threw, or the analyzing thread would never wake up.
+                if (job.remainingTiles.decrementAndGet() == 0) LockSupport.unpark(job.waiter);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.android.AFSample;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLSurfaceView;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a {@link GLSurfaceView} in {@link GLSurfaceView#RENDERMODE_WHEN_DIRTY} so it draws
+ * exactly once per new camera frame.
+ * <p>
+ * Frames that arrive while a draw is already pending are coalesced into that draw, since
+ * {@code updateTexImage()} always latches the most recent frame. With {@link #PACING_VSYNC} the
+ * render request is additionally deferred to the next display refresh, so at most one frame is
+ * drawn per vsync.
+ * <p>
+ * Must be created on the UI thread.
+ */
+class FramePacer implements SurfaceTexture.OnFrameAvailableListener, Choreographer.FrameCallback {
+
+    /**
+     * Request a render as soon as a camera frame is available.
+     */
+    static final int PACING_IMMEDIATE = 0;
+
+    /**
+     * Request a render on the next vsync after a camera frame is available.
+     */
+    static final int PACING_VSYNC = 1;
+
+    private final GLSurfaceView mView;
+    private final int mPacing;
+    private final Choreographer mChoreographer;
+
+    /**
+     * Frames available since the renderer last latched one.
+     */
+    private final AtomicInteger mPendingFrames = new AtomicInteger();
+    private final AtomicBoolean mFrameCallbackPosted = new AtomicBoolean();
+    private volatile boolean mReleased;
+
+    // Written by the thread delivering onFrameAvailable.
+    private volatile long mAvailableFrames;
+    private volatile long mRenderRequests;
+
+    // Written by the GL thread.
+    private volatile long mDrawnFrames;
+    private volatile long mCoalescedFrames;
+    private volatile long mRedundantDraws;
+
+    FramePacer(GLSurfaceView view, int pacing) {
+        mView = view;
+        mPacing = pacing;
+        mChoreographer = pacing == PACING_VSYNC ? Choreographer.getInstance() : null;
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        mAvailableFrames++;
+        if (mPendingFrames.getAndIncrement() > 0 || mReleased) {
+            // A draw is already pending and will pick up this frame.
+            return;
+        }
+        if (mPacing == PACING_VSYNC) {
+            if (mFrameCallbackPosted.compareAndSet(false, true)) {
+                mChoreographer.postFrameCallback(this);
+            }
+        } else {
+            requestRender();
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameCallbackPosted.set(false);
+        if (!mReleased) requestRender();
+    }
+
+    /**
+     * Called by the renderer on the GL thread at the start of every draw.
+     *
+     * @return true if there is a new camera frame to latch
+     */
+    boolean onDrawFrame() {
+        int frames = mPendingFrames.getAndSet(0);
+        if (frames == 0) {
+            // Redraw requested by GLSurfaceView itself, e.g. after a resize.
+            mRedundantDraws++;
+            return false;
+        }
+        mDrawnFrames++;
+        mCoalescedFrames += frames - 1;
+        return true;
+    }
+
+    /**
+     * Stops requesting renders. Must be called before the view is paused or removed.
+     */
+    void release() {
+        mReleased = true;
+        if (mChoreographer != null) mChoreographer.removeFrameCallback(this);
+    }
+
+    @Override
+    public String toString() {
+        return "FramePacer{pacing=" + (mPacing == PACING_VSYNC ? "vsync" : "immediate")
+                + ", available=" + mAvailableFrames + ", renderRequests=" + mRenderRequests
+                + ", drawn=" + mDrawnFrames + ", coalesced=" + mCoalescedFrames
+                + ", redundantDraws=" + mRedundantDraws + "}";
+    }
+
+    private void requestRender() {
+        mRenderRequests++;
+        mView.requestRender();
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.android.AFSample;
+
+import java.util.Arrays;
+
+/**
+ * Collects per-frame timing of a preview path: the CPU time spent latching and drawing a frame,
+ * and the interval between the camera timestamps of consecutive frames.
+ * <p>
+ * A frame whose timestamp equals the previous one was presented twice. A frame that arrives more
+ * than {@link #JANK_FACTOR} times the median interval after the previous one is counted as jank,
+ * and the camera frames missing in between as skipped.
+ * <p>
+ * {@link #onFrame} is called from a single thread (the GL thread for {@link PreviewRenderer}).
+ * Every {@link #PUBLISH_INTERVAL} frames the rolling statistics over the last {@link #WINDOW}
+ * frames are published as an immutable {@link Snapshot}, so other threads can read them without
+ * locks.
+ */
+class FrameStats {
+
+    static final int WINDOW = 120;
+    static final int PUBLISH_INTERVAL = 30;
+    static final float JANK_FACTOR = 1.5f;
+
+    /**
+     * Rolling statistics over the last {@link #WINDOW} frames, plus totals since creation.
+     */
+    static final class Snapshot {
+        final long frames;
+        final long duplicateFrames;
+        final long skippedFrames;
+        final long jankFrames;
+        final double fps;
+        final double intervalP50Ms;
+        final double intervalP99Ms;
+        final double latchP50Ms;
+        final double latchP99Ms;
+        final double drawP50Ms;
+        final double drawP90Ms;
+        final double drawP99Ms;
+
+        Snapshot(long frames, long duplicateFrames, long skippedFrames, long jankFrames, double fps,
+                 double intervalP50Ms, double intervalP99Ms, double latchP50Ms, double latchP99Ms,
+                 double drawP50Ms, double drawP90Ms, double drawP99Ms) {
+            this.frames = frames;
+            this.duplicateFrames = duplicateFrames;
+            this.skippedFrames = skippedFrames;
+            this.jankFrames = jankFrames;
+            this.fps = fps;
+            this.intervalP50Ms = intervalP50Ms;
+            this.intervalP99Ms = intervalP99Ms;
+            this.latchP50Ms = latchP50Ms;
+            this.latchP99Ms = latchP99Ms;
+            this.drawP50Ms = drawP50Ms;
+            this.drawP90Ms = drawP90Ms;
+            this.drawP99Ms = drawP99Ms;
+        }
+
+        @Override
+        public String toString() {
+            return "frames=" + frames + " fps=" + round(fps)
+                    + " duplicate=" + duplicateFrames + " skipped=" + skippedFrames + " jank=" + jankFrames
+                    + " interval p50/p99=" + round(intervalP50Ms) + "/" + round(intervalP99Ms) + " ms"
+                    + " latch p50/p99=" + round(latchP50Ms) + "/" + round(latchP99Ms) + " ms"
+                    + " draw p50/p90/p99=" + round(drawP50Ms) + "/" + round(drawP90Ms) + "/" + round(drawP99Ms) + " ms";
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 100) / 100.0;
+        }
+    }
+
+    private final String mName;
+
+    // Rings of the last WINDOW frames, only touched by the writer thread.
+    private final long[] mIntervals = new long[WINDOW];
+    private final long[] mLatchTimes = new long[WINDOW];
+    private final long[] mDrawTimes = new long[WINDOW];
+    private final long[] mScratch = new long[WINDOW];
+    private int mIndex;
+    private int mFilled;
+    private long mLastTimestamp = -1;
+    private long mMedianInterval;
+
+    private long mFrames;
+    private long mDuplicateFrames;
+    private long mSkippedFrames;
+    private long mJankFrames;
+
+    private volatile Snapshot mSnapshot = new Snapshot(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    private volatile TelemetryLog mTelemetryLog;
+    private volatile int mTelemetrySurface;
+
+    FrameStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Also logs every frame to {@code log}, as coming from {@code surface}
+     * ({@link TelemetryLog#SURFACE_GL} or {@link TelemetryLog#SURFACE_TEXTURE_VIEW}). May be null.
+     */
+    void setTelemetryLog(TelemetryLog log, int surface) {
+        mTelemetrySurface = surface;
+        mTelemetryLog = log;
+    }
+
+    /**
+     * Records a frame.
+     *
+     * @param timestampNanos The camera timestamp of the frame ({@code SurfaceTexture.getTimestamp()})
+     * @param latchNanos     CPU time spent latching the frame ({@code updateTexImage()})
+     * @param drawNanos      CPU time spent drawing the frame
+     */
+    void onFrame(long timestampNanos, long latchNanos, long drawNanos) {
+        mFrames++;
+        long interval = mLastTimestamp < 0 ? 0 : timestampNanos - mLastTimestamp;
+        mLastTimestamp = timestampNanos;
+        if (interval == 0 && mFrames > 1) {
+            mDuplicateFrames++;
+        } else if (interval > 0 && mMedianInterval > 0 && interval > JANK_FACTOR * mMedianInterval) {
+            mJankFrames++;
+            mSkippedFrames += Math.max(1, Math.round((double) interval / mMedianInterval) - 1);
+        }
+
+        mIntervals[mIndex] = interval;
+        mLatchTimes[mIndex] = latchNanos;
+        mDrawTimes[mIndex] = drawNanos;
+        mIndex = (mIndex + 1) % WINDOW;
+        if (mFilled < WINDOW) mFilled++;
+
+        if (mFrames % PUBLISH_INTERVAL == 0) publish();
+
+        TelemetryLog log = mTelemetryLog;
+        if (log != null) log.logFrame(mTelemetrySurface, timestampNanos, latchNanos, drawNanos);
+    }
+
+    /**
+     * Returns the latest published statistics. Safe to call from any thread.
+     */
+    Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": " + mSnapshot;
+    }
+
+    private void publish() {
+        int n = copySorted(mIntervals);
+        // Drop the zero intervals of the first and duplicated frames.
+        int first = 0;
+        while (first < n && mScratch[first] <= 0) first++;
+        long intervalP50 = percentile(first, n, 50);
+        long intervalP99 = percentile(first, n, 99);
+        mMedianInterval = intervalP50;
+        long intervalSum = 0;
+        for (int i = first; i < n; i++) intervalSum += mScratch[i];
+        double fps = intervalSum > 0 ? (n - first) * 1e9 / intervalSum : 0;
+
+        n = copySorted(mLatchTimes);
+        long latchP50 = percentile(0, n, 50);
+        long latchP99 = percentile(0, n, 99);
+
+        n = copySorted(mDrawTimes);
+        mSnapshot = new Snapshot(mFrames, mDuplicateFrames, mSkippedFrames, mJankFrames, fps,
+                intervalP50 / 1e6, intervalP99 / 1e6, latchP50 / 1e6, latchP99 / 1e6,
+                percentile(0, n, 50) / 1e6, percentile(0, n, 90) / 1e6, percentile(0, n, 99) / 1e6);
+    }
+
+    private int copySorted(long[] ring) {
+        System.arraycopy(ring, 0, mScratch, 0, mFilled);
+        Arrays.sort(mScratch, 0, mFilled);
+        return mFilled;
+    }
+
+    private long percentile(int from, int to, int percentile) {
+        if (to <= from) return 0;
+        int index = from + (int) Math.ceil(percentile / 100.0 * (to - from)) - 1;
+        return mScratch[Math.max(from, Math.min(index, to - 1))];
+    }
+}
@@ -21,10 +21,24 @@ import android.opengl.GLES30;
 import android.opengl.Matrix;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Some OpenGL utility functions. From Grafika
@@ -41,6 +55,16 @@ public class GLUtil {
 
     private static final int SIZEOF_FLOAT = 4;
 
+    /**
+     * The format and length ints in front of a cached program binary.
+     */
+    private static final int PROGRAM_BINARY_HEADER_BYTES = 8;
+
+    /**
+     * More error flags than a driver keeps; stops {@link #drainGlErrors} on a lost context.
+     */
+    private static final int MAX_DRAINED_GL_ERRORS = 16;
+
 
     private GLUtil() {}     // do not instantiate
 
@@ -50,6 +74,38 @@ public class GLUtil {
      * @return A handle to the program, or 0 on failure.
      */
     public static int loadProgram(String vertexSource, String fragmentSource) {
+        return linkProgram(vertexSource, fragmentSource, false);
+    }
+
+    /**
+     * Creates a new program from the supplied vertex and fragment shaders, going through a cache of
+     * linked program binaries in {@code cacheDir}.
+     * <p>
+     * Binaries are keyed by the shader sources and the GL vendor, renderer and version strings, so a
+     * driver update never gets a stale binary. If the driver rejects a cached binary it's deleted and
+     * the program is compiled from source and cached again.
+     *
+     * @return A handle to the program, or 0 on failure.
+     */
+    public static int loadProgram(String vertexSource, String fragmentSource, File cacheDir) {
+        int[] formats = new int[1];
+        GLES30.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        if (formats[0] == 0 || cacheDir == null) return loadProgram(vertexSource, fragmentSource);
+
+        long start = System.nanoTime();
+        File cacheFile = new File(cacheDir, "program-" + programKey(vertexSource, fragmentSource) + ".bin");
+        int program = loadProgramBinary(cacheFile);
+        if (program != 0) {
+            Log.d(TAG, "Loaded cached program binary in " + (System.nanoTime() - start) / 1000 + " us");
+            return program;
+        }
+
+        program = linkProgram(vertexSource, fragmentSource, true);
+        if (program != 0) saveProgramBinary(program, cacheFile);
+        return program;
+    }
+
+    private static int linkProgram(String vertexSource, String fragmentSource, boolean retrievable) {
 
         int vertexShader = loadShader(GLES30.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) return 0;
@@ -67,6 +123,10 @@ public class GLUtil {
         GLES30.glAttachShader(program, pixelShader);
 
         checkGlError("glAttachShader");
+        if (retrievable) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES30.GL_TRUE);
+            checkGlError("glProgramParameteri");
+        }
         GLES30.glLinkProgram(program);
         checkGlError("glLinkProgram");
 
@@ -81,9 +141,133 @@ public class GLUtil {
             program = 0;
         }
 
+        // The shaders aren't needed once the program is linked.
+        GLES30.glDeleteShader(vertexShader);
+        GLES30.glDeleteShader(pixelShader);
+
+        return program;
+    }
+
+    /**
+     * Clears the error flags set by earlier GL calls.
+     */
+    private static void drainGlErrors() {
+        for (int i = 0; i < MAX_DRAINED_GL_ERRORS; i++) {
+            if (GLES30.glGetError() == GLES30.GL_NO_ERROR) return;
+        }
+    }
+
+    /**
+     * Loads a program from a binary saved by {@link #saveProgramBinary}.
+     *
+     * @return A handle to the program, or 0 if there is no usable binary.
+     */
+    private static int loadProgramBinary(File cacheFile) {
+        if (!cacheFile.isFile()) return 0;
+        int format;
+        ByteBuffer binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            format = in.readInt();
+            int length = in.readInt();
+            // A truncated or corrupt file is a cache miss, not a huge or negative allocation.
+            if (length <= 0 || length != cacheFile.length() - PROGRAM_BINARY_HEADER_BYTES) {
+                throw new IOException("Bad program binary length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            binary.put(bytes).position(0);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read program binary " + cacheFile, e);
+            cacheFile.delete();
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+
+        // Errors left by earlier calls would be taken for a rejected binary.
+        drainGlErrors();
+        int program = GLES30.glCreateProgram();
+        GLES30.glProgramBinary(program, format, binary, binary.capacity());
+        int[] linkStatus = new int[1];
+        GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, linkStatus, 0);
+        // Drivers report a rejected binary as a GL error and/or a failed link.
+        if (GLES30.glGetError() != GLES30.GL_NO_ERROR || linkStatus[0] != GLES30.GL_TRUE) {
+            Log.w(TAG, "Program binary rejected by the driver, compiling from source");
+            GLES30.glDeleteProgram(program);
+            cacheFile.delete();
+            return 0;
+        }
         return program;
     }
 
+    /**
+     * Saves the linked binary of {@code program} to {@code cacheFile}. Failures are only logged, the
+     * program is still usable.
+     */
+    private static void saveProgramBinary(int program, File cacheFile) {
+        int[] length = new int[1];
+        GLES30.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) return;
+
+        ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        IntBuffer binaryLength = IntBuffer.allocate(1);
+        IntBuffer format = IntBuffer.allocate(1);
+        GLES30.glGetProgramBinary(program, length[0], binaryLength, format, binary);
+        if (GLES30.glGetError() != GLES30.GL_NO_ERROR) return;
+
+        byte[] bytes = new byte[binaryLength.get(0)];
+        binary.position(0);
+        binary.get(bytes);
+
+        // Write to a temporary file first, so a crash never leaves a truncated binary behind.
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(format.get(0));
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(cacheFile)) tmpFile.delete();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write program binary " + cacheFile, e);
+            tmpFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static String programKey(String vertexSource, String fragmentSource) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String part : new String[]{vertexSource, fragmentSource,
+                    GLES30.glGetString(GLES30.GL_VENDOR), GLES30.glGetString(GLES30.GL_RENDERER),
+                    GLES30.glGetString(GLES30.GL_VERSION)}) {
+                digest.update(String.valueOf(part).getBytes(Charset.forName("UTF-8")));
+                digest.update((byte) 0);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
     /**
      * Compiles the provided shader source.
      *
@@ -143,6 +327,33 @@ public class GLUtil {
         return sb;
     }
 
+    /**
+     * Creates a buffer object bound to {@code target} and fills it with {@code data}. The buffer is
+     * left bound.
+     *
+     * @return A handle to the buffer
+     */
+    public static int createBuffer(int target, Buffer data, int sizeBytes) {
+        int[] buffers = new int[1];
+        GLES30.glGenBuffers(1, buffers, 0);
+        GLES30.glBindBuffer(target, buffers[0]);
+        GLES30.glBufferData(target, sizeBytes, data, GLES30.GL_STATIC_DRAW);
+        checkGlError("glBufferData");
+        return buffers[0];
+    }
+
+    /**
+     * Creates a vertex array object.
+     *
+     * @return A handle to the vertex array
+     */
+    public static int createVertexArray() {
+        int[] arrays = new int[1];
+        GLES30.glGenVertexArrays(1, arrays, 0);
+        checkGlError("glGenVertexArrays");
+        return arrays[0];
+    }
+
     /**
      * Creates a texture object suitable for use with drawFrame().
      */
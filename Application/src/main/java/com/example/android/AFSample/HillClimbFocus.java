@@ -0,0 +1,301 @@
+package com.example.android.AFSample;
+
+import java.util.Arrays;
+
+/**
+ * Software auto focus: searches the lens position that maximizes the sharpness of the AF region,
+ * with the HAL's AF off.
+ * <p>
+ * The search is coarse to fine. The first pass samples {@link #COARSE_POSITIONS} positions evenly
+ * over the whole focus range; every following pass samples {@link #FINE_POSITIONS} positions
+ * around the best one so far, half as far apart as in the previous pass, until the positions are
+ * less than {@link #MIN_STEP_FRACTION} of the range apart. All positions of a pass are captured as
+ * one burst, so the lens moves from one to the next on consecutive frames instead of waiting a
+ * round trip per position.
+ * <p>
+ * A sample joins the capture result of a burst frame (the focus distance the lens actually had)
+ * with the sharpness measured on the analysis stream, by sensor timestamp. Frames the analyzer
+ * dropped are left out of the pass, and so are burst frames that failed or were aborted. A pass
+ * that is still incomplete {@link #PASS_TIMEOUT_FRAMES} frames after its burst, e.g. because results
+ * were lost or the burst never ran, fails the search.
+ * <p>
+ * Focus distances are in diopters, 0 being infinity. The search may be fed from the capture result
+ * and analysis threads, and calls its {@link Driver} on either of them without holding its lock.
+ */
+class HillClimbFocus {
+
+    static final int COARSE_POSITIONS = 9;
+    static final int FINE_POSITIONS = 5;
+    static final float MIN_STEP_FRACTION = 1 / 64f;
+
+    /**
+     * Recent analysis results kept to match capture results that arrive after them.
+     */
+    private static final int SHARPNESS_HISTORY = 16;
+
+    /**
+     * Frames, counted by {@link #onFrame}, a pass may take beyond its own burst frames before the
+     * search fails. About a second of preview, well past the pipeline and analysis latency.
+     */
+    static final int PASS_TIMEOUT_FRAMES = 30;
+
+    interface Driver {
+        /**
+         * Captures one frame at each of {@code distances}, tagging them with consecutive step ids
+         * starting at {@code firstStep}. The array is reused by the following passes, but a pass
+         * only starts once every frame of the previous one has a result, so it may be read until
+         * the burst has been submitted.
+         */
+        void capture(float[] distances, int firstStep);
+
+        /**
+         * Called when a search ends.
+         *
+         * @param focused  False if the search failed or was cancelled
+         * @param distance The best focus distance found, where the lens should stay
+         */
+        void onFinished(boolean focused, float distance);
+
+        /**
+         * The clock of {@link #start}'s {@code startNanos} and of the time to focus,
+         * {@code System.nanoTime()} in the app.
+         */
+        long nanoTime();
+    }
+
+    private final Driver mDriver;
+
+    // Guarded by this.
+    private boolean mRunning;
+    private float mRange;
+    private float mStep;
+    private long mStartNanos;
+    private int mNextStep;
+    private int mPassFirstStep;
+    private int mPassSize;
+    private int mPassResults;
+    private int mPassFrames;
+    private int mSearchSteps;
+    private float mBestDistance;
+    private double mBestSharpness;
+    private final long[] mSampleTimestamps = new long[COARSE_POSITIONS];
+    private final float[] mSampleDistances = new float[COARSE_POSITIONS];
+    private final double[] mSampleSharpness = new double[COARSE_POSITIONS];
+    private final float[] mCoarseDistances = new float[COARSE_POSITIONS];
+    private final float[] mFineDistances = new float[FINE_POSITIONS];
+    private final long[] mHistoryTimestamps = new long[SHARPNESS_HISTORY];
+    private final double[] mHistorySharpness = new double[SHARPNESS_HISTORY];
+    private int mHistoryIndex;
+    private long mLatestSharpnessTimestamp = Long.MIN_VALUE;
+
+    private final LatencyHistogram mTimeToFocus = new LatencyHistogram("software_af_time_to_focus");
+    private long mSearches;
+    private long mFailures;
+    private long mTimeouts;
+    private long mTotalSteps;
+    private long mTotalPasses;
+
+    HillClimbFocus(Driver driver) {
+        mDriver = driver;
+    }
+
+    synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Starts a search, cancelling the current one.
+     *
+     * @param minFocusDistance The closest focus distance of the lens, in diopters
+     * @param startNanos       {@link Driver#nanoTime} the time to focus is measured from, e.g.
+     *                         the tap
+     */
+    void start(float minFocusDistance, long startNanos) {
+        float[] distances;
+        int firstStep;
+        synchronized (this) {
+            mRunning = true;
+            mRange = minFocusDistance;
+            mStep = minFocusDistance / (COARSE_POSITIONS - 1);
+            mStartNanos = startNanos;
+            mSearchSteps = 0;
+            mBestSharpness = -1;
+            mBestDistance = 0;
+            mSearches++;
+            distances = mCoarseDistances;
+            for (int i = 0; i < COARSE_POSITIONS; i++) distances[i] = i * mStep;
+            firstStep = startPass(distances.length);
+        }
+        mDriver.capture(distances, firstStep);
+    }
+
+    /**
+     * Stops the current search, if any, leaving the lens where it is.
+     */
+    synchronized void cancel() {
+        if (!mRunning) return;
+        mRunning = false;
+        mFailures++;
+    }
+
+    /**
+     * Consumes the capture result of a burst frame.
+     *
+     * @param step          The step id the frame was tagged with
+     * @param focusDistance The focus distance reported in the result
+     */
+    void onResult(int step, long timestampNanos, float focusDistance) {
+        synchronized (this) {
+            int index = step - mPassFirstStep;
+            if (!mRunning || index < 0 || index >= mPassSize) return;
+            mSampleTimestamps[index] = timestampNanos;
+            mSampleDistances[index] = focusDistance;
+            mSampleSharpness[index] = findSharpness(timestampNanos);
+            mPassResults++;
+        }
+        maybeFinishPass();
+    }
+
+    /**
+     * Consumes a burst frame that failed, so the pass doesn't wait for it.
+     */
+    void onCaptureFailed(int step) {
+        synchronized (this) {
+            int index = step - mPassFirstStep;
+            if (!mRunning || index < 0 || index >= mPassSize) return;
+            mSampleTimestamps[index] = Long.MIN_VALUE;
+            mSampleSharpness[index] = Double.NaN;
+            mPassResults++;
+        }
+        maybeFinishPass();
+    }
+
+    /**
+     * Counts a capture result or failure of the session, tagged or not, and fails the search if the
+     * current pass has waited longer than {@link #PASS_TIMEOUT_FRAMES} frames past its burst.
+     */
+    void onFrame() {
+        float bestDistance;
+        synchronized (this) {
+            if (!mRunning || ++mPassFrames <= mPassSize + PASS_TIMEOUT_FRAMES) return;
+            mRunning = false;
+            mFailures++;
+            mTimeouts++;
+            bestDistance = mBestDistance;
+        }
+        mDriver.onFinished(false, bestDistance);
+    }
+
+    /**
+     * Consumes the sharpness of the AF region measured on a frame.
+     */
+    void onSharpness(long timestampNanos, double sharpness) {
+        synchronized (this) {
+            mHistoryTimestamps[mHistoryIndex] = timestampNanos;
+            mHistorySharpness[mHistoryIndex] = sharpness;
+            mHistoryIndex = (mHistoryIndex + 1) % SHARPNESS_HISTORY;
+            mLatestSharpnessTimestamp = Math.max(mLatestSharpnessTimestamp, timestampNanos);
+            if (!mRunning) return;
+            for (int i = 0; i < mPassSize; i++) {
+                if (mSampleTimestamps[i] == timestampNanos) mSampleSharpness[i] = sharpness;
+            }
+        }
+        maybeFinishPass();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HillClimbFocus{searches=" + mSearches + ", failures=" + mFailures
+                + ", timeouts=" + mTimeouts
+                + ", meanSteps=" + (mSearches > 0 ? (double) mTotalSteps / mSearches : 0)
+                + ", meanPasses=" + (mSearches > 0 ? (double) mTotalPasses / mSearches : 0)
+                + ", lastSteps=" + mSearchSteps
+                + ", " + mTimeToFocus + "}";
+    }
+
+    private int startPass(int size) {
+        mPassFirstStep = mNextStep;
+        mPassSize = size;
+        mPassResults = 0;
+        mPassFrames = 0;
+        mNextStep += size;
+        mSearchSteps += size;
+        mTotalSteps += size;
+        mTotalPasses++;
+        Arrays.fill(mSampleTimestamps, 0, size, 0);
+        Arrays.fill(mSampleSharpness, 0, size, Double.NaN);
+        return mPassFirstStep;
+    }
+
+    private double findSharpness(long timestampNanos) {
+        for (int i = 0; i < SHARPNESS_HISTORY; i++) {
+            if (mHistoryTimestamps[i] == timestampNanos) return mHistorySharpness[i];
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Moves to the next pass or ends the search once the current pass is complete: every frame
+     * has a result, and every sample has its sharpness or the analyzer is past it.
+     */
+    private void maybeFinishPass() {
+        float[] distances = null;
+        int firstStep = 0;
+        boolean finished = false;
+        boolean focused = false;
+        float bestDistance;
+        long startNanos;
+        synchronized (this) {
+            if (!mRunning || mPassResults < mPassSize) return;
+            long lastTimestamp = Long.MIN_VALUE;
+            boolean complete = true;
+            for (int i = 0; i < mPassSize; i++) {
+                lastTimestamp = Math.max(lastTimestamp, mSampleTimestamps[i]);
+                if (Double.isNaN(mSampleSharpness[i]) && mSampleTimestamps[i] != Long.MIN_VALUE) complete = false;
+            }
+            if (!complete && mLatestSharpnessTimestamp < lastTimestamp) return;
+
+            boolean sampled = false;
+            for (int i = 0; i < mPassSize; i++) {
+                double sharpness = mSampleSharpness[i];
+                if (Double.isNaN(sharpness)) continue;
+                sampled = true;
+                if (sharpness > mBestSharpness) {
+                    mBestSharpness = sharpness;
+                    mBestDistance = mSampleDistances[i];
+                }
+            }
+            bestDistance = mBestDistance;
+            startNanos = mStartNanos;
+            if (!sampled) {
+                // Nothing was analyzed, e.g. the analysis stream is gone.
+                mRunning = false;
+                mFailures++;
+                finished = true;
+            } else if (mStep / 2 < mRange * MIN_STEP_FRACTION) {
+                mRunning = false;
+                finished = true;
+                focused = true;
+            } else {
+                mStep /= 2;
+                distances = mFineDistances;
+                for (int i = 0; i < FINE_POSITIONS; i++) {
+                    float distance = mBestDistance + (i - FINE_POSITIONS / 2) * mStep;
+                    distances[i] = Math.max(0, Math.min(mRange, distance));
+                }
+                firstStep = startPass(distances.length);
+            }
+        }
+        if (focused) {
+            long endNanos = mDriver.nanoTime();
+            synchronized (this) {
+                mTimeToFocus.record(endNanos - startNanos);
+            }
+        }
+        if (finished) {
+            mDriver.onFinished(focused, bestDistance);
+        } else {
+            mDriver.capture(distances, firstStep);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.android.AFSample;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds.
+ * <p>
+ * Buckets are log-linear: every power of two is split into {@link #SUB_BUCKETS} linear buckets, so
+ * the relative error of a percentile is below 1 / {@link #SUB_BUCKETS} from 1 us up to about
+ * 1 minute. Recording a value is a few shifts and an array increment with no allocation.
+ * <p>
+ * A histogram has a single writer; readers on other threads may see a snapshot that is off by the
+ * values recorded while they were reading.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below 2^MIN_BITS ns (~1 us) all go to the first buckets.
+     */
+    private static final int MIN_BITS = 10;
+
+    /**
+     * Values above 2^MAX_BITS ns (~69 s) are clamped to the last bucket.
+     */
+    private static final int MAX_BITS = 36;
+
+    private static final int BUCKET_COUNT = (MAX_BITS - MIN_BITS + 1) * SUB_BUCKETS;
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private volatile long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        mCounts[bucketOf(nanos)]++;
+        mSum += nanos;
+        if (nanos < mMin) mMin = nanos;
+        if (nanos > mMax) mMax = nanos;
+        mCount++;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) mCounts[i] = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+        mCount = 0;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    long getMeanNanos() {
+        long count = mCount;
+        return count == 0 ? 0 : mSum / count;
+    }
+
+    long getMinNanos() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    long getMaxNanos() {
+        return mCount == 0 ? 0 : mMax;
+    }
+
+    /**
+     * Returns the value at {@code percentile} (0-100), as the upper bound of its bucket.
+     */
+    long getPercentileNanos(double percentile) {
+        long count = mCount;
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) return Math.min(upperBoundOf(i), mMax);
+        }
+        return mMax;
+    }
+
+    /**
+     * Appends this histogram as a JSON object, in milliseconds.
+     */
+    void appendJson(StringBuilder sb) {
+        sb.append("{\"name\":\"").append(mName).append('"')
+                .append(",\"count\":").append(getCount())
+                .append(",\"min_ms\":").append(toMillis(getMinNanos()))
+                .append(",\"mean_ms\":").append(toMillis(getMeanNanos()))
+                .append(",\"p50_ms\":").append(toMillis(getPercentileNanos(50)))
+                .append(",\"p90_ms\":").append(toMillis(getPercentileNanos(90)))
+                .append(",\"p99_ms\":").append(toMillis(getPercentileNanos(99)))
+                .append(",\"max_ms\":").append(toMillis(getMaxNanos()))
+                .append('}');
+    }
+
+    /**
+     * Appends this histogram as a single line of text, in milliseconds.
+     */
+    void appendText(StringBuilder sb) {
+        sb.append(mName).append(": n=").append(getCount())
+                .append(" min=").append(toMillis(getMinNanos()))
+                .append(" mean=").append(toMillis(getMeanNanos()))
+                .append(" p50=").append(toMillis(getPercentileNanos(50)))
+                .append(" p90=").append(toMillis(getPercentileNanos(90)))
+                .append(" p99=").append(toMillis(getPercentileNanos(99)))
+                .append(" max=").append(toMillis(getMaxNanos()))
+                .append(" ms");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendText(sb);
+        return sb.toString();
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    static int bucketOf(long nanos) {
+        int bits = 64 - Long.numberOfLeadingZeros(nanos);
+        if (bits <= MIN_BITS) {
+            return (int) (nanos >>> (MIN_BITS - SUB_BUCKET_BITS));
+        }
+        if (bits > MAX_BITS) return BUCKET_COUNT - 1;
+        int sub = (int) (nanos >>> (bits - 1 - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (bits - MIN_BITS) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        int exponent = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (exponent == 0) {
+            return (long) (sub + 1) << (MIN_BITS - SUB_BUCKET_BITS);
+        }
+        int bits = exponent + MIN_BITS;
+        long base = 1L << (bits - 1);
+        return base + ((long) (sub + 1) << (bits - 1 - SUB_BUCKET_BITS));
+    }
+}
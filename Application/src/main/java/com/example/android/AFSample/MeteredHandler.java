@@ -0,0 +1,44 @@
+package com.example.android.AFSample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * A {@link Handler} that keeps the {@link ThreadMetrics} of the messages it runs: how many were
+ * queued, how long each waited after its due time and how long it ran.
+ * <p>
+ * Every post and send goes through {@link #sendMessageAtTime}, so nothing has to be wrapped and
+ * nothing is allocated. Waits have the millisecond resolution of {@link Message#getWhen()}.
+ * Messages removed from the queue before they run stay counted as queued, so callers shouldn't
+ * remove any, nor use {@link #sendMessageAtFrontOfQueue}.
+ */
+class MeteredHandler extends Handler {
+
+    private final ThreadMetrics mMetrics;
+
+    MeteredHandler(Looper looper, String name) {
+        super(looper);
+        mMetrics = new ThreadMetrics(name);
+    }
+
+    ThreadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        mMetrics.onQueued();
+        if (super.sendMessageAtTime(msg, uptimeMillis)) return true;
+        mMetrics.onCancelled();
+        return false;
+    }
+
+    @Override
+    public void dispatchMessage(Message msg) {
+        long startNanos = mMetrics.onStarted((SystemClock.uptimeMillis() - msg.getWhen()) * 1000000L);
+        super.dispatchMessage(msg);
+        mMetrics.onFinished(startNanos);
+    }
+}
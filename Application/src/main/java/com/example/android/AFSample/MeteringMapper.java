@@ -0,0 +1,134 @@
+package com.example.android.AFSample;
+
+/**
+ * Maps taps on the preview view to metering regions in sensor active-array coordinates.
+ * <p>
+ * The display rotation and active array size only change on configuration changes, so the
+ * view-to-sensor transform is precomputed in {@link #configure(int, int, int)} and a tap is mapped
+ * with a couple of multiply-adds and no allocations. Taps are quantized to a grid of
+ * {@link #CELLS_PER_AXIS} x {@link #CELLS_PER_AXIS} cells so callers can cache whatever they build
+ * for a cell (e.g. a {@code MeteringRectangle[]}) and reuse it for later taps.
+ * <p>
+ * This class is not thread safe; {@link CameraFragment} confines it to the UI thread.
+ */
+class MeteringMapper {
+
+    /**
+     * Values of {@code android.view.Surface.ROTATION_*}.
+     */
+    static final int ROTATION_0 = 0;
+    static final int ROTATION_90 = 1;
+    static final int ROTATION_180 = 2;
+    static final int ROTATION_270 = 3;
+
+    /**
+     * Number of quantization steps per axis, one per hundredth of the normalized sensor range.
+     */
+    static final int CELLS_PER_AXIS = 101;
+
+    static final int CELL_COUNT = CELLS_PER_AXIS * CELLS_PER_AXIS;
+
+    /**
+     * Returned by {@link #mapTap(float, float, int, int)} when the mapper can't produce a region.
+     */
+    static final int NO_CELL = -1;
+
+    /**
+     * This is the scalar range that we can actually use with the reticle. We avoid the borders so
+     * the rectangle we send is always the same size.
+     */
+    private static final int MIN_CELL = 10;
+    private static final int MAX_CELL = 90;
+
+    /**
+     * Half of the metering rectangle side, in cells.
+     */
+    private static final int HALF_SIZE_CELLS = 10;
+
+    // Normalized view coordinates to normalized sensor coordinates:
+    // sensorX = mXx * x + mXy * y + mX0, sensorY = mYx * x + mYy * y + mY0
+    private float mXx = 1f, mXy = 0f, mX0 = 0f;
+    private float mYx = 0f, mYy = 1f, mY0 = 0f;
+
+    private int mRotation = -1;
+    private int mActiveWidth = 0;
+    private int mActiveHeight = 0;
+
+    /**
+     * Updates the precomputed transform.
+     *
+     * @param displayRotation One of the {@code ROTATION_*} constants
+     * @param activeWidth     Width of {@code SENSOR_INFO_ACTIVE_ARRAY_SIZE}
+     * @param activeHeight    Height of {@code SENSOR_INFO_ACTIVE_ARRAY_SIZE}
+     * @return true if the mapping changed and cached regions must be discarded
+     */
+    boolean configure(int displayRotation, int activeWidth, int activeHeight) {
+        if (displayRotation == mRotation && activeWidth == mActiveWidth && activeHeight == mActiveHeight) {
+            return false;
+        }
+        mRotation = displayRotation;
+        mActiveWidth = activeWidth;
+        mActiveHeight = activeHeight;
+        switch (displayRotation) {
+            case ROTATION_0:
+                // (x, y) -> (y, 1 - x)
+                mXx = 0f; mXy = 1f; mX0 = 0f;
+                mYx = -1f; mYy = 0f; mY0 = 1f;
+                break;
+            case ROTATION_270:
+                // (x, y) -> (1 - x, 1 - y)
+                mXx = -1f; mXy = 0f; mX0 = 1f;
+                mYx = 0f; mYy = -1f; mY0 = 1f;
+                break;
+            default:
+                mXx = 1f; mXy = 0f; mX0 = 0f;
+                mYx = 0f; mYy = 1f; mY0 = 0f;
+        }
+        return true;
+    }
+
+    boolean isConfigured() {
+        return mActiveWidth > 0 && mActiveHeight > 0;
+    }
+
+    /**
+     * Maps a tap in view coordinates to the quantized cell at the center of its metering region.
+     *
+     * @return The cell index, or {@link #NO_CELL} if the mapper or the view isn't ready
+     */
+    int mapTap(float viewX, float viewY, int viewWidth, int viewHeight) {
+        if (!isConfigured() || viewWidth <= 0 || viewHeight <= 0) return NO_CELL;
+        float x = viewX / viewWidth;
+        float y = viewY / viewHeight;
+        int cellX = quantize(mXx * x + mXy * y + mX0);
+        int cellY = quantize(mYx * x + mYy * y + mY0);
+        return cellY * CELLS_PER_AXIS + cellX;
+    }
+
+    /**
+     * Writes the metering region of {@code cell} into {@code out} as left, top, right, bottom in
+     * active array coordinates, i.e. {@code [0, 0] - [sensor width-1, sensor height-1]}.
+     */
+    void getRegion(int cell, int[] out) {
+        int cellX = cell % CELLS_PER_AXIS;
+        int cellY = cell / CELLS_PER_AXIS;
+        int maxX = mActiveWidth - 1;
+        int maxY = mActiveHeight - 1;
+        out[0] = toSensor(cellX - HALF_SIZE_CELLS, maxX);
+        out[1] = toSensor(cellY - HALF_SIZE_CELLS, maxY);
+        out[2] = toSensor(cellX + HALF_SIZE_CELLS, maxX);
+        out[3] = toSensor(cellY + HALF_SIZE_CELLS, maxY);
+    }
+
+    private static int quantize(float normalized) {
+        int cell = Math.round(normalized * (CELLS_PER_AXIS - 1));
+        if (cell < MIN_CELL) return MIN_CELL;
+        if (cell > MAX_CELL) return MAX_CELL;
+        return cell;
+    }
+
+    private static int toSensor(int cell, int max) {
+        int value = (int) ((long) cell * max / (CELLS_PER_AXIS - 1));
+        return Math.min(value, max);
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.AFSample;
+
+/**
+ * Draws one preview frame: the camera texture on the full screen quad that
+ * {@link PreviewRenderer} set up in a vertex array object, with its program and texture already
+ * bound.
+ * <p>
+ * A frame clears the buffer, uploads the {@code SurfaceTexture} transform, uploads the orientation
+ * correction only when a new one was published, binds the vertex array and draws. The GL calls go
+ * through {@link Gl} so the sequence can be checked on a plain JVM. It must be used on the GL
+ * thread.
+ */
+class PreviewQuad {
+
+    // The values of the GLES30 constants of the same names.
+    static final int GL_COLOR_BUFFER_BIT = 0x00004000;
+    static final int GL_TRIANGLES = 0x0004;
+    static final int GL_UNSIGNED_SHORT = 0x1403;
+
+    /**
+     * The GL calls of a frame, with the signatures of {@code android.opengl.GLES30}.
+     */
+    interface Gl {
+        void glClear(int mask);
+
+        void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+
+        void glBindVertexArray(int array);
+
+        void glDrawElements(int mode, int count, int type, int offset);
+    }
+
+    private final Gl mGl;
+    private final int mTransformLocation;
+    private final int mCorrectionLocation;
+    private final int mVertexArrayId;
+    private final int mIndexCount;
+
+    /**
+     * The correction matrix last uploaded to the program.
+     */
+    private float[] mUploadedCorrection;
+
+    /**
+     * @param transformLocation  Location of the {@code SurfaceTexture} transform uniform
+     * @param correctionLocation Location of the orientation correction uniform
+     * @param vertexArrayId      The vertex array object of the quad
+     * @param indexCount         Number of {@code short} indices in its element buffer
+     */
+    PreviewQuad(Gl gl, int transformLocation, int correctionLocation, int vertexArrayId, int indexCount) {
+        mGl = gl;
+        mTransformLocation = transformLocation;
+        mCorrectionLocation = correctionLocation;
+        mVertexArrayId = vertexArrayId;
+        mIndexCount = indexCount;
+    }
+
+    /**
+     * Draws a frame.
+     *
+     * @param transform  The {@code SurfaceTexture} transform of the latched frame
+     * @param correction The current orientation correction. Never modified once published, so it
+     *                   is compared by reference.
+     */
+    void draw(float[] transform, float[] correction) {
+        // Clearing lets tiled GPUs skip loading the previous frame back from memory.
+        mGl.glClear(GL_COLOR_BUFFER_BIT);
+
+        mGl.glUniformMatrix4fv(mTransformLocation, 1, false, transform, 0);
+
+        // The correction only changes on rotation, so it's only uploaded when a new one is published.
+        if (correction != mUploadedCorrection) {
+            mGl.glUniformMatrix4fv(mCorrectionLocation, 1, false, correction, 0);
+            mUploadedCorrection = correction;
+        }
+
+        mGl.glBindVertexArray(mVertexArrayId);
+        mGl.glDrawElements(GL_TRIANGLES, mIndexCount, GL_UNSIGNED_SHORT, 0);
+    }
+}
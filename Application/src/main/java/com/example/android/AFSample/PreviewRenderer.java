@@ -4,11 +4,9 @@ import android.graphics.SurfaceTexture;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
 import android.support.annotation.NonNull;
 
-import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
+import java.io.File;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -17,11 +15,39 @@ public class PreviewRenderer implements GLSurfaceView.Renderer {
 
 //    private static final String TAG = PreviewRenderer.class.getSimpleName();
 
+    /**
+     * The per-frame GL calls of {@link PreviewQuad}, made on the current context.
+     */
+    private static final PreviewQuad.Gl GLES30_CALLS = new PreviewQuad.Gl() {
+        @Override
+        public void glClear(int mask) {
+            GLES30.glClear(mask);
+        }
+
+        @Override
+        public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+            GLES30.glUniformMatrix4fv(location, count, transpose, value, offset);
+        }
+
+        @Override
+        public void glBindVertexArray(int array) {
+            GLES30.glBindVertexArray(array);
+        }
+
+        @Override
+        public void glDrawElements(int mode, int count, int type, int offset) {
+            GLES30.glDrawElements(mode, count, type, offset);
+        }
+    };
+
     /**
      * Texture created for GLES rendering of camera data
      */
     private SurfaceTexture mPreviewTexture;
-    private SurfaceTexture.OnFrameAvailableListener frameAvailableListener;
+    /**
+     * Requests a render for every new camera frame and tells us whether a draw has one to latch.
+     */
+    private FramePacer mFramePacer;
 
     /**
      * Width and height storage of our viewport size, so we can properly accomodate any size View
@@ -33,16 +59,18 @@ public class PreviewRenderer implements GLSurfaceView.Renderer {
     private int textureCoordinateLocation = -1;
     private int camTextureLocation = -1;
     private int camTextureTransformLocation = -1;
+    private int camCorrectionLocation = -1;
     private int mCameraTextureID = -1;
 
     private final String vertexShaderCode = "#version 300 es\n" +
             "uniform mat4 camTextureTransform;\n" +
+            "uniform mat4 camCorrection;\n" +
             "in vec4 position;\n" +
             "in vec4 inputTextureCoordinate;\n" +
             "out vec2 textureCoordinate;\n" +
             "void main() {\n" +
             "    //camera texcoord needs to be manipulated by the transform given back from the system\n" +
-            "    textureCoordinate = (camTextureTransform * inputTextureCoordinate).xy;\n" +
+            "    textureCoordinate = (camTextureTransform * camCorrection * inputTextureCoordinate).xy;\n" +
             "    gl_Position = position;\n" +
             "}";
 
@@ -71,8 +99,6 @@ public class PreviewRenderer implements GLSurfaceView.Renderer {
 
     private static short drawOrder[] = {0, 1, 2, 1, 3, 2};
 
-    private FloatBuffer textureBuffer;
-
     private float textureCoords[] = {
             0.0f, 1.0f,
             1.0f, 1.0f,
@@ -82,36 +108,67 @@ public class PreviewRenderer implements GLSurfaceView.Renderer {
 
     private int mGLProgId;
 
-    private FloatBuffer vertexBuffer;
-
-    private ShortBuffer drawListBuffer;
+    /**
+     * Vertex array object holding the quad's buffer objects and attribute setup.
+     */
+    private int mVertexArrayId;
 
     /**
      * matrix for transforming our camera texture, available immediately after {@link #mPreviewTexture}s
-     * {@code updateTexImage()} is called in our main {@link #draw()} loop.
+     * {@code updateTexImage()} is called in {@link #onDrawFrame}.
      */
     private float[] mCameraTransformMatrix = new float[16];
 
     private SurfaceListener surfaceListener;
 
+    /**
+     * Where {@link GLUtil} caches the linked program, so surface re-creation skips the shader
+     * compiler.
+     */
+    private final File mProgramCacheDir;
+
     private int orientation = 270;
     private boolean verticalFlip = true;
+
+    /**
+     * Orientation / flip correction applied on top of {@link #mCameraTransformMatrix}. Rebuilt on the
+     * UI thread when {@link #orientation} or {@link #verticalFlip} change and published to the GL
+     * thread through this volatile reference; the arrays are never modified once published.
+     */
+    private volatile float[] mCorrectionMatrix = TextureTransform.correction(orientation, verticalFlip);
+
+    /**
+     * Draws the frames of the current surface. Only touched on the GL thread.
+     */
+    private PreviewQuad mPreviewQuad;
     private boolean rendering = true;
 
+    /**
+     * Timing of every frame drawn, readable from any thread.
+     */
+    private final FrameStats mFrameStats = new FrameStats("GLSurfaceView");
+
     interface SurfaceListener{
         void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture);
     }
 
-    PreviewRenderer(@NonNull SurfaceTexture.OnFrameAvailableListener frameAvailableListener, int width, int height, @NonNull SurfaceListener surfaceListener) {
-        this.frameAvailableListener = frameAvailableListener;
+    PreviewRenderer(@NonNull FramePacer framePacer, int width, int height, @NonNull SurfaceListener surfaceListener, File programCacheDir) {
+        mFramePacer = framePacer;
+        mProgramCacheDir = programCacheDir;
         mViewportWidth = width;
         mViewportHeight = height;
         this.surfaceListener = surfaceListener;
     }
 
-    public void setOrientation(int orientation) { this.orientation = orientation; }
+    public void setOrientation(int orientation) {
+        this.orientation = orientation;
+        mCorrectionMatrix = TextureTransform.correction(orientation, verticalFlip);
+    }
 
-    public void setVerticalFlip(boolean verticalFlip) { this.verticalFlip = verticalFlip; }
+    public void setVerticalFlip(boolean verticalFlip) {
+        this.verticalFlip = verticalFlip;
+        mCorrectionMatrix = TextureTransform.correction(orientation, verticalFlip);
+    }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
@@ -119,28 +176,46 @@ public class PreviewRenderer implements GLSurfaceView.Renderer {
         mCameraTextureID = GLUtil.createExternal2DTexture();
         mPreviewTexture = new SurfaceTexture(mCameraTextureID);
 //        mPreviewTexture.setDefaultBufferSize(mViewportWidth, mViewportHeight);
-        mPreviewTexture.setOnFrameAvailableListener(frameAvailableListener);
+        mPreviewTexture.setOnFrameAvailableListener(mFramePacer);
 
-        mGLProgId = GLUtil.loadProgram(vertexShaderCode, fragmentShaderCode);
+        mGLProgId = GLUtil.loadProgram(vertexShaderCode, fragmentShaderCode, mProgramCacheDir);
         GLUtil.checkGlError("loadProgram");
 
-        drawListBuffer = GLUtil.createShortBuffer(drawOrder);
-        vertexBuffer = GLUtil.createFloatBuffer(squareCoords);
-        textureBuffer = GLUtil.createFloatBuffer(textureCoords);
-
-
         camTextureLocation = GLES30.glGetUniformLocation(mGLProgId, "camTexture");
         GLUtil.checkGlError("Texture bind");
         camTextureTransformLocation = GLES30.glGetUniformLocation(mGLProgId, "camTextureTransform");
+        camCorrectionLocation = GLES30.glGetUniformLocation(mGLProgId, "camCorrection");
         textureCoordinateLocation = GLES30.glGetAttribLocation(mGLProgId, "inputTextureCoordinate");
         positionLocation = GLES30.glGetAttribLocation(mGLProgId, "position");
         GLUtil.checkGlError("Texture bind");
 
-        //camera texture
+        // The quad never changes, so it lives in buffer objects captured by a vertex array object
+        // and a frame only has to bind the VAO and draw.
+        mVertexArrayId = GLUtil.createVertexArray();
+        GLES30.glBindVertexArray(mVertexArrayId);
+        GLUtil.createBuffer(GLES30.GL_ARRAY_BUFFER, GLUtil.createFloatBuffer(squareCoords), squareCoords.length * 4);
+        GLES30.glEnableVertexAttribArray(positionLocation);
+        GLES30.glVertexAttribPointer(positionLocation, 2, GLES30.GL_FLOAT, false, 4 * 2, 0);
+        GLUtil.createBuffer(GLES30.GL_ARRAY_BUFFER, GLUtil.createFloatBuffer(textureCoords), textureCoords.length * 4);
+        GLES30.glEnableVertexAttribArray(textureCoordinateLocation);
+        GLES30.glVertexAttribPointer(textureCoordinateLocation, 2, GLES30.GL_FLOAT, false, 4 * 2, 0);
+        GLUtil.createBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, GLUtil.createShortBuffer(drawOrder), drawOrder.length * 2);
+        GLES30.glBindVertexArray(0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        GLUtil.checkGlError("Vertex array");
+
+        // We only have one program and one texture, so they stay bound. updateTexImage() binds the
+        // camera texture to the active unit.
+        GLES30.glUseProgram(mGLProgId);
+        GLES30.glUniform1i(camTextureLocation, 1);
         GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
         GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mCameraTextureID);
+        GLES30.glClearColor(1.0f, 0.0f, 0.0f, 0.0f);
         GLUtil.checkGlError("Texture bind");
 
+        mPreviewQuad = new PreviewQuad(GLES30_CALLS, camTextureTransformLocation, camCorrectionLocation,
+                mVertexArrayId, drawOrder.length);
+
 //        surfaceListener.onSurfaceTextureAvailable(mPreviewTexture);
     }
 
@@ -149,6 +224,7 @@ public class PreviewRenderer implements GLSurfaceView.Renderer {
 //        Log.i(TAG, "onSurfaceChanged: " + width + "x" + height);
         mViewportWidth = width;
         mViewportHeight = height;
+        GLES30.glViewport(0, 0, mViewportWidth, mViewportHeight);
         mPreviewTexture.setDefaultBufferSize(mViewportWidth, mViewportHeight);
         surfaceListener.onSurfaceTextureAvailable(mPreviewTexture);
 
@@ -158,52 +234,18 @@ public class PreviewRenderer implements GLSurfaceView.Renderer {
     public void onDrawFrame(GL10 gl) {
 //        Log.i(TAG, "onDrawFrame: ");
         if(!rendering) return;
-        mPreviewTexture.updateTexImage();
+        long startNanos = System.nanoTime();
+        // Redraws without a new camera frame still have to draw, the buffer is swapped anyway.
+        boolean newFrame = mFramePacer.onDrawFrame();
+        if (newFrame) mPreviewTexture.updateTexImage();
+        long latchedNanos = System.nanoTime();
         mPreviewTexture.getTransformMatrix(mCameraTransformMatrix);
-        if (orientation == 90 || orientation == 270) {
-            Matrix.translateM(mCameraTransformMatrix, 0, 0f, 1f, 0);
-            Matrix.rotateM(mCameraTransformMatrix, 0, orientation, 0, 0, 1f);
-        }
-        if (verticalFlip) {
-            Matrix.translateM(mCameraTransformMatrix, 0, 1f, 1f, 0);
-            Matrix.scaleM(mCameraTransformMatrix, 0, -1f, -1f, 1f);
-        }
-        draw();
+        mPreviewQuad.draw(mCameraTransformMatrix, mCorrectionMatrix);
+        if (newFrame) mFrameStats.onFrame(mPreviewTexture.getTimestamp(), latchedNanos - startNanos, System.nanoTime() - latchedNanos);
     }
 
-    /**
-     * main draw routine
-     */
-    private void draw() {
-        GLES30.glViewport(0, 0, mViewportWidth, mViewportHeight);
-
-        GLES30.glClearColor(1.0f, 0.0f, 0.0f, 0.0f);
-        GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
-
-        //set shader
-        GLES30.glUseProgram(mGLProgId);
-
-        GLES30.glEnableVertexAttribArray(positionLocation);
-        GLES30.glVertexAttribPointer(positionLocation, 2, GLES30.GL_FLOAT, false, 4 * 2, vertexBuffer);
-
-        //camera texture
-        GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
-        GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mCameraTextureID);
-        GLES30.glUniform1i(camTextureLocation, 1);
-
-        GLES30.glEnableVertexAttribArray(textureCoordinateLocation);
-        GLES30.glVertexAttribPointer(textureCoordinateLocation, 2, GLES30.GL_FLOAT, false, 4 * 2, textureBuffer);
-
-        GLES30.glUniformMatrix4fv(camTextureTransformLocation, 1, false, mCameraTransformMatrix, 0);
-
-        GLES30.glDrawElements(GLES30.GL_TRIANGLES, drawOrder.length, GLES30.GL_UNSIGNED_SHORT, drawListBuffer);
-
-        // draw cleanup
-        GLES30.glDisableVertexAttribArray(positionLocation);
-        GLES30.glDisableVertexAttribArray(textureCoordinateLocation);
-
-        // GL is a state machine and some say that it's better to unbind the texture.
-        GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+    public FrameStats getFrameStats() {
+        return mFrameStats;
     }
 
     public void stopRendering(){
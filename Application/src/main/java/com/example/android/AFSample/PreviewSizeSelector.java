@@ -0,0 +1,107 @@
+package com.example.android.AFSample;
+
+/**
+ * Chooses the preview size among the sizes a camera supports by scoring every candidate, instead
+ * of only accepting exact aspect ratio matches.
+ * <p>
+ * The cost of a size is the weighted sum of
+ * <ul>
+ * <li>how far its aspect ratio is from the preferred one, beyond {@link #ASPECT_TOLERANCE},</li>
+ * <li>how much of the view it leaves to be upscaled,</li>
+ * <li>its bandwidth, pixels times the frame rate it can sustain, relative to the guaranteed
+ * preview stream,</li>
+ * <li>a fixed penalty when it's larger than the preview stream the camera guarantees for a
+ * single output, or can't reach the target frame rate.</li>
+ * </ul>
+ * All sizes are given in sensor coordinates. Scoring doesn't allocate.
+ */
+class PreviewSizeSelector {
+
+    static final int NO_SIZE = -1;
+
+    /**
+     * Relative aspect ratio difference that counts as a match, e.g. 1440x1080 vs 4:3 sensors
+     * reporting 1440x1088.
+     */
+    static final double ASPECT_TOLERANCE = 0.01;
+
+    /**
+     * Largest preview stream guaranteed by the stream combination tables, whatever the display.
+     */
+    static final int MAX_GUARANTEED_WIDTH = 1920;
+    static final int MAX_GUARANTEED_HEIGHT = 1080;
+
+    private static final double ASPECT_WEIGHT = 4;
+    private static final double COVERAGE_WEIGHT = 2;
+    private static final double BANDWIDTH_WEIGHT = 0.5;
+    private static final double LIMIT_PENALTY = 10;
+
+    private final double mAspectRatio;
+    private final int mTargetFps;
+
+    /**
+     * @param aspectWidth  Width of the preferred aspect ratio
+     * @param aspectHeight Height of the preferred aspect ratio
+     * @param targetFps    Frame rate the preview should sustain
+     */
+    PreviewSizeSelector(int aspectWidth, int aspectHeight, int targetFps) {
+        mAspectRatio = (double) aspectWidth / aspectHeight;
+        mTargetFps = targetFps;
+    }
+
+    /**
+     * Returns the index of the best size, or {@link #NO_SIZE} if there are no sizes.
+     *
+     * @param widths            Supported output widths
+     * @param heights           Supported output heights, same length as {@code widths}
+     * @param minFrameDurations Minimum frame duration of every size in nanoseconds, or 0 if unknown
+     * @param viewWidth         Width of the view showing the preview
+     * @param viewHeight        Height of the view showing the preview
+     * @param displayWidth      Width of the display, bounds the guaranteed preview stream
+     * @param displayHeight     Height of the display
+     */
+    int select(int[] widths, int[] heights, long[] minFrameDurations, int viewWidth, int viewHeight,
+               int displayWidth, int displayHeight) {
+        int maxWidth = Math.min(displayWidth, MAX_GUARANTEED_WIDTH);
+        int maxHeight = Math.min(displayHeight, MAX_GUARANTEED_HEIGHT);
+        double maxBandwidth = (double) maxWidth * maxHeight * mTargetFps;
+        int best = NO_SIZE;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < widths.length; i++) {
+            double cost = cost(widths[i], heights[i], minFrameDurations[i], viewWidth, viewHeight,
+                    maxWidth, maxHeight, maxBandwidth);
+            // Ties go to the larger size.
+            if (cost < bestCost || cost == bestCost && best != NO_SIZE
+                    && (long) widths[i] * heights[i] > (long) widths[best] * heights[best]) {
+                best = i;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The cost of one candidate, lower is better.
+     */
+    double cost(int width, int height, long minFrameDuration, int viewWidth, int viewHeight,
+                int maxWidth, int maxHeight, double maxBandwidth) {
+        double aspectError = Math.abs(Math.log((double) width / height / mAspectRatio));
+        double cost = ASPECT_WEIGHT * Math.max(0, aspectError - ASPECT_TOLERANCE);
+
+        double coverage = Math.min(1.0, (double) width / viewWidth) * Math.min(1.0, (double) height / viewHeight);
+        cost += COVERAGE_WEIGHT * (1 - coverage);
+
+        double fps = mTargetFps;
+        if (minFrameDuration > 0) {
+            double maxFps = 1e9 / minFrameDuration;
+            if (maxFps < fps) {
+                fps = maxFps;
+                cost += LIMIT_PENALTY;
+            }
+        }
+        cost += BANDWIDTH_WEIGHT * (double) width * height * fps / maxBandwidth;
+
+        if (width > maxWidth || height > maxHeight) cost += LIMIT_PENALTY;
+        return cost;
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.android.AFSample;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands items from one producer thread to a consumer thread of its own without locks, e.g. the
+ * capture results from the camera control thread to the thread that processes them.
+ * <p>
+ * The items live in a ring of slots created up front: the producer fills the item {@link #claim()}
+ * returns and {@link #publish()}es it, and the consumer thread gives the published items to the
+ * {@link Consumer} in order, then gives their slots back. The ring is indexed by two sequence
+ * numbers, each written by one side only. When the ring is full the new item is dropped and counted
+ * rather than waited for, so a slow consumer never stalls the producer. An idle consumer parks and
+ * the producer unparks it when it publishes.
+ * <p>
+ * Nothing is allocated once the handoff is constructed.
+ */
+class ResultHandoff<T> {
+
+    /**
+     * Creates the item of a slot.
+     */
+    interface Factory<T> {
+        T create();
+    }
+
+    /**
+     * Processes the items, on the consumer thread.
+     */
+    interface Consumer<T> {
+        void consume(T item);
+    }
+
+    private final Object[] mItems;
+    private final long[] mPublishNanos;
+    private final int mMask;
+    private final Consumer<T> mConsumer;
+    private final ThreadMetrics mMetrics;
+    private final Thread mThread;
+
+    /**
+     * Sequence number of the next item to consume. Written by the consumer.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * Sequence number of the next item to publish. Written by the producer.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile boolean mParked;
+    private volatile boolean mStopped;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     */
+    ResultHandoff(String name, int capacity, Factory<T> factory, Consumer<T> consumer) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1);
+        mItems = new Object[size];
+        for (int i = 0; i < size; i++) mItems[i] = factory.create();
+        mPublishNanos = new long[size];
+        mMask = size - 1;
+        mConsumer = consumer;
+        mMetrics = new ThreadMetrics(name);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consumeLoop();
+            }
+        }, name);
+    }
+
+    int getCapacity() {
+        return mItems.length;
+    }
+
+    ThreadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops the consumer thread and waits for it. The items still in the ring are dropped.
+     */
+    void stop() throws InterruptedException {
+        mStopped = true;
+        LockSupport.unpark(mThread);
+        mThread.join();
+    }
+
+    /**
+     * Returns the item to fill before {@link #publish()}, or null if the ring is full. Must be
+     * called on the producer thread.
+     */
+    @SuppressWarnings("unchecked")
+    T claim() {
+        long tail = mTail.get();
+        if (tail - mHead.get() >= mItems.length) {
+            mMetrics.onDropped();
+            return null;
+        }
+        return (T) mItems[(int) tail & mMask];
+    }
+
+    /**
+     * Publishes the item returned by the last {@link #claim()}. Must be called on the producer
+     * thread.
+     */
+    void publish() {
+        long tail = mTail.get();
+        mPublishNanos[(int) tail & mMask] = System.nanoTime();
+        mMetrics.onQueued();
+        // A volatile write then a volatile read, so either the consumer sees the new tail before it
+        // parks or this sees it parked.
+        mTail.set(tail + 1);
+        if (mParked) LockSupport.unpark(mThread);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void consumeLoop() {
+        long head = mHead.get();
+        while (!mStopped) {
+            if (head == mTail.get()) {
+                mParked = true;
+                if (head == mTail.get() && !mStopped) LockSupport.park(this);
+                mParked = false;
+                continue;
+            }
+            int index = (int) head & mMask;
+            long startNanos = mMetrics.onStarted(System.nanoTime() - mPublishNanos[index]);
+            mConsumer.consume((T) mItems[index]);
+            mMetrics.onFinished(startNanos);
+            mHead.lazySet(++head);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResultHandoff{capacity=" + mItems.length + ", published=" + mTail.get() + "} " + mMetrics;
+    }
+}
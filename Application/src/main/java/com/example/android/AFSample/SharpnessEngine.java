@@ -0,0 +1,159 @@
+package com.example.android.AFSample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures how sharp a region of a luma plane is, so we can tell whether the metering region is
+ * actually in focus rather than trusting the AF state alone.
+ * <p>
+ * Three contrast metrics are supported, all growing with sharpness:
+ * <ul>
+ * <li>{@link #LAPLACIAN_VARIANCE}: variance of the 4-neighbour Laplacian,</li>
+ * <li>{@link #TENENGRAD}: mean squared Sobel gradient magnitude,</li>
+ * <li>{@link #BRENNER}: mean squared difference between pixels two columns apart.</li>
+ * </ul>
+ * A metric is computed in two steps so the work can be split in row bands: {@link #accumulate}
+ * adds a band's sums to a slice of a {@code long[]}, and {@link #finish} turns the sums into the
+ * score. Neither allocates. {@link FrameAnalysisScheduler} runs the bands in parallel through
+ * {@link AnalysisKernels}.
+ */
+class SharpnessEngine {
+
+    static final int LAPLACIAN_VARIANCE = 0;
+    static final int TENENGRAD = 1;
+    static final int BRENNER = 2;
+
+    /**
+     * Sums kept per band: sum, sum of squares (Laplacian only) and pixel count.
+     */
+    static final int ACCUMULATORS = 3;
+
+    private static final String[] METRIC_NAMES = {"laplacian_variance", "tenengrad", "brenner"};
+
+    /**
+     * Scores a region on the calling thread. Allocates the accumulators, use {@link #accumulate}
+     * directly in loops.
+     *
+     * @param luma        The luma plane, e.g. plane 0 of a {@code YUV_420_888} image
+     * @param rowStride   Bytes between rows
+     * @param pixelStride Bytes between pixels of a row
+     * @param left        First column of the region
+     * @param top         First row of the region
+     * @param right       Column after the region
+     * @param bottom      Row after the region
+     * @return The sharpness, or 0 if the region is too small
+     */
+    static double score(int metric, ByteBuffer luma, int rowStride, int pixelStride,
+                        int left, int top, int right, int bottom) {
+        long[] acc = new long[ACCUMULATORS];
+        accumulate(metric, luma, rowStride, pixelStride, left + 1, right - 2, top + 1, bottom - 1, acc, 0);
+        return finish(metric, acc, 0);
+    }
+
+    /**
+     * Adds the sums of the metric over {@code [left, right) x [rowFrom, rowTo)} to
+     * {@code acc[offset..offset + ACCUMULATORS)}. Reads one pixel around that rectangle, and two
+     * columns to the right for {@link #BRENNER}, so callers must keep it that far inside the image.
+     */
+    static void accumulate(int metric, ByteBuffer luma, int rowStride, int pixelStride,
+                           int left, int right, int rowFrom, int rowTo, long[] acc, int offset) {
+        if (right <= left || rowTo <= rowFrom) return;
+        long sum = 0, sumOfSquares = 0;
+        int ps = pixelStride;
+        switch (metric) {
+            case LAPLACIAN_VARIANCE:
+                for (int y = rowFrom; y < rowTo; y++) {
+                    int i = y * rowStride + left * ps;
+                    int end = i + (right - left) * ps;
+                    for (; i < end; i += ps) {
+                        int lap = 4 * (luma.get(i) & 0xFF)
+                                - (luma.get(i - ps) & 0xFF) - (luma.get(i + ps) & 0xFF)
+                                - (luma.get(i - rowStride) & 0xFF) - (luma.get(i + rowStride) & 0xFF);
+                        sum += lap;
+                        sumOfSquares += lap * lap;
+                    }
+                }
+                break;
+            case TENENGRAD:
+                for (int y = rowFrom; y < rowTo; y++) {
+                    int i = y * rowStride + left * ps;
+                    int end = i + (right - left) * ps;
+                    for (; i < end; i += ps) {
+                        int up = i - rowStride;
+                        int down = i + rowStride;
+                        int topLeft = luma.get(up - ps) & 0xFF, topRight = luma.get(up + ps) & 0xFF;
+                        int bottomLeft = luma.get(down - ps) & 0xFF, bottomRight = luma.get(down + ps) & 0xFF;
+                        int gx = topRight + 2 * (luma.get(i + ps) & 0xFF) + bottomRight
+                                - topLeft - 2 * (luma.get(i - ps) & 0xFF) - bottomLeft;
+                        int gy = bottomLeft + 2 * (luma.get(down) & 0xFF) + bottomRight
+                                - topLeft - 2 * (luma.get(up) & 0xFF) - topRight;
+                        sum += gx * gx + gy * gy;
+                    }
+                }
+                break;
+            case BRENNER:
+                int twoColumns = 2 * ps;
+                for (int y = rowFrom; y < rowTo; y++) {
+                    int i = y * rowStride + left * ps;
+                    int end = i + (right - left) * ps;
+                    for (; i < end; i += ps) {
+                        int d = (luma.get(i + twoColumns) & 0xFF) - (luma.get(i) & 0xFF);
+                        sum += d * d;
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown metric " + metric);
+        }
+        acc[offset] += sum;
+        acc[offset + 1] += sumOfSquares;
+        acc[offset + 2] += (long) (right - left) * (rowTo - rowFrom);
+    }
+
+    /**
+     * Turns the sums of {@link #accumulate} into the score of the metric.
+     */
+    static double finish(int metric, long[] acc, int offset) {
+        long count = acc[offset + 2];
+        if (count == 0) return 0;
+        double mean = (double) acc[offset] / count;
+        if (metric == LAPLACIAN_VARIANCE) {
+            return Math.max(0, (double) acc[offset + 1] / count - mean * mean);
+        }
+        return mean;
+    }
+
+    /**
+     * Maps a region in sensor active-array coordinates ({@link MeteringMapper#getRegion}) to the
+     * pixels of an output image. Camera outputs without zoom are the largest centered crop of the
+     * active array with the output's aspect ratio, scaled to the output size.
+     *
+     * @param region {left, top, right, bottom} in active-array coordinates
+     * @param out    Receives {left, top, right, bottom} in image pixels, clamped to the image
+     */
+    static void toImageRegion(int[] region, int activeWidth, int activeHeight, int imageWidth, int imageHeight,
+                              int[] out) {
+        double cropWidth = activeWidth;
+        double cropHeight = activeHeight;
+        if ((long) activeWidth * imageHeight > (long) imageWidth * activeHeight) {
+            cropWidth = (double) activeHeight * imageWidth / imageHeight;
+        } else {
+            cropHeight = (double) activeWidth * imageHeight / imageWidth;
+        }
+        double cropLeft = (activeWidth - cropWidth) / 2;
+        double cropTop = (activeHeight - cropHeight) / 2;
+        double scale = imageWidth / cropWidth;
+        out[0] = clamp((int) ((region[0] - cropLeft) * scale), imageWidth);
+        out[1] = clamp((int) ((region[1] - cropTop) * scale), imageHeight);
+        out[2] = clamp((int) Math.ceil((region[2] - cropLeft) * scale), imageWidth);
+        out[3] = clamp((int) Math.ceil((region[3] - cropTop) * scale), imageHeight);
+    }
+
+    static String metricToString(int metric) {
+        return metric >= 0 && metric < METRIC_NAMES.length ? METRIC_NAMES[metric] : "UNKNOWN(" + metric + ")";
+    }
+
+    private static int clamp(int value, int max) {
+        return value < 0 ? 0 : value > max ? max : value;
+    }
+}
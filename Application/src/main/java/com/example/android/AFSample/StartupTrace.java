@@ -0,0 +1,59 @@
+package com.example.android.AFSample;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records when each phase of the camera startup happened, relative to {@link #begin()}, so we can
+ * see where time-to-first-frame goes and whether phases overlap.
+ * <p>
+ * Phases may be marked from any thread; only the first mark of a phase after {@link #begin()}
+ * counts.
+ */
+class StartupTrace {
+
+    static final int PERMISSION_CHECKED = 0;
+    static final int CHARACTERISTICS_READY = 1;
+    static final int CAMERA_OPENED = 2;
+    static final int SESSION_CONFIGURED = 3;
+    static final int SURFACE_READY = 4;
+    static final int FIRST_FRAME = 5;
+
+    private static final String[] PHASE_NAMES = {
+            "permission_checked", "characteristics_ready", "camera_opened",
+            "session_configured", "surface_ready", "first_frame"};
+
+    private final AtomicLongArray mPhaseNanos = new AtomicLongArray(PHASE_NAMES.length);
+    private volatile long mBeginNanos;
+
+    /**
+     * Starts a new trace, forgetting the previous one.
+     */
+    void begin() {
+        for (int i = 0; i < PHASE_NAMES.length; i++) mPhaseNanos.set(i, 0);
+        mBeginNanos = System.nanoTime();
+    }
+
+    /**
+     * Marks {@code phase} as reached now.
+     *
+     * @return true if this is the first time the phase is reached in this trace
+     */
+    boolean mark(int phase) {
+        if (mBeginNanos == 0 || mPhaseNanos.get(phase) != 0) return false;
+        return mPhaseNanos.compareAndSet(phase, 0, System.nanoTime());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("StartupTrace{");
+        long begin = mBeginNanos;
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            if (i > 0) sb.append(", ");
+            long nanos = mPhaseNanos.get(i);
+            sb.append(PHASE_NAMES[i]).append('=');
+            if (nanos == 0) sb.append('-');
+            else sb.append((nanos - begin) / 100000 / 10.0).append("ms");
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,359 @@
+package com.example.android.AFSample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A binary log of what the camera, the user and the preview did, for debugging AF in the field.
+ * {@code TelemetryLogReader}, in the benchmark module, turns the files into CSV or JSON.
+ * <p>
+ * Records have a fixed size of {@link #RECORD_SIZE} bytes and are written straight into
+ * memory-mapped segment files of {@link #SEGMENT_SIZE} bytes, named {@code telemetry-<n>.bin}, of
+ * which the last {@link #MAX_SEGMENTS} are kept. The kernel writes the pages back on its own, so
+ * the records of a crashed process aren't lost either.
+ * <p>
+ * Any thread may log. A writer claims a slot in the current segment with an atomic increment and
+ * fills it with absolute puts, so writers never block each other, never do I/O and never
+ * allocate. Creating, mapping and pre-faulting the next segment, syncing the full one and deleting
+ * old ones happens on a thread of the log's own; when a segment fills up the writer that notices
+ * switches to the segment that thread prepared. If it isn't ready yet, records are dropped and
+ * counted rather than waited for.
+ * <p>
+ * A segment starts with a header record: {@link #MAGIC}, {@link #VERSION}, {@link #RECORD_SIZE},
+ * a reserved int, then the segment number, {@code System.currentTimeMillis()} and
+ * {@code System.nanoTime()} at its creation as longs. Every other record is, little endian:
+ * <pre>
+ *   0  int   type, written last so a record that is 0 here was never completed
+ *   4  int   reserved
+ *   8  long  System.nanoTime() when logged
+ *  16  long  payload words 0 to 5, see the TYPE_ constants
+ * </pre>
+ */
+class TelemetryLog {
+
+    static final int MAGIC = 0x4C544641; // "AFTL"
+    static final int VERSION = 1;
+    static final int RECORD_SIZE = 64;
+    static final int SEGMENT_SIZE = 1 << 20;
+    static final int MAX_SEGMENTS = 8;
+
+    /**
+     * A capture result. Words: sensor timestamp, frame number, exposure time in nanoseconds,
+     * focus distance (float bits, low) and ISO (high), AF state, AF trigger and lens state (bytes
+     * 0 to 2, 0xFF if unknown), AF region left, top, right and bottom (unsigned shorts 0 to 3).
+     */
+    static final int TYPE_CAPTURE_RESULT = 1;
+
+    /**
+     * A tap on the preview. Words: x (float bits, low) and y (high) in view pixels, view width
+     * (low) and height (high), {@code MotionEvent} action (low) and metering cell (high), AF mode.
+     */
+    static final int TYPE_TAP = 2;
+
+    /**
+     * A preview frame. Words: camera timestamp, latch time and draw time in nanoseconds, surface.
+     */
+    static final int TYPE_FRAME = 3;
+
+    /**
+     * The metering configuration changed. Words: display rotation, active array width and height.
+     */
+    static final int TYPE_DISPLAY = 4;
+
+    /**
+     * The AF switches were flipped. Words: continuous AF (0 or 1), software AF (0 or 1).
+     */
+    static final int TYPE_AF_SWITCHES = 5;
+
+    /**
+     * A capture session was configured. Words: the AF mode it started with.
+     */
+    static final int TYPE_SESSION_CONFIGURED = 6;
+
+    static final int SURFACE_TEXTURE_VIEW = 0;
+    static final int SURFACE_GL = 1;
+
+    static final String FILE_PREFIX = "telemetry-";
+    static final String FILE_SUFFIX = ".bin";
+
+    private static final int PAGE_SIZE = 4096;
+
+    /**
+     * Times a writer tries to claim a slot, switching segments in between, before dropping.
+     */
+    private static final int CLAIM_ATTEMPTS = 3;
+
+    private static TelemetryLog sInstance;
+
+    /**
+     * A mapped segment file.
+     */
+    private static final class Segment {
+        final long index;
+        final MappedByteBuffer buffer;
+        final AtomicInteger nextSlot = new AtomicInteger();
+
+        Segment(long index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return The offset of a free record, or -1 if the segment is full
+         */
+        int claim() {
+            // Checked first so failed claims don't wrap the counter around.
+            if (nextSlot.get() >= slotsPerSegment()) return -1;
+            int slot = nextSlot.getAndIncrement();
+            return slot < slotsPerSegment() ? (slot + 1) * RECORD_SIZE : -1;
+        }
+    }
+
+    private final File mDirectory;
+    private final Thread mThread;
+    private final AtomicReference<Segment> mCurrent = new AtomicReference<>();
+    private final AtomicReference<Segment> mSpare = new AtomicReference<>();
+    private final AtomicReference<Segment> mRetired = new AtomicReference<>();
+    private volatile boolean mFlushRequested;
+    private volatile boolean mClosed;
+
+    private final AtomicLong mRecords = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile long mSegments;
+    private volatile String mError;
+
+    // Only touched on the log's thread.
+    private long mNextIndex = -1;
+    private boolean mFailed;
+
+    TelemetryLog(File directory) {
+        mDirectory = directory;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSegmentLoop();
+            }
+        }, "TelemetryLog");
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * The log of the process, writing to {@code directory}. Records logged before its first
+     * segment is mapped are dropped.
+     */
+    static synchronized TelemetryLog getInstance(File directory) {
+        if (sInstance == null) sInstance = new TelemetryLog(directory);
+        return sInstance;
+    }
+
+    static int slotsPerSegment() {
+        return SEGMENT_SIZE / RECORD_SIZE - 1;
+    }
+
+    void logCaptureResult(long sensorTimestampNanos, long frameNumber, int afState, int afTrigger, int lensState,
+                          float focusDistance, long exposureTimeNanos, int iso,
+                          int afRegionLeft, int afRegionTop, int afRegionRight, int afRegionBottom) {
+        write(TYPE_CAPTURE_RESULT, sensorTimestampNanos, frameNumber, exposureTimeNanos,
+                pack(Float.floatToRawIntBits(focusDistance), iso),
+                (afState & 0xFFL) | (afTrigger & 0xFFL) << 8 | (lensState & 0xFFL) << 16,
+                (afRegionLeft & 0xFFFFL) | (afRegionTop & 0xFFFFL) << 16
+                        | (afRegionRight & 0xFFFFL) << 32 | (afRegionBottom & 0xFFFFL) << 48);
+    }
+
+    void logTap(float x, float y, int viewWidth, int viewHeight, int action, int cell, int afMode) {
+        write(TYPE_TAP, pack(Float.floatToRawIntBits(x), Float.floatToRawIntBits(y)),
+                pack(viewWidth, viewHeight), pack(action, cell), afMode, 0, 0);
+    }
+
+    void logFrame(int surface, long timestampNanos, long latchNanos, long drawNanos) {
+        write(TYPE_FRAME, timestampNanos, latchNanos, drawNanos, surface, 0, 0);
+    }
+
+    void logDisplay(int displayRotation, int activeWidth, int activeHeight) {
+        write(TYPE_DISPLAY, displayRotation, activeWidth, activeHeight, 0, 0, 0);
+    }
+
+    void logAfSwitches(boolean continuous, boolean software) {
+        write(TYPE_AF_SWITCHES, continuous ? 1 : 0, software ? 1 : 0, 0, 0, 0, 0);
+    }
+
+    void logSessionConfigured(int afMode) {
+        write(TYPE_SESSION_CONFIGURED, afMode, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Asks for the mapped pages to be written to the files, without waiting for it. Logging
+     * continues meanwhile.
+     */
+    void flush() {
+        mFlushRequested = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Stops logging, writes everything to the files and waits for that.
+     */
+    void close() {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public String toString() {
+        Segment current = mCurrent.get();
+        return "TelemetryLog{records=" + mRecords.get() + ", dropped=" + mDropped.get()
+                + ", segments=" + mSegments + ", current=" + (current != null ? current.index : -1)
+                + (mError != null ? ", error=" + mError : "") + "}";
+    }
+
+    private void write(int type, long w0, long w1, long w2, long w3, long w4, long w5) {
+        long nowNanos = System.nanoTime();
+        for (int attempt = 0; attempt < CLAIM_ATTEMPTS && !mClosed; attempt++) {
+            Segment segment = mCurrent.get();
+            if (segment == null) break;
+            int offset = segment.claim();
+            if (offset < 0) {
+                rotate(segment);
+                continue;
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.putLong(offset + 8, nowNanos);
+            buffer.putLong(offset + 16, w0);
+            buffer.putLong(offset + 24, w1);
+            buffer.putLong(offset + 32, w2);
+            buffer.putLong(offset + 40, w3);
+            buffer.putLong(offset + 48, w4);
+            buffer.putLong(offset + 56, w5);
+            buffer.putInt(offset, type);
+            mRecords.incrementAndGet();
+            return;
+        }
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Replaces the full segment with the spare one, if the log's thread has it ready. Of the
+     * writers that find the segment full, only the first one switches.
+     */
+    private void rotate(Segment full) {
+        Segment spare = mSpare.get();
+        if (spare == null) return;
+        if (mCurrent.compareAndSet(full, spare)) {
+            mSpare.set(null);
+            mRetired.set(full);
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    private void runSegmentLoop() {
+        while (!mClosed) {
+            Segment retired = mRetired.getAndSet(null);
+            if (retired != null) retired.buffer.force();
+            if (mFlushRequested) {
+                mFlushRequested = false;
+                Segment current = mCurrent.get();
+                if (current != null) current.buffer.force();
+            }
+            // The first segment becomes the current one, the next one waits as the spare.
+            while (!mFailed && mSpare.get() == null) {
+                try {
+                    Segment segment = createSegment();
+                    if (!mCurrent.compareAndSet(null, segment)) mSpare.set(segment);
+                } catch (IOException e) {
+                    // Not retried, the device is most likely out of space.
+                    mFailed = true;
+                    mError = e.toString();
+                }
+            }
+            LockSupport.park(this);
+        }
+        Segment current = mCurrent.getAndSet(null);
+        if (current != null) current.buffer.force();
+        Segment retired = mRetired.getAndSet(null);
+        if (retired != null) retired.buffer.force();
+    }
+
+    /**
+     * Creates, maps and pre-faults the next segment file and deletes the ones too old to keep.
+     */
+    private Segment createSegment() throws IOException {
+        if (mNextIndex < 0) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Could not create " + mDirectory);
+            }
+            // Continue after the segments of previous runs.
+            mNextIndex = 0;
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    long index = segmentIndex(file.getName());
+                    if (index >= mNextIndex) mNextIndex = index + 1;
+                }
+            }
+        }
+        long index = mNextIndex++;
+        File file = new File(mDirectory, segmentName(index));
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(SEGMENT_SIZE);
+            // The mapping stays valid once the file is closed.
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        // Touch every page here, so the writers don't take the page faults.
+        for (int offset = 0; offset < SEGMENT_SIZE; offset += PAGE_SIZE) buffer.putInt(offset, 0);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, RECORD_SIZE);
+        buffer.putLong(16, index);
+        buffer.putLong(24, System.currentTimeMillis());
+        buffer.putLong(32, System.nanoTime());
+
+        File old = new File(mDirectory, segmentName(index - MAX_SEGMENTS));
+        if (old.exists() && !old.delete()) mError = "Could not delete " + old;
+        mSegments++;
+        return new Segment(index, buffer);
+    }
+
+    static String segmentName(long index) {
+        return FILE_PREFIX + index + FILE_SUFFIX;
+    }
+
+    /**
+     * @return The index of the segment file called {@code name}, or -1 if it isn't one
+     */
+    static long segmentIndex(String name) {
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long pack(int low, int high) {
+        return (low & 0xFFFFFFFFL) | (long) high << 32;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.android.AFSample;
+
+/**
+ * 4x4 column-major matrix helpers for the camera texture coordinates, following the conventions of
+ * {@code android.opengl.Matrix} (transforms are post-multiplied, {@code M = M * T}).
+ */
+final class TextureTransform {
+
+    private TextureTransform() {}     // do not instantiate
+
+    /**
+     * Builds the orientation / flip correction that {@link PreviewRenderer} applies on top of the
+     * {@code SurfaceTexture} transform.
+     *
+     * @return A new matrix, so it can be handed to another thread as is
+     */
+    static float[] correction(int orientation, boolean verticalFlip) {
+        float[] m = new float[16];
+        setIdentity(m);
+        if (orientation == 90 || orientation == 270) {
+            translate(m, 0f, 1f);
+            rotateZ(m, orientation);
+        }
+        if (verticalFlip) {
+            translate(m, 1f, 1f);
+            scale(m, -1f, -1f);
+        }
+        return m;
+    }
+
+    static void setIdentity(float[] m) {
+        for (int i = 0; i < 16; i++) m[i] = 0f;
+        m[0] = m[5] = m[10] = m[15] = 1f;
+    }
+
+    /**
+     * {@code m = m * translate(x, y, 0)}
+     */
+    static void translate(float[] m, float x, float y) {
+        for (int i = 0; i < 4; i++) {
+            m[12 + i] += m[i] * x + m[4 + i] * y;
+        }
+    }
+
+    /**
+     * {@code m = m * scale(x, y, 1)}
+     */
+    static void scale(float[] m, float x, float y) {
+        for (int i = 0; i < 4; i++) {
+            m[i] *= x;
+            m[4 + i] *= y;
+        }
+    }
+
+    /**
+     * {@code m = m * rotate(degrees, 0, 0, 1)}. Multiples of 90 degrees are exact.
+     */
+    static void rotateZ(float[] m, int degrees) {
+        float c, s;
+        switch (((degrees % 360) + 360) % 360) {
+            case 0: c = 1f; s = 0f; break;
+            case 90: c = 0f; s = 1f; break;
+            case 180: c = -1f; s = 0f; break;
+            case 270: c = 0f; s = -1f; break;
+            default:
+                double radians = Math.toRadians(degrees);
+                c = (float) Math.cos(radians);
+                s = (float) Math.sin(radians);
+        }
+        for (int i = 0; i < 4; i++) {
+            float x = m[i];
+            float y = m[4 + i];
+            m[i] = x * c + y * s;
+            m[4 + i] = y * c - x * s;
+        }
+    }
+
+    /**
+     * {@code result = lhs * rhs}. {@code result} must not alias either operand.
+     */
+    static void multiply(float[] result, float[] lhs, float[] rhs) {
+        for (int col = 0; col < 4; col++) {
+            float r0 = rhs[col * 4], r1 = rhs[col * 4 + 1], r2 = rhs[col * 4 + 2], r3 = rhs[col * 4 + 3];
+            for (int row = 0; row < 4; row++) {
+                result[col * 4 + row] = lhs[row] * r0 + lhs[4 + row] * r1 + lhs[8 + row] * r2 + lhs[12 + row] * r3;
+            }
+        }
+    }
+}
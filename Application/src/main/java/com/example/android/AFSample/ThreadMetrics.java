@@ -0,0 +1,109 @@
+package com.example.android.AFSample;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue depth and latency of the tasks run by one thread: how long each task waited between being
+ * due and starting, how long it ran, and how many tasks were queued when it started.
+ * <p>
+ * Tasks may be queued from any thread. {@link #onStarted} and {@link #onFinished} are called on the
+ * thread itself, the single writer of the histograms, and don't allocate.
+ */
+class ThreadMetrics {
+
+    private final String mName;
+    private final AtomicInteger mDepth = new AtomicInteger();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final LatencyHistogram mWait;
+    private final LatencyHistogram mRun;
+
+    // Only touched on the measured thread.
+    private int mMaxDepth;
+    private long mDepthSum;
+
+    ThreadMetrics(String name) {
+        mName = name;
+        mWait = new LatencyHistogram(name + "_wait");
+        mRun = new LatencyHistogram(name + "_run");
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Counts a task as queued. Must be called before the thread can start it.
+     */
+    void onQueued() {
+        mDepth.incrementAndGet();
+    }
+
+    /**
+     * Uncounts a task that was queued but will never run.
+     */
+    void onCancelled() {
+        mDepth.decrementAndGet();
+    }
+
+    /**
+     * Counts a task that was dropped instead of queued.
+     */
+    void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Called on the thread when it takes a task off its queue.
+     *
+     * @param waitNanos Time the task waited since it was due
+     * @return The start time to pass to {@link #onFinished}
+     */
+    long onStarted(long waitNanos) {
+        int depth = mDepth.getAndDecrement();
+        if (depth > mMaxDepth) mMaxDepth = depth;
+        mDepthSum += depth;
+        mWait.record(waitNanos);
+        return System.nanoTime();
+    }
+
+    /**
+     * Called on the thread when the task it started at {@code startNanos} returns.
+     */
+    void onFinished(long startNanos) {
+        mRun.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the number of tasks queued and not started yet.
+     */
+    int getDepth() {
+        return Math.max(mDepth.get(), 0);
+    }
+
+    long getDropped() {
+        return mDropped.get();
+    }
+
+    LatencyHistogram getWaitLatency() {
+        return mWait;
+    }
+
+    LatencyHistogram getRunTime() {
+        return mRun;
+    }
+
+    @Override
+    public String toString() {
+        long count = mWait.getCount();
+        StringBuilder sb = new StringBuilder("ThreadMetrics{").append(mName)
+                .append(", depth=").append(getDepth())
+                .append(", maxDepth=").append(mMaxDepth)
+                .append(", meanDepth=").append(count > 0 ? Math.round(mDepthSum * 100.0 / count) / 100.0 : 0)
+                .append(", dropped=").append(getDropped()).append("}\n");
+        mWait.appendText(sb);
+        sb.append('\n');
+        mRun.appendText(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.android.AFSample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PreviewQuadTest {
+
+    private static final int TRANSFORM_LOCATION = 3;
+    private static final int CORRECTION_LOCATION = 4;
+    private static final int VERTEX_ARRAY = 7;
+    private static final int INDICES = 6;
+
+    /**
+     * Records the calls as strings, and the matrices uploaded.
+     */
+    private static class RecordingGl implements PreviewQuad.Gl {
+        final List<String> calls = new ArrayList<>();
+        final List<float[]> matrices = new ArrayList<>();
+
+        @Override
+        public void glClear(int mask) {
+            calls.add("clear " + mask);
+        }
+
+        @Override
+        public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+            calls.add("uniform " + location + " " + count + " " + transpose + " " + offset);
+            matrices.add(value);
+        }
+
+        @Override
+        public void glBindVertexArray(int array) {
+            calls.add("bindVertexArray " + array);
+        }
+
+        @Override
+        public void glDrawElements(int mode, int count, int type, int offset) {
+            calls.add("drawElements " + mode + " " + count + " " + type + " " + offset);
+        }
+    }
+
+    private static final String CLEAR = "clear " + PreviewQuad.GL_COLOR_BUFFER_BIT;
+    private static final String TRANSFORM = "uniform " + TRANSFORM_LOCATION + " 1 false 0";
+    private static final String CORRECTION = "uniform " + CORRECTION_LOCATION + " 1 false 0";
+    private static final String BIND = "bindVertexArray " + VERTEX_ARRAY;
+    private static final String DRAW = "drawElements " + PreviewQuad.GL_TRIANGLES + " " + INDICES + " "
+            + PreviewQuad.GL_UNSIGNED_SHORT + " 0";
+
+    private RecordingGl mGl;
+    private PreviewQuad mQuad;
+    private final float[] mTransform = new float[16];
+
+    @Before
+    public void setUp() {
+        mGl = new RecordingGl();
+        mQuad = new PreviewQuad(mGl, TRANSFORM_LOCATION, CORRECTION_LOCATION, VERTEX_ARRAY, INDICES);
+    }
+
+    @Test
+    public void firstFrameUploadsTheCorrection() {
+        float[] correction = TextureTransform.correction(270, true);
+        mQuad.draw(mTransform, correction);
+
+        assertEquals(Arrays.asList(CLEAR, TRANSFORM, CORRECTION, BIND, DRAW), mGl.calls);
+        assertSame(mTransform, mGl.matrices.get(0));
+        assertSame(correction, mGl.matrices.get(1));
+    }
+
+    @Test
+    public void laterFramesOnlyUploadTheTransform() {
+        float[] correction = TextureTransform.correction(0, false);
+        mQuad.draw(mTransform, correction);
+        mGl.calls.clear();
+
+        for (int i = 0; i < 3; i++) mQuad.draw(mTransform, correction);
+
+        assertEquals(Arrays.asList(
+                CLEAR, TRANSFORM, BIND, DRAW,
+                CLEAR, TRANSFORM, BIND, DRAW,
+                CLEAR, TRANSFORM, BIND, DRAW), mGl.calls);
+    }
+
+    @Test
+    public void newCorrectionIsUploadedOnce() {
+        mQuad.draw(mTransform, TextureTransform.correction(0, false));
+        float[] rotated = TextureTransform.correction(90, false);
+        mGl.calls.clear();
+        mGl.matrices.clear();
+
+        mQuad.draw(mTransform, rotated);
+        mQuad.draw(mTransform, rotated);
+
+        assertEquals(Arrays.asList(
+                CLEAR, TRANSFORM, CORRECTION, BIND, DRAW,
+                CLEAR, TRANSFORM, BIND, DRAW), mGl.calls);
+        assertSame(rotated, mGl.matrices.get(1));
+    }
+}
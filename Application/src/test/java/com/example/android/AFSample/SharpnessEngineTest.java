@@ -0,0 +1,286 @@
+package com.example.android.AFSample;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharpnessEngineTest {
+
+    private static final int[] METRICS = {
+            SharpnessEngine.LAPLACIAN_VARIANCE, SharpnessEngine.TENENGRAD, SharpnessEngine.BRENNER};
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 16;
+
+    /**
+     * Pixels {@link SharpnessEngine#score} measures over the whole {@link #WIDTH} x {@link #HEIGHT}
+     * image: columns 1 to 13 and rows 1 to 14.
+     */
+    private static final double COUNT = 13 * 14;
+
+    private interface Pattern {
+        int luma(int x, int y);
+    }
+
+    /**
+     * Lays the pattern out with the given strides, padding the rows and pixels with noise that must
+     * not be read.
+     */
+    private static ByteBuffer image(Pattern pattern, int width, int height, int rowStride, int pixelStride) {
+        byte[] bytes = new byte[rowStride * height];
+        new Random(1).nextBytes(bytes);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) bytes[y * rowStride + x * pixelStride] = (byte) pattern.luma(x, y);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static double score(int metric, Pattern pattern) {
+        return SharpnessEngine.score(metric, image(pattern, WIDTH, HEIGHT, WIDTH, 1), WIDTH, 1, 0, 0, WIDTH, HEIGHT);
+    }
+
+    private static final Pattern STEP = new Pattern() {
+        @Override
+        public int luma(int x, int y) {
+            return x < 8 ? 0 : 100;
+        }
+    };
+
+    private static final Pattern RAMP = new Pattern() {
+        @Override
+        public int luma(int x, int y) {
+            return x < 7 ? 0 : x == 7 ? 50 : 100;
+        }
+    };
+
+    private static final Pattern CHECKERBOARD = new Pattern() {
+        @Override
+        public int luma(int x, int y) {
+            return ((x + y) & 1) == 0 ? 255 : 0;
+        }
+    };
+
+    @Test
+    public void flatImageScoresZero() {
+        Pattern flat = new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return 128;
+            }
+        };
+        for (int metric : METRICS) assertEquals(0, score(metric, flat), 0);
+    }
+
+    @Test
+    public void stepEdge() {
+        // Columns 7 and 8 have a Laplacian of -100 and 100.
+        assertEquals(14 * 2 * 100 * 100 / COUNT, score(SharpnessEngine.LAPLACIAN_VARIANCE, STEP), 1e-9);
+        // Columns 7 and 8 have gx = 100 + 2 * 100 + 100.
+        assertEquals(14 * 2 * 400 * 400 / COUNT, score(SharpnessEngine.TENENGRAD, STEP), 1e-9);
+        // Columns 6 and 7 are two columns from the other side.
+        assertEquals(14 * 2 * 100 * 100 / COUNT, score(SharpnessEngine.BRENNER, STEP), 1e-9);
+    }
+
+    @Test
+    public void sharperEdgeScoresHigher() {
+        for (int metric : METRICS) {
+            String name = SharpnessEngine.metricToString(metric);
+            assertTrue(name, score(metric, STEP) > score(metric, RAMP));
+            assertTrue(name, score(metric, RAMP) > 0);
+        }
+    }
+
+    @Test
+    public void checkerboard() {
+        // Every pixel is 4 * 255 away from its neighbours, the mean is 0.
+        assertEquals(1020 * 1020, score(SharpnessEngine.LAPLACIAN_VARIANCE, CHECKERBOARD), 1e-9);
+        // The Sobel kernels cancel out, and pixels two columns apart are equal.
+        assertEquals(0, score(SharpnessEngine.TENENGRAD, CHECKERBOARD), 0);
+        assertEquals(0, score(SharpnessEngine.BRENNER, CHECKERBOARD), 0);
+    }
+
+    @Test
+    public void stridesDontChangeTheScore() {
+        for (int metric : METRICS) {
+            double packed = score(metric, RAMP);
+            // A padded, semi-planar layout.
+            int rowStride = WIDTH * 2 + 8;
+            ByteBuffer luma = image(RAMP, WIDTH, HEIGHT, rowStride, 2);
+            assertEquals(SharpnessEngine.metricToString(metric), packed,
+                    SharpnessEngine.score(metric, luma, rowStride, 2, 0, 0, WIDTH, HEIGHT), 1e-9);
+        }
+    }
+
+    @Test
+    public void tooSmallRegionScoresZero() {
+        ByteBuffer luma = image(CHECKERBOARD, WIDTH, HEIGHT, WIDTH, 1);
+        for (int metric : METRICS) assertEquals(0, SharpnessEngine.score(metric, luma, WIDTH, 1, 4, 4, 6, 6), 0);
+    }
+
+    @Test
+    public void bandsAddUpToOnePass() {
+        int width = 64;
+        int height = 48;
+        final Random random = new Random(2);
+        ByteBuffer luma = image(new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return random.nextInt(256);
+            }
+        }, width, height, width, 1);
+        for (int metric : METRICS) {
+            long[] whole = new long[SharpnessEngine.ACCUMULATORS];
+            SharpnessEngine.accumulate(metric, luma, width, 1, 1, width - 2, 1, height - 1, whole, 0);
+
+            // Uneven bands, each in its own slice, merged as FrameAnalysisScheduler does.
+            int[] edges = {1, 2, 9, 30, 31, height - 1};
+            long[] slices = new long[(edges.length - 1) * SharpnessEngine.ACCUMULATORS];
+            for (int b = 0; b + 1 < edges.length; b++) {
+                SharpnessEngine.accumulate(metric, luma, width, 1, 1, width - 2, edges[b], edges[b + 1],
+                        slices, b * SharpnessEngine.ACCUMULATORS);
+            }
+            long[] merged = new long[SharpnessEngine.ACCUMULATORS];
+            for (int i = 0; i < slices.length; i++) merged[i % SharpnessEngine.ACCUMULATORS] += slices[i];
+
+            String name = SharpnessEngine.metricToString(metric);
+            assertArrayEquals(name, whole, merged);
+            assertEquals(name, SharpnessEngine.finish(metric, whole, 0),
+                    SharpnessEngine.finish(metric, merged, 0), 0);
+        }
+    }
+
+    @Test
+    public void parallelAnalysisMatchesOnePass() {
+        final int width = 64;
+        final int height = 96;
+        final Random random = new Random(3);
+        ByteBuffer luma = image(new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return random.nextInt(256);
+            }
+        }, width, height, width, 1);
+        FrameAnalysisScheduler.Kernel[] kernels = new FrameAnalysisScheduler.Kernel[METRICS.length];
+        for (int k = 0; k < METRICS.length; k++) kernels[k] = new AnalysisKernels.Sharpness(METRICS[k]);
+        final double[] values = new double[METRICS.length];
+        FrameAnalysisScheduler scheduler = new FrameAnalysisScheduler(kernels, 4, Long.MAX_VALUE,
+                new FrameAnalysisScheduler.RegionSource() {
+                    @Override
+                    public void getRegion(AnalysisFrame frame, int[] out) {
+                        out[0] = 0;
+                        out[1] = 0;
+                        out[2] = width;
+                        out[3] = height;
+                    }
+                },
+                new FrameAnalysisScheduler.Listener() {
+                    @Override
+                    public void onFrameAnalyzed(long timestampNanos, FrameAnalysisScheduler.Results results) {
+                        for (int k = 0; k < values.length; k++) values[k] = results.getValue(k);
+                    }
+                });
+        AnalysisFrame frame = new AnalysisFrame();
+        // Several frames, so the pool threads pick up every one of them.
+        for (int i = 0; i < 20; i++) {
+            frame.set(luma, width, 1, width, height, i, System.nanoTime(), null);
+            scheduler.analyze(frame);
+            for (int k = 0; k < METRICS.length; k++) {
+                assertEquals(SharpnessEngine.metricToString(METRICS[k]),
+                        SharpnessEngine.score(METRICS[k], luma, width, 1, 0, 0, width, height), values[k], 1e-9);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failingKernelDoesntBlockTheAnalysis() {
+        final int width = 64;
+        final int height = 96;
+        final FrameAnalysisScheduler.Kernel brenner = new AnalysisKernels.Sharpness(SharpnessEngine.BRENNER);
+        FrameAnalysisScheduler.Kernel failing = new FrameAnalysisScheduler.Kernel() {
+            @Override
+            public String getName() {
+                return "failing";
+            }
+
+            @Override
+            public int getAccumulators() {
+                return brenner.getAccumulators();
+            }
+
+            @Override
+            public void accumulate(AnalysisFrame frame, int left, int top, int right, int bottom, long[] acc,
+                    int offset) {
+                // Fails on whichever thread gets a tile in the lower half.
+                if (bottom > height / 2) throw new IllegalStateException("kernel");
+                brenner.accumulate(frame, left, top, right, bottom, acc, offset);
+            }
+
+            @Override
+            public double finish(long[] acc, int offset) {
+                return brenner.finish(acc, offset);
+            }
+        };
+        FrameAnalysisScheduler scheduler = new FrameAnalysisScheduler(
+                new FrameAnalysisScheduler.Kernel[]{failing}, 4, Long.MAX_VALUE,
+                new FrameAnalysisScheduler.RegionSource() {
+                    @Override
+                    public void getRegion(AnalysisFrame frame, int[] out) {
+                        out[0] = 0;
+                        out[1] = 0;
+                        out[2] = width;
+                        out[3] = height;
+                    }
+                },
+                new FrameAnalysisScheduler.Listener() {
+                    @Override
+                    public void onFrameAnalyzed(long timestampNanos, FrameAnalysisScheduler.Results results) {
+                    }
+                });
+        ByteBuffer luma = image(CHECKERBOARD, width, height, width, 1);
+        AnalysisFrame frame = new AnalysisFrame();
+        for (int i = 0; i < 20; i++) {
+            frame.set(luma, width, 1, width, height, i, System.nanoTime(), null);
+            try {
+                scheduler.analyze(frame);
+                fail("Analyzed a frame whose kernel failed");
+            } catch (IllegalStateException e) {
+                assertEquals("kernel", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void imageRegionWithoutCrop() {
+        int[] out = new int[4];
+        SharpnessEngine.toImageRegion(new int[]{1000, 750, 2000, 1500}, 4000, 3000, 640, 480, out);
+        assertArrayEquals(new int[]{160, 120, 320, 240}, out);
+    }
+
+    @Test
+    public void imageRegionOfWiderOutput() {
+        // A 16:9 output is the middle 4000x2250 of a 4:3 array, at half the size.
+        int[] out = new int[4];
+        SharpnessEngine.toImageRegion(new int[]{0, 375, 4000, 2625}, 4000, 3000, 2000, 1125, out);
+        assertArrayEquals(new int[]{0, 0, 2000, 1125}, out);
+        SharpnessEngine.toImageRegion(new int[]{2000, 1500, 2400, 1800}, 4000, 3000, 2000, 1125, out);
+        // Rounded outwards.
+        assertArrayEquals(new int[]{1000, 562, 1200, 713}, out);
+    }
+
+    @Test
+    public void imageRegionOfNarrowerOutput() {
+        // A square output is the middle 3000x3000 of a 4:3 array, at a quarter of the size.
+        int[] out = new int[4];
+        SharpnessEngine.toImageRegion(new int[]{500, 0, 3500, 3000}, 4000, 3000, 750, 750, out);
+        assertArrayEquals(new int[]{0, 0, 750, 750}, out);
+        // Clamped to the image when the region is outside the crop.
+        SharpnessEngine.toImageRegion(new int[]{0, 0, 400, 400}, 4000, 3000, 750, 750, out);
+        assertArrayEquals(new int[]{0, 0, 0, 100}, out);
+    }
+}
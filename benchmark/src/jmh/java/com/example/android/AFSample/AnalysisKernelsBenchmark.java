@@ -0,0 +1,86 @@
+package com.example.android.AFSample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The frame analysis kernels on a single thread, over the whole of a {@link SyntheticScene} frame
+ * of the analysis stream's sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AnalysisKernelsBenchmark {
+
+    @Param({"320x240", "640x480", "1280x960"})
+    public String size;
+
+    private AnalysisFrame mFrame;
+    private final FrameAnalysisScheduler.Kernel mLaplacian =
+            new AnalysisKernels.Sharpness(SharpnessEngine.LAPLACIAN_VARIANCE);
+    private final FrameAnalysisScheduler.Kernel mTenengrad = new AnalysisKernels.Sharpness(SharpnessEngine.TENENGRAD);
+    private final FrameAnalysisScheduler.Kernel mBrenner = new AnalysisKernels.Sharpness(SharpnessEngine.BRENNER);
+    private final FrameAnalysisScheduler.Kernel mLuminance = new AnalysisKernels.LuminanceHistogram();
+    private final FrameAnalysisScheduler.Kernel mEdgeDensity = new AnalysisKernels.EdgeDensity(32);
+    private final long[] mAcc = new long[AnalysisKernels.LuminanceHistogram.BINS + 1];
+
+    @Setup
+    public void setUp() {
+        mFrame = renderFrame(size);
+    }
+
+    /**
+     * A frame of the standard scene with the lens on the text, e.g. "640x480".
+     */
+    static AnalysisFrame renderFrame(String size) {
+        String[] wh = size.split("x");
+        SyntheticScene.Image image = new SyntheticScene.Image(Integer.parseInt(wh[0]), Integer.parseInt(wh[1]));
+        SyntheticScene scene = SyntheticScene.standard(4032, 3024, 1);
+        scene.render(image, 2f, 1f, 0);
+        AnalysisFrame frame = new AnalysisFrame();
+        frame.set(image.y, image.yRowStride, 1, image.width, image.height, 0, 0, image);
+        return frame;
+    }
+
+    @Benchmark
+    public double laplacianVariance() {
+        return run(mLaplacian);
+    }
+
+    @Benchmark
+    public double tenengrad() {
+        return run(mTenengrad);
+    }
+
+    @Benchmark
+    public double brenner() {
+        return run(mBrenner);
+    }
+
+    @Benchmark
+    public double luminanceHistogram() {
+        return run(mLuminance);
+    }
+
+    @Benchmark
+    public double edgeDensity() {
+        return run(mEdgeDensity);
+    }
+
+    private double run(FrameAnalysisScheduler.Kernel kernel) {
+        Arrays.fill(mAcc, 0);
+        AnalysisFrame frame = mFrame;
+        // The kernels read a pixel around the rectangle, and two to the right.
+        kernel.accumulate(frame, 1, 1, frame.width - 2, frame.height - 1, mAcc, 0);
+        return kernel.finish(mAcc, 0);
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.android.AFSample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FrameAnalysisScheduler} with the kernels of {@code CameraFragment}, over the whole frame,
+ * split across threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameAnalysisBenchmark {
+
+    @Param({"640x480", "1280x960"})
+    public String size;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private AnalysisFrame mFrame;
+    private FrameAnalysisScheduler mScheduler;
+    private double mSharpness;
+
+    @Setup
+    public void setUp() {
+        mFrame = AnalysisKernelsBenchmark.renderFrame(size);
+        mScheduler = new FrameAnalysisScheduler(
+                new FrameAnalysisScheduler.Kernel[]{
+                        new AnalysisKernels.Sharpness(SharpnessEngine.LAPLACIAN_VARIANCE),
+                        new AnalysisKernels.LuminanceHistogram(),
+                        new AnalysisKernels.EdgeDensity(32)},
+                threads, Long.MAX_VALUE,
+                new FrameAnalysisScheduler.RegionSource() {
+                    @Override
+                    public void getRegion(AnalysisFrame frame, int[] out) {
+                        out[0] = 0;
+                        out[1] = 0;
+                        out[2] = frame.width;
+                        out[3] = frame.height;
+                    }
+                },
+                new FrameAnalysisScheduler.Listener() {
+                    @Override
+                    public void onFrameAnalyzed(long timestampNanos, FrameAnalysisScheduler.Results results) {
+                        mSharpness = results.getValue(0);
+                    }
+                });
+    }
+
+    @Benchmark
+    public double analyze() {
+        mScheduler.analyze(mFrame);
+        return mSharpness;
+    }
+}
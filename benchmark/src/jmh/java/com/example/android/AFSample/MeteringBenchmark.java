@@ -0,0 +1,60 @@
+package com.example.android.AFSample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tap to metering region conversion, which replaced {@code convertRectToMeteringRectangle} and
+ * the rotation mapping of {@code setListeners()}: mapping a tap to a cell for every display
+ * rotation, and the cell to its region in active-array coordinates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MeteringBenchmark {
+
+    private static final int TAPS = 1024;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1440;
+
+    @Param({"0", "1", "2", "3"})
+    public int rotation;
+
+    private final MeteringMapper mMapper = new MeteringMapper();
+    private final float[] mTapX = new float[TAPS];
+    private final float[] mTapY = new float[TAPS];
+    private final int[] mRegion = new int[4];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mMapper.configure(rotation, 4032, 3024);
+        Random random = new Random(1);
+        for (int i = 0; i < TAPS; i++) {
+            mTapX[i] = random.nextFloat() * VIEW_WIDTH;
+            mTapY[i] = random.nextFloat() * VIEW_HEIGHT;
+        }
+    }
+
+    @Benchmark
+    public int mapTap() {
+        int i = mNext++ & (TAPS - 1);
+        return mMapper.mapTap(mTapX[i], mTapY[i], VIEW_WIDTH, VIEW_HEIGHT);
+    }
+
+    @Benchmark
+    public int[] mapTapToRegion() {
+        int i = mNext++ & (TAPS - 1);
+        mMapper.getRegion(mMapper.mapTap(mTapX[i], mTapY[i], VIEW_WIDTH, VIEW_HEIGHT), mRegion);
+        return mRegion;
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.android.AFSample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preview size selection ({@code chooseOptimalSize}) over the output size lists of cameras, read
+ * from {@code output_sizes.txt} next to this class.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreviewSizeBenchmark {
+
+    private static final String SIZES_RESOURCE = "output_sizes.txt";
+
+    @Param({"back_12mp", "front_8mp", "back_48mp", "legacy_5mp"})
+    public String camera;
+
+    private final PreviewSizeSelector mSelector = new PreviewSizeSelector(16, 9, 30);
+    private int[] mWidths;
+    private int[] mHeights;
+    private long[] mMinFrameDurations;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] sizes = readSizes(camera);
+        mWidths = new int[sizes.length];
+        mHeights = new int[sizes.length];
+        mMinFrameDurations = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            int x = sizes[i].indexOf('x');
+            int colon = sizes[i].indexOf(':');
+            mWidths[i] = Integer.parseInt(sizes[i].substring(0, x));
+            mHeights[i] = Integer.parseInt(sizes[i].substring(x + 1, colon));
+            mMinFrameDurations[i] = Long.parseLong(sizes[i].substring(colon + 1));
+        }
+    }
+
+    @Benchmark
+    public int select() {
+        return mSelector.select(mWidths, mHeights, mMinFrameDurations, 1080, 1920, 1080, 2280);
+    }
+
+    /**
+     * Returns the {@code <width>x<height>:<minFrameDurationNanos>} entries of a camera.
+     */
+    private static String[] readSizes(String camera) throws IOException {
+        InputStream in = PreviewSizeBenchmark.class.getResourceAsStream(SIZES_RESOURCE);
+        if (in == null) throw new IOException("Missing " + SIZES_RESOURCE);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].equals(camera)) {
+                    String[] sizes = new String[fields.length - 1];
+                    System.arraycopy(fields, 1, sizes, 0, sizes.length);
+                    return sizes;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        throw new IOException("No camera " + camera + " in " + SIZES_RESOURCE);
+    }
+}
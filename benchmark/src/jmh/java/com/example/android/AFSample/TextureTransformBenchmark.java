@@ -0,0 +1,196 @@
+package com.example.android.AFSample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The texture transform math of {@code PreviewRenderer.onDrawFrame}: the orientation and flip
+ * correction it applied to the {@code SurfaceTexture} matrix on every frame with
+ * {@code android.opengl.Matrix}, against building the correction once per rotation and combining
+ * it with the frame's matrix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TextureTransformBenchmark {
+
+    @Param({"0", "90", "180", "270"})
+    public int orientation;
+
+    @Param({"false", "true"})
+    public boolean verticalFlip;
+
+    private final float[] mSurfaceTransform = new float[16];
+    private final float[] mFrameTransform = new float[16];
+    private final float[] mResult = new float[16];
+    private float[] mCorrection;
+
+    @Setup
+    public void setUp() {
+        // A typical SurfaceTexture matrix: a vertical flip.
+        TextureTransform.setIdentity(mSurfaceTransform);
+        TextureTransform.translate(mSurfaceTransform, 0f, 1f);
+        TextureTransform.scale(mSurfaceTransform, 1f, -1f);
+        mCorrection = TextureTransform.correction(orientation, verticalFlip);
+    }
+
+    /**
+     * What every frame did before the correction was precomputed, with the same
+     * {@code android.opengl.Matrix} calls.
+     */
+    @Benchmark
+    public float[] perFrameCorrection() {
+        System.arraycopy(mSurfaceTransform, 0, mFrameTransform, 0, 16);
+        if (orientation == 90 || orientation == 270) {
+            AndroidMatrix.translateM(mFrameTransform, 0, 0f, 1f, 0);
+            AndroidMatrix.rotateM(mFrameTransform, 0, orientation, 0, 0, 1f);
+        }
+        if (verticalFlip) {
+            AndroidMatrix.translateM(mFrameTransform, 0, 1f, 1f, 0);
+            AndroidMatrix.scaleM(mFrameTransform, 0, -1f, -1f, 1f);
+        }
+        return mFrameTransform;
+    }
+
+    /**
+     * The correction built on a rotation.
+     */
+    @Benchmark
+    public float[] buildCorrection() {
+        return TextureTransform.correction(orientation, verticalFlip);
+    }
+
+    /**
+     * The frame's matrix combined with the precomputed correction on the CPU, which the shader
+     * now does instead.
+     */
+    @Benchmark
+    public float[] combine() {
+        TextureTransform.multiply(mResult, mSurfaceTransform, mCorrection);
+        return mResult;
+    }
+
+    /**
+     * A plain-Java copy of the {@code android.opengl.Matrix} methods the renderer called, as in
+     * AOSP: {@code rotateM} goes through a shared scratch array under a lock, and
+     * {@code multiplyMM}, native on Android, is the usual column-major product.
+     */
+    static final class AndroidMatrix {
+        private static final float[] sTemp = new float[32];
+
+        private AndroidMatrix() {}     // do not instantiate
+
+        static void multiplyMM(float[] result, int resultOffset, float[] lhs, int lhsOffset,
+                               float[] rhs, int rhsOffset) {
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 4; j++) {
+                    float sum = 0;
+                    for (int k = 0; k < 4; k++) {
+                        sum += lhs[lhsOffset + k * 4 + j] * rhs[rhsOffset + i * 4 + k];
+                    }
+                    result[resultOffset + i * 4 + j] = sum;
+                }
+            }
+        }
+
+        static void scaleM(float[] m, int mOffset, float x, float y, float z) {
+            for (int i = 0; i < 4; i++) {
+                int mi = mOffset + i;
+                m[mi] *= x;
+                m[4 + mi] *= y;
+                m[8 + mi] *= z;
+            }
+        }
+
+        static void translateM(float[] m, int mOffset, float x, float y, float z) {
+            for (int i = 0; i < 4; i++) {
+                int mi = mOffset + i;
+                m[12 + mi] += m[mi] * x + m[4 + mi] * y + m[8 + mi] * z;
+            }
+        }
+
+        static void rotateM(float[] m, int mOffset, float a, float x, float y, float z) {
+            synchronized (sTemp) {
+                setRotateM(sTemp, 0, a, x, y, z);
+                multiplyMM(sTemp, 16, m, mOffset, sTemp, 0);
+                System.arraycopy(sTemp, 16, m, mOffset, 16);
+            }
+        }
+
+        static void setRotateM(float[] rm, int rmOffset, float a, float x, float y, float z) {
+            rm[rmOffset + 3] = 0;
+            rm[rmOffset + 7] = 0;
+            rm[rmOffset + 11] = 0;
+            rm[rmOffset + 12] = 0;
+            rm[rmOffset + 13] = 0;
+            rm[rmOffset + 14] = 0;
+            rm[rmOffset + 15] = 1;
+            a *= (float) (Math.PI / 180.0f);
+            float s = (float) Math.sin(a);
+            float c = (float) Math.cos(a);
+            if (1.0f == x && 0.0f == y && 0.0f == z) {
+                rm[rmOffset + 5] = c;
+                rm[rmOffset + 10] = c;
+                rm[rmOffset + 6] = s;
+                rm[rmOffset + 9] = -s;
+                rm[rmOffset + 1] = 0;
+                rm[rmOffset + 2] = 0;
+                rm[rmOffset + 4] = 0;
+                rm[rmOffset + 8] = 0;
+                rm[rmOffset + 0] = 1;
+            } else if (0.0f == x && 1.0f == y && 0.0f == z) {
+                rm[rmOffset + 0] = c;
+                rm[rmOffset + 10] = c;
+                rm[rmOffset + 8] = s;
+                rm[rmOffset + 2] = -s;
+                rm[rmOffset + 1] = 0;
+                rm[rmOffset + 4] = 0;
+                rm[rmOffset + 6] = 0;
+                rm[rmOffset + 9] = 0;
+                rm[rmOffset + 5] = 1;
+            } else if (0.0f == x && 0.0f == y && 1.0f == z) {
+                rm[rmOffset + 0] = c;
+                rm[rmOffset + 5] = c;
+                rm[rmOffset + 1] = s;
+                rm[rmOffset + 4] = -s;
+                rm[rmOffset + 2] = 0;
+                rm[rmOffset + 6] = 0;
+                rm[rmOffset + 8] = 0;
+                rm[rmOffset + 9] = 0;
+                rm[rmOffset + 10] = 1;
+            } else {
+                float len = (float) Math.sqrt(x * x + y * y + z * z);
+                if (1.0f != len) {
+                    float recipLen = 1.0f / len;
+                    x *= recipLen;
+                    y *= recipLen;
+                    z *= recipLen;
+                }
+                float nc = 1.0f - c;
+                float xy = x * y;
+                float yz = y * z;
+                float zx = z * x;
+                float xs = x * s;
+                float ys = y * s;
+                float zs = z * s;
+                rm[rmOffset + 0] = x * x * nc + c;
+                rm[rmOffset + 4] = xy * nc - zs;
+                rm[rmOffset + 8] = zx * nc + ys;
+                rm[rmOffset + 1] = xy * nc + zs;
+                rm[rmOffset + 5] = y * y * nc + c;
+                rm[rmOffset + 9] = yz * nc - xs;
+                rm[rmOffset + 2] = zx * nc - ys;
+                rm[rmOffset + 6] = yz * nc + xs;
+                rm[rmOffset + 10] = z * z * nc + c;
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.example.android.AFSample;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Replays a session recorded by {@link TelemetryLog} against {@link AfControlPath}, on a plain
+ * JVM, so changes to the tap-to-focus logic can be checked without a device:
+ * <pre>
+ *   java -cp benchmark/build/classes/java/main com.example.android.AFSample.AfReplay [--pipeline-ms 100] telemetry
+ * </pre>
+ * Taps, display changes, AF switches and session starts are fed to the control path at their
+ * recorded times, on a {@link VirtualClock}. The requests it submits go to a {@link Session}
+ * standing in for the {@code CameraCaptureSession}, and the recorded capture results come back from
+ * it: each result is attributed to the oldest single capture submitted a pipeline delay before it,
+ * or else to the repeating request that was current then, and carries that request's AF trigger,
+ * while the AF and lens states are the recorded ones. The report (requests, coalescing, AF triggers
+ * sent, simulated tap-to-focus times) only depends on the log, so it can be compared across builds.
+ * <p>
+ * Software AF searches are counted but not simulated, the log has no sharpness.
+ */
+class AfReplay {
+
+    /**
+     * Time from submitting a request to the first capture result of it, by default.
+     */
+    static final long DEFAULT_PIPELINE_NANOS = 100000000L;
+
+    /**
+     * A request of the {@link Session}.
+     */
+    static final class Request {
+        final int[] regions;
+        final int afMode;
+        final int afTrigger;
+        final long submitNanos;
+
+        Request(int[] regions, int afMode, int afTrigger, long submitNanos) {
+            this.regions = regions;
+            this.afMode = afMode;
+            this.afTrigger = afTrigger;
+            this.submitNanos = submitNanos;
+        }
+    }
+
+    /**
+     * Stands in for the capture session: keeps the fields of the repeating request the way
+     * {@code CaptureRequest.Builder} does, and remembers when every request was submitted. AF
+     * triggers go out in single captures, as in {@link CameraFragment}.
+     */
+    static final class Session {
+        private final List<Request> mRequests = new ArrayList<>();
+        private final ArrayDeque<Request> mCaptures = new ArrayDeque<>();
+        private boolean mConfigured;
+        private int[] mRegions;
+        private int mAfMode;
+
+        private long mSubmitted;
+        private long mCaptured;
+        private final long[] mTriggers = new long[3];
+
+        /**
+         * Starts a new session with the repeating request of the preview.
+         */
+        Request configure(int afMode, long nowNanos) {
+            mConfigured = true;
+            mRegions = null;
+            mAfMode = afMode;
+            mRequests.clear();
+            mCaptures.clear();
+            return setRepeatingRequest(null, AfCommandScheduler.UNCHANGED, AfCommandScheduler.UNCHANGED, nowNanos);
+        }
+
+        boolean isConfigured() {
+            return mConfigured;
+        }
+
+        /**
+         * Updates the repeating request, sending {@code afTrigger} in a single capture first.
+         *
+         * @return The trigger capture if there is one, else the new repeating request
+         */
+        Request setRepeatingRequest(int[] regions, int afMode, int afTrigger, long nowNanos) {
+            if (regions != null) mRegions = regions;
+            if (afMode != AfCommandScheduler.UNCHANGED) mAfMode = afMode;
+            Request capture = null;
+            if (afTrigger != AfCommandScheduler.UNCHANGED && afTrigger != AfController.AF_TRIGGER_IDLE) {
+                if (afTrigger < mTriggers.length) mTriggers[afTrigger]++;
+                capture = new Request(mRegions, mAfMode, afTrigger, nowNanos);
+                mCaptures.add(capture);
+                mCaptured++;
+            }
+            Request request = new Request(mRegions, mAfMode, AfController.AF_TRIGGER_IDLE, nowNanos);
+            mRequests.add(request);
+            mSubmitted++;
+            return capture != null ? capture : request;
+        }
+
+        long getTriggerCount(int afTrigger) {
+            return mTriggers[afTrigger];
+        }
+
+        long getRepeatingRequestCount() {
+            return mSubmitted;
+        }
+
+        /**
+         * The request a result completed at {@code resultNanos} was captured with: the oldest single
+         * capture submitted a pipeline delay before, else the last repeating request submitted by
+         * then, or the first one of the session. Null if there's no session.
+         */
+        Request getRequest(long resultNanos, long pipelineNanos) {
+            long capturedNanos = resultNanos - pipelineNanos;
+            Request capture = mCaptures.peek();
+            if (capture != null && capture.submitNanos <= capturedNanos) return mCaptures.poll();
+            Request found = null;
+            for (int i = mRequests.size() - 1; i >= 0; i--) {
+                Request request = mRequests.get(i);
+                found = request;
+                if (request.submitNanos <= capturedNanos) break;
+            }
+            return found;
+        }
+
+        @Override
+        public String toString() {
+            return "Session{repeatingRequests=" + mSubmitted + ", captures=" + mCaptured
+                    + ", triggers start/cancel=" + mTriggers[AfController.AF_TRIGGER_START]
+                    + "/" + mTriggers[AfController.AF_TRIGGER_CANCEL] + "}";
+        }
+    }
+
+    private final VirtualClock mClock;
+    private final long mStartNanos;
+    private final long mPipelineNanos;
+    private final Session mSession = new Session();
+    private final AfControlPath<int[]> mControlPath;
+
+    private long mTaps;
+    private long mSwitches;
+    private long mDisplays;
+    private long mSessions;
+    private long mResults;
+    private long mIgnored;
+    private long mStateChanges;
+    private long mSoftwareSearches;
+    private long mEndNanos;
+
+    AfReplay(long startNanos, long pipelineNanos) {
+        mClock = new VirtualClock(startNanos);
+        mStartNanos = startNanos;
+        mEndNanos = startNanos;
+        mPipelineNanos = pipelineNanos;
+        mControlPath = new AfControlPath<int[]>(mClock, new AfControlPath.Host<int[]>() {
+            @Override
+            public int[] createRegions(int left, int top, int right, int bottom) {
+                return new int[]{left, top, right, bottom};
+            }
+
+            @Override
+            public Object submit(int[] regions, int afMode, int afTrigger) {
+                if (!mSession.isConfigured()) return null;
+                return mSession.setRepeatingRequest(regions, afMode, afTrigger, mClock.nanoTime());
+            }
+
+            @Override
+            public void startSoftwareFocus(long touchNanos) {
+                mSoftwareSearches++;
+            }
+
+            @Override
+            public void cancelSoftwareFocus() {
+            }
+
+            @Override
+            public void onAfStateChanged(int state, long frameNumber) {
+                mStateChanges++;
+            }
+
+            @Override
+            public long nanoTime() {
+                return mClock.nanoTime();
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        long pipelineNanos = DEFAULT_PIPELINE_NANOS;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--pipeline-ms") && i + 1 < args.length) {
+                pipelineNanos = Long.parseLong(args[++i]) * 1000000L;
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        List<File> files = TelemetryLogReader.findSegments(paths);
+        if (files.isEmpty()) {
+            System.err.println("Usage: AfReplay [--pipeline-ms <delay>] <segment file or directory>...");
+            System.exit(2);
+        }
+
+        // Records of different threads are in slot order, the replay needs them in time order.
+        final List<long[]> records = new ArrayList<>();
+        TelemetryLogReader.read(files, new TelemetryLogReader.Visitor() {
+            @Override
+            public void visit(TelemetryLogReader.Record record) {
+                long[] copy = new long[2 + record.words.length];
+                copy[0] = record.timeNanos;
+                copy[1] = record.type;
+                System.arraycopy(record.words, 0, copy, 2, record.words.length);
+                records.add(copy);
+            }
+        });
+        if (records.isEmpty()) {
+            System.err.println("No records");
+            System.exit(1);
+        }
+        Collections.sort(records, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+
+        long wallStartNanos = System.nanoTime();
+        AfReplay replay = new AfReplay(records.get(0)[0], pipelineNanos);
+        for (long[] record : records) replay.post(record);
+        replay.run();
+        long wallNanos = System.nanoTime() - wallStartNanos;
+
+        System.out.println(replay.report());
+        double simulatedMs = replay.getSimulatedNanos() / 1e6;
+        System.err.println("Replayed " + Math.round(simulatedMs) + " ms of session in "
+                + Math.round(wallNanos / 1e6) + " ms, " + Math.round(simulatedMs / Math.max(1e-3, wallNanos / 1e6))
+                + "x real time");
+    }
+
+    /**
+     * Schedules a recorded event: {time, type, words...} as read from the log.
+     */
+    void post(final long[] record) {
+        long timeNanos = record[0];
+        mEndNanos = Math.max(mEndNanos, timeNanos);
+        final long[] w = new long[record.length - 2];
+        System.arraycopy(record, 2, w, 0, w.length);
+        Runnable event;
+        switch ((int) record[1]) {
+            case TelemetryLog.TYPE_TAP:
+                event = new Runnable() {
+                    @Override
+                    public void run() {
+                        mTaps++;
+                        mControlPath.onTap(Float.intBitsToFloat((int) w[0]), Float.intBitsToFloat((int) (w[0] >> 32)),
+                                (int) w[1], (int) (w[1] >> 32));
+                    }
+                };
+                break;
+            case TelemetryLog.TYPE_DISPLAY:
+                event = new Runnable() {
+                    @Override
+                    public void run() {
+                        mDisplays++;
+                        mControlPath.configureMetering((int) w[0], (int) w[1], (int) w[2]);
+                    }
+                };
+                break;
+            case TelemetryLog.TYPE_AF_SWITCHES:
+                event = new Runnable() {
+                    @Override
+                    public void run() {
+                        mSwitches++;
+                        boolean continuous = w[0] != 0;
+                        boolean software = w[1] != 0;
+                        if (continuous != mControlPath.isContinuous()) mControlPath.setContinuous(continuous);
+                        if (software != mControlPath.isSoftware()) mControlPath.setSoftware(software);
+                    }
+                };
+                break;
+            case TelemetryLog.TYPE_SESSION_CONFIGURED:
+                event = new Runnable() {
+                    @Override
+                    public void run() {
+                        configureSession();
+                    }
+                };
+                break;
+            case TelemetryLog.TYPE_CAPTURE_RESULT:
+                event = new Runnable() {
+                    @Override
+                    public void run() {
+                        onCaptureResult(w);
+                    }
+                };
+                break;
+            default:
+                // Frame times don't drive the AF.
+                mIgnored++;
+                return;
+        }
+        mClock.postAt(event, timeNanos);
+    }
+
+    /**
+     * Runs the recorded events and everything they cause.
+     */
+    void run() {
+        mClock.runAll();
+    }
+
+    Session getSession() {
+        return mSession;
+    }
+
+    AfControlPath<int[]> getControlPath() {
+        return mControlPath;
+    }
+
+    /**
+     * The session time covered by the replay.
+     */
+    long getSimulatedNanos() {
+        return Math.max(mEndNanos, mClock.nanoTime()) - mStartNanos;
+    }
+
+    String report() {
+        return "AfReplay{taps=" + mTaps + ", switches=" + mSwitches + ", displays=" + mDisplays
+                + ", sessions=" + mSessions + ", results=" + mResults + ", ignored=" + mIgnored
+                + ", afStateChanges=" + mStateChanges + ", softwareSearches=" + mSoftwareSearches
+                + ", pipeline=" + mPipelineNanos / 1000000 + "ms}\n"
+                + mControlPath.getScheduler() + "\n"
+                + mSession + "\n"
+                + "Simulated focus latency:\n" + mControlPath.getLatencyTracker().toText()
+                + mControlPath.getLatencyTracker().toJson();
+    }
+
+    private void configureSession() {
+        mSessions++;
+        // The log doesn't record the frame duration, so the scheduler keeps its default.
+        mSession.configure(mControlPath.onSessionConfigured(0), mClock.nanoTime());
+    }
+
+    private void onCaptureResult(long[] w) {
+        mResults++;
+        // The log may start in the middle of a session.
+        if (!mSession.isConfigured()) configureSession();
+        Request request = mSession.getRequest(mClock.nanoTime(), mPipelineNanos);
+        int afState = stateByte(w[4], 0);
+        int lensState = stateByte(w[4], 2);
+        mControlPath.onCaptureResult(w[1], afState, lensState,
+                request != null ? request.afTrigger : AfController.UNKNOWN, request);
+    }
+
+    private static int stateByte(long word, int index) {
+        int b = (int) (word >> 8 * index & 0xFF);
+        return b == 0xFF ? AfController.UNKNOWN : b;
+    }
+}
@@ -0,0 +1,338 @@
+package com.example.android.AFSample;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs the camera lifecycle and tap-to-focus control path against a {@link SimulatedCamera}, on a
+ * plain JVM:
+ * <pre>
+ *   java -cp benchmark/build/classes/java/main com.example.android.AFSample.AfSimulation [--realtime] [--cycles 20] [--taps 5]
+ *        [--tap-interval-ms 700] [--mode auto|continuous] [--seed 1]
+ * </pre>
+ * Every cycle opens the camera, configures a session, starts the repeating request like
+ * {@link CameraFragment}, taps random points of the preview and closes the camera again. The camera
+ * is opened and closed through a {@link CameraLifecycle} and taps go through {@link AfControlPath},
+ * as in the app. The report has the lifecycle transition times, the first result latency, the AF
+ * command statistics and the simulated tap-to-focus times.
+ * <p>
+ * By default everything runs on one {@link VirtualClock}, which makes runs with the same seed
+ * identical and much faster than real time, e.g. to profile the control path. With
+ * {@code --realtime} the camera and the UI each get a thread and real time, as on a device.
+ */
+class AfSimulation {
+
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1440;
+
+    /**
+     * Time the last tap of a cycle gets to focus before the camera is closed.
+     */
+    private static final long SETTLE_NANOS = 1000000000L;
+
+    /**
+     * Two planes: the left half of the frame at 2 m, the right half at 25 cm.
+     */
+    static final SimulatedCamera.Scene TWO_PLANES = new SimulatedCamera.Scene() {
+        @Override
+        public float getFocusDistance(int left, int top, int right, int bottom) {
+            return (left + right) / 2 < SimulatedCamera.DEFAULT_MODEL.activeWidth / 2 ? 0.5f : 4f;
+        }
+    };
+
+    private final SimulatedCamera mCamera;
+    private final SimulatedCamera.EventLoop mCameraLoop;
+    private final SimulatedCamera.EventLoop mUiLoop;
+    private final AfControlPath<int[]> mControlPath;
+    private final CameraLifecycle mLifecycle;
+    private final int mCycles;
+    private final int mTaps;
+    private final long mTapIntervalNanos;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private final LatencyHistogram mFirstResultLatency = new LatencyHistogram("open_to_first_result");
+
+    // Only touched on the UI loop.
+    private final Random mTapRandom;
+
+    // Only touched on the camera loop.
+    private final SimulatedCamera.Request.Builder mRequestBuilder = new SimulatedCamera.Request.Builder();
+    private SimulatedCamera.Device mDevice;
+    private SimulatedCamera.Session mSession;
+    private int mCycle;
+    private long mCycleStartNanos;
+    private boolean mFirstResult;
+
+    private final SimulatedCamera.CaptureCallback mCaptureCallback = new SimulatedCamera.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(SimulatedCamera.Session session, SimulatedCamera.Request request,
+                                       SimulatedCamera.Result result) {
+            if (mFirstResult) {
+                mFirstResult = false;
+                mFirstResultLatency.record(mCameraLoop.nanoTime() - mCycleStartNanos);
+            }
+            mControlPath.onCaptureResult(result.frameNumber, result.afState, result.lensState, result.afTrigger, request);
+        }
+
+        @Override
+        public void onCaptureFailed(SimulatedCamera.Session session, SimulatedCamera.Request request) {
+        }
+    };
+
+    private final SimulatedCamera.SessionCallback mSessionCallback = new SimulatedCamera.SessionCallback() {
+        @Override
+        public void onConfigured(SimulatedCamera.Session session) {
+            mSession = session;
+            mRequestBuilder.setRegions(null).setAfMode(mControlPath.onSessionConfigured(mCamera.getModel().frameNanos))
+                    .setAfTrigger(AfController.AF_TRIGGER_IDLE);
+            session.setRepeatingRequest(mRequestBuilder.build(), mCaptureCallback);
+            mLifecycle.onStreaming();
+            for (int i = 0; i < mTaps; i++) mUiLoop.post(mTapRunnable, (i + 1) * mTapIntervalNanos);
+            mCameraLoop.post(mCloseRunnable, mTaps * mTapIntervalNanos + SETTLE_NANOS);
+        }
+
+        @Override
+        public void onConfigureFailed(SimulatedCamera.Session session) {
+            mLifecycle.onSessionClosed();
+            closeCycle();
+        }
+
+        @Override
+        public void onClosed(SimulatedCamera.Session session) {
+        }
+    };
+
+    private final SimulatedCamera.DeviceCallback mDeviceCallback = new SimulatedCamera.DeviceCallback() {
+        @Override
+        public void onOpened(SimulatedCamera.Device device) {
+            mDevice = device;
+            mLifecycle.onOpened();
+        }
+
+        @Override
+        public void onDisconnected(SimulatedCamera.Device device) {
+            mDevice = device;
+            mLifecycle.onDisconnected();
+        }
+
+        @Override
+        public void onError(SimulatedCamera.Device device, int error) {
+            mDevice = device;
+            mLifecycle.onDisconnected();
+        }
+
+        @Override
+        public void onClosed(SimulatedCamera.Device device) {
+            mLifecycle.onClosed();
+        }
+    };
+
+    private final CameraLifecycle.Callback mCycleClosed = new CameraLifecycle.Callback() {
+        @Override
+        public void onComplete(boolean success) {
+            if (++mCycle < mCycles) {
+                startCycle();
+            } else {
+                mDone.countDown();
+            }
+        }
+    };
+
+    private final Runnable mTapRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mControlPath.onTap(mTapRandom.nextFloat() * VIEW_WIDTH, mTapRandom.nextFloat() * VIEW_HEIGHT,
+                    VIEW_WIDTH, VIEW_HEIGHT);
+        }
+    };
+
+    private final Runnable mCloseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            closeCycle();
+        }
+    };
+
+    AfSimulation(SimulatedCamera camera, SimulatedCamera.EventLoop cameraLoop, SimulatedCamera.EventLoop uiLoop,
+                 final AfCommandScheduler.Dispatcher dispatcher, int cycles, int taps, long tapIntervalNanos, long seed) {
+        mCamera = camera;
+        mCameraLoop = cameraLoop;
+        mUiLoop = uiLoop;
+        mCycles = cycles;
+        mTaps = taps;
+        mTapIntervalNanos = tapIntervalNanos;
+        mTapRandom = new Random(seed);
+        mControlPath = new AfControlPath<int[]>(dispatcher, new AfControlPath.Host<int[]>() {
+            @Override
+            public int[] createRegions(int left, int top, int right, int bottom) {
+                return new int[]{left, top, right, bottom};
+            }
+
+            @Override
+            public Object submit(int[] regions, int afMode, int afTrigger) {
+                SimulatedCamera.Session session = mSession;
+                if (session == null) return null;
+                if (regions != null) mRequestBuilder.setRegions(regions);
+                if (afMode != AfCommandScheduler.UNCHANGED) mRequestBuilder.setAfMode(afMode);
+                SimulatedCamera.Request triggerRequest = null;
+                if (afTrigger != AfCommandScheduler.UNCHANGED && afTrigger != AfController.AF_TRIGGER_IDLE) {
+                    triggerRequest = mRequestBuilder.setAfTrigger(afTrigger).build();
+                    mRequestBuilder.setAfTrigger(AfController.AF_TRIGGER_IDLE);
+                    session.capture(triggerRequest, mCaptureCallback);
+                }
+                SimulatedCamera.Request request = mRequestBuilder.build();
+                session.setRepeatingRequest(request, mCaptureCallback);
+                return triggerRequest != null ? triggerRequest : request;
+            }
+
+            @Override
+            public void startSoftwareFocus(long touchNanos) {
+            }
+
+            @Override
+            public void cancelSoftwareFocus() {
+            }
+
+            @Override
+            public void onAfStateChanged(int state, long frameNumber) {
+            }
+
+            @Override
+            public long nanoTime() {
+                return mCameraLoop.nanoTime();
+            }
+        });
+        mLifecycle = new CameraLifecycle(dispatcher, new CameraLifecycle.Host() {
+            @Override
+            public void openDevice() {
+                mCamera.open(mDeviceCallback);
+            }
+
+            @Override
+            public void startSession() {
+                mDevice.createCaptureSession(mSessionCallback);
+                mLifecycle.onConfiguring();
+            }
+
+            @Override
+            public void closeDevice() {
+                mSession = null;
+                SimulatedCamera.Device device = mDevice;
+                mDevice = null;
+                if (device != null) device.close();
+            }
+
+            @Override
+            public long nanoTime() {
+                return mCameraLoop.nanoTime();
+            }
+        });
+        SimulatedCamera.Model model = camera.getModel();
+        mControlPath.configureMetering(MeteringMapper.ROTATION_0, model.activeWidth, model.activeHeight);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean realTime = false;
+        boolean continuous = false;
+        int cycles = 20;
+        int taps = 5;
+        long tapIntervalNanos = 700000000L;
+        long seed = 1;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--realtime")) {
+                realTime = true;
+            } else if (arg.equals("--cycles") && i + 1 < args.length) {
+                cycles = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--taps") && i + 1 < args.length) {
+                taps = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--tap-interval-ms") && i + 1 < args.length) {
+                tapIntervalNanos = Long.parseLong(args[++i]) * 1000000L;
+            } else if (arg.equals("--mode") && i + 1 < args.length) {
+                continuous = args[++i].equals("continuous");
+            } else if (arg.equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Usage: AfSimulation [--realtime] [--cycles n] [--taps n] [--tap-interval-ms ms]"
+                        + " [--mode auto|continuous] [--seed n]");
+                System.exit(2);
+            }
+        }
+
+        long wallStartNanos = System.nanoTime();
+        final SimulatedCamera.EventLoop cameraLoop;
+        SimulatedCamera.EventLoop uiLoop;
+        AfCommandScheduler.Dispatcher dispatcher;
+        VirtualClock clock = null;
+        if (realTime) {
+            cameraLoop = SimulatedCamera.realTimeLoop("SimulatedCamera");
+            uiLoop = SimulatedCamera.realTimeLoop("SimulatedUi");
+            dispatcher = new AfCommandScheduler.Dispatcher() {
+                @Override
+                public void dispatch(Runnable runnable, long delayMillis) {
+                    cameraLoop.post(runnable, delayMillis * 1000000L);
+                }
+
+                @Override
+                public long uptimeMillis() {
+                    return cameraLoop.nanoTime() / 1000000L;
+                }
+            };
+        } else {
+            clock = new VirtualClock(0);
+            cameraLoop = clock;
+            uiLoop = clock;
+            dispatcher = clock;
+        }
+        long startNanos = cameraLoop.nanoTime();
+        SimulatedCamera camera = new SimulatedCamera(SimulatedCamera.DEFAULT_MODEL, TWO_PLANES, cameraLoop, seed);
+        AfSimulation simulation = new AfSimulation(camera, cameraLoop, uiLoop, dispatcher, cycles, taps,
+                tapIntervalNanos, seed);
+        simulation.mControlPath.setContinuous(continuous);
+        simulation.start();
+        if (clock != null) {
+            clock.runAll();
+        } else {
+            simulation.mDone.await();
+        }
+        long simulatedNanos = cameraLoop.nanoTime() - startNanos;
+        long wallNanos = System.nanoTime() - wallStartNanos;
+
+        System.out.println(simulation.report());
+        System.out.println(camera);
+        System.err.println("Simulated " + Math.round(simulatedNanos / 1e6) + " ms in "
+                + Math.round(wallNanos / 1e6) + " ms");
+    }
+
+    /**
+     * Starts the first cycle, on the camera loop.
+     */
+    void start() {
+        mCameraLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                startCycle();
+            }
+        }, 0);
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder("AfSimulation{cycles=").append(mCycle).append(", tapsPerCycle=")
+                .append(mTaps).append("}\n");
+        sb.append(mLifecycle).append('\n');
+        mFirstResultLatency.appendText(sb);
+        sb.append('\n').append(mControlPath.getScheduler()).append('\n')
+                .append(mControlPath.getLatencyTracker().toText());
+        return sb.toString();
+    }
+
+    private void startCycle() {
+        mCycleStartNanos = mCameraLoop.nanoTime();
+        mFirstResult = true;
+        mLifecycle.open(null);
+    }
+
+    private void closeCycle() {
+        mLifecycle.close(mCycleClosed);
+    }
+}
@@ -0,0 +1,419 @@
+package com.example.android.AFSample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Measures the accuracy and throughput of the focus algorithms on frames of a
+ * {@link SyntheticScene}, on a plain JVM:
+ * <pre>
+ *   java -cp benchmark/build/classes/java/main com.example.android.AFSample.FocusBenchmark [--sizes 320x240,640x480,1280x960]
+ *        [--threads 1,2,4] [--frames 100] [--seed 1]
+ * </pre>
+ * For every analysis size it reports:
+ * <ul>
+ * <li>how long the scene takes to render, the cost of the simulation itself;</li>
+ * <li>for every sharpness metric, how far the peak of the metric is from the depth of every layer
+ * of {@link SyntheticScene#standard}, sweeping the lens over the whole focus range;</li>
+ * <li>for every thread count, the time {@link FrameAnalysisScheduler} takes per frame with the
+ * kernels of {@link CameraFragment}, over the whole frame;</li>
+ * <li>for every thread count, the software AF ({@link HillClimbFocus}) focusing on every layer
+ * through a {@link SimulatedCamera} and a {@link SyntheticAnalysisStream} on a
+ * {@link VirtualClock}: its error, burst frames and simulated time to focus.</li>
+ * </ul>
+ */
+class FocusBenchmark {
+
+    private static final float SWEEP_STEP_DIOPTERS = 0.1f;
+
+    /**
+     * Time between the software AF searches of a run, as between taps.
+     */
+    private static final long SEARCH_INTERVAL_NANOS = 300000000L;
+
+    private static final int[] METRICS = {
+            SharpnessEngine.LAPLACIAN_VARIANCE, SharpnessEngine.TENENGRAD, SharpnessEngine.BRENNER};
+
+    /**
+     * Runs the analyzer on the thread submitting the frame, which is the virtual clock's.
+     */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    public static void main(String[] args) {
+        List<int[]> sizes = new ArrayList<>();
+        List<Integer> threads = new ArrayList<>();
+        int frames = 100;
+        long seed = 1;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--sizes") && i + 1 < args.length) {
+                for (String size : args[++i].split(",")) {
+                    String[] wh = size.split("x");
+                    sizes.add(new int[]{Integer.parseInt(wh[0]), Integer.parseInt(wh[1])});
+                }
+            } else if (arg.equals("--threads") && i + 1 < args.length) {
+                for (String count : args[++i].split(",")) threads.add(Integer.parseInt(count));
+            } else if (arg.equals("--frames") && i + 1 < args.length) {
+                frames = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Usage: FocusBenchmark [--sizes WxH,...] [--threads n,...] [--frames n] [--seed n]");
+                System.exit(2);
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(new int[]{320, 240});
+            sizes.add(new int[]{640, 480});
+            sizes.add(new int[]{1280, 960});
+        }
+        if (threads.isEmpty()) {
+            for (int n = 1; n <= Runtime.getRuntime().availableProcessors(); n *= 2) threads.add(n);
+        }
+
+        SimulatedCamera.Model model = SimulatedCamera.DEFAULT_MODEL;
+        SyntheticScene scene = SyntheticScene.standard(model.activeWidth, model.activeHeight, seed);
+        int[][] targets = getTargets(scene);
+        for (int[] size : sizes) {
+            int width = size[0], height = size[1];
+            System.out.println("== " + width + "x" + height);
+            sweep(scene, targets, width, height, model.minFocusDistance);
+            for (int n : threads) {
+                System.out.println(analysisThroughput(scene, width, height, n, frames));
+            }
+            for (int n : threads) {
+                SoftwareAfRun run = new SoftwareAfRun(scene, targets, width, height, n, seed);
+                long wallStartNanos = System.nanoTime();
+                run.run();
+                System.out.println(run + ", wallMs=" + Math.round((System.nanoTime() - wallStartNanos) / 1e6));
+            }
+        }
+    }
+
+    /**
+     * A region of the active array in the middle of every layer, where it's the one in front.
+     */
+    static int[][] getTargets(SyntheticScene scene) {
+        SyntheticScene.Layer[] layers = scene.getLayers();
+        int activeWidth = scene.getActiveWidth();
+        int activeHeight = scene.getActiveHeight();
+        int[][] targets = new int[layers.length][];
+        for (int l = 0; l < layers.length; l++) {
+            SyntheticScene.Layer layer = layers[l];
+            float width = layer.right - layer.left;
+            float height = layer.bottom - layer.top;
+            // The middle of the background is covered by the layers in front of it.
+            float left = l == 0 ? 0.6f : layer.left + width / 4;
+            float top = l == 0 ? 0.05f : layer.top + height / 4;
+            float right = l == 0 ? 0.9f : layer.right - width / 4;
+            float bottom = l == 0 ? 0.35f : layer.bottom - height / 4;
+            targets[l] = new int[]{(int) (left * activeWidth), (int) (top * activeHeight),
+                    (int) (right * activeWidth), (int) (bottom * activeHeight)};
+        }
+        return targets;
+    }
+
+    /**
+     * Sweeps the lens over the focus range and prints the render time and, per metric, the error
+     * of its peak on every target.
+     */
+    private static void sweep(SyntheticScene scene, int[][] targets, int width, int height, float minFocusDistance) {
+        SyntheticScene.Image image = new SyntheticScene.Image(width, height);
+        int[][] regions = new int[targets.length][4];
+        for (int t = 0; t < targets.length; t++) {
+            SharpnessEngine.toImageRegion(targets[t], scene.getActiveWidth(), scene.getActiveHeight(), width, height,
+                    regions[t]);
+        }
+        double[][] best = new double[METRICS.length][targets.length];
+        float[][] bestDistance = new float[METRICS.length][targets.length];
+        for (double[] row : best) Arrays.fill(row, -1);
+        int positions = Math.round(minFocusDistance / SWEEP_STEP_DIOPTERS) + 1;
+        long renderNanos = 0;
+        for (int p = 0; p < positions; p++) {
+            float distance = p * SWEEP_STEP_DIOPTERS;
+            long startNanos = System.nanoTime();
+            scene.render(image, distance, 1f, p);
+            renderNanos += System.nanoTime() - startNanos;
+            for (int m = 0; m < METRICS.length; m++) {
+                for (int t = 0; t < targets.length; t++) {
+                    int[] r = regions[t];
+                    double score = SharpnessEngine.score(METRICS[m], image.y, image.yRowStride, 1, r[0], r[1], r[2], r[3]);
+                    if (score > best[m][t]) {
+                        best[m][t] = score;
+                        bestDistance[m][t] = distance;
+                    }
+                }
+            }
+        }
+        System.out.println("render: frames=" + positions + " meanMs=" + fmt(renderNanos / 1e6 / positions));
+        for (int m = 0; m < METRICS.length; m++) {
+            StringBuilder sb = new StringBuilder("sweep ").append(SharpnessEngine.metricToString(METRICS[m]))
+                    .append(": peak error (diopters)");
+            double sum = 0, max = 0;
+            for (int t = 0; t < targets.length; t++) {
+                int[] target = targets[t];
+                float truth = scene.getFocusDistance(target[0], target[1], target[2], target[3]);
+                double error = Math.abs(bestDistance[m][t] - truth);
+                sum += error;
+                max = Math.max(max, error);
+                sb.append(' ').append(fmt(truth)).append("->").append(fmt(bestDistance[m][t]));
+            }
+            sb.append(", mean=").append(fmt(sum / targets.length)).append(" max=").append(fmt(max));
+            System.out.println(sb);
+        }
+    }
+
+    /**
+     * Runs the kernels of the app over whole frames with {@code threads} threads.
+     */
+    private static String analysisThroughput(SyntheticScene scene, int width, int height, int threads, int frames) {
+        FrameAnalysisScheduler scheduler = new FrameAnalysisScheduler(
+                new FrameAnalysisScheduler.Kernel[]{
+                        new AnalysisKernels.Sharpness(SharpnessEngine.LAPLACIAN_VARIANCE),
+                        new AnalysisKernels.LuminanceHistogram(),
+                        new AnalysisKernels.EdgeDensity(32)},
+                threads, Long.MAX_VALUE,
+                new FrameAnalysisScheduler.RegionSource() {
+                    @Override
+                    public void getRegion(AnalysisFrame frame, int[] out) {
+                        out[0] = 0;
+                        out[1] = 0;
+                        out[2] = frame.width;
+                        out[3] = frame.height;
+                    }
+                },
+                new FrameAnalysisScheduler.Listener() {
+                    @Override
+                    public void onFrameAnalyzed(long timestampNanos, FrameAnalysisScheduler.Results results) {
+                    }
+                });
+        SyntheticScene.Image[] images = new SyntheticScene.Image[4];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new SyntheticScene.Image(width, height);
+            scene.render(images[i], i * 2f, 1f, i);
+        }
+        AnalysisFrame frame = new AnalysisFrame();
+        int warmup = Math.max(1, frames / 4);
+        long startNanos = 0;
+        for (int i = -warmup; i < frames; i++) {
+            if (i == 0) startNanos = System.nanoTime();
+            SyntheticScene.Image image = images[(i + warmup) % images.length];
+            frame.set(image.y, image.yRowStride, 1, width, height, i, System.nanoTime(), image);
+            scheduler.analyze(frame);
+        }
+        double meanMs = (System.nanoTime() - startNanos) / 1e6 / frames;
+        return "analysis threads=" + threads + ": meanMs=" + fmt(meanMs) + " fps=" + fmt(1000 / meanMs);
+    }
+
+    private static String fmt(double value) {
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+
+    /**
+     * Focuses the software AF on every target in turn, through the simulated camera.
+     */
+    static final class SoftwareAfRun {
+        private final SyntheticScene mScene;
+        private final int[][] mTargets;
+        private final int mThreads;
+        private final VirtualClock mClock = new VirtualClock(0);
+        private final SimulatedCamera mCamera;
+        private final SyntheticAnalysisStream mStream;
+        private final HillClimbFocus mHillClimbFocus;
+        private final SimulatedCamera.Request.Builder mRequestBuilder = new SimulatedCamera.Request.Builder()
+                .setAfMode(AfControlPath.AF_MODE_OFF);
+        private final LatencyHistogram mTimeToFocus = new LatencyHistogram("time_to_focus");
+
+        // Only touched on the virtual clock.
+        private SimulatedCamera.Device mDevice;
+        private SimulatedCamera.Session mSession;
+        private int mTarget = -1;
+        private int[] mRegion;
+        private long mSearchStartNanos;
+        private long mBurstFrames;
+        private long mFailures;
+        private double mErrorSum;
+        private double mMaxError;
+
+        private final SimulatedCamera.CaptureCallback mCaptureCallback = new SimulatedCamera.CaptureCallback() {
+            @Override
+            public void onCaptureCompleted(SimulatedCamera.Session session, SimulatedCamera.Request request,
+                                           SimulatedCamera.Result result) {
+                mHillClimbFocus.onFrame();
+                if (request.tag instanceof Integer) {
+                    mHillClimbFocus.onResult((Integer) request.tag, result.sensorTimestampNanos, result.focusDistance);
+                }
+            }
+
+            @Override
+            public void onCaptureFailed(SimulatedCamera.Session session, SimulatedCamera.Request request) {
+                mHillClimbFocus.onFrame();
+                if (request.tag instanceof Integer) mHillClimbFocus.onCaptureFailed((Integer) request.tag);
+            }
+        };
+
+        private final Runnable mNextSearchRunnable = new Runnable() {
+            @Override
+            public void run() {
+                startNextSearch();
+            }
+        };
+
+        SoftwareAfRun(SyntheticScene scene, int[][] targets, int width, int height, int threads, long seed) {
+            mScene = scene;
+            mTargets = targets;
+            mThreads = threads;
+            mCamera = new SimulatedCamera(SimulatedCamera.DEFAULT_MODEL, scene, mClock, seed);
+            mStream = new SyntheticAnalysisStream(scene, width, height, 1f, DIRECT);
+            mHillClimbFocus = new HillClimbFocus(new HillClimbFocus.Driver() {
+                @Override
+                public void capture(final float[] distances, final int firstStep) {
+                    mClock.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            captureBurst(distances, firstStep);
+                        }
+                    }, 0);
+                }
+
+                @Override
+                public void onFinished(final boolean focused, final float distance) {
+                    mClock.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSearchFinished(focused, distance);
+                        }
+                    }, 0);
+                }
+
+                @Override
+                public long nanoTime() {
+                    return mClock.nanoTime();
+                }
+            });
+            mStream.setAnalyzer(new FrameAnalysisScheduler(
+                    new FrameAnalysisScheduler.Kernel[]{new AnalysisKernels.Sharpness(SharpnessEngine.LAPLACIAN_VARIANCE)},
+                    threads, Long.MAX_VALUE,
+                    new FrameAnalysisScheduler.RegionSource() {
+                        @Override
+                        public void getRegion(AnalysisFrame frame, int[] out) {
+                            SharpnessEngine.toImageRegion(mRegion != null ? mRegion : mTargets[0],
+                                    mScene.getActiveWidth(), mScene.getActiveHeight(), frame.width, frame.height, out);
+                        }
+                    },
+                    new FrameAnalysisScheduler.Listener() {
+                        @Override
+                        public void onFrameAnalyzed(long timestampNanos, FrameAnalysisScheduler.Results results) {
+                            mHillClimbFocus.onSharpness(timestampNanos, results.getValue(0));
+                        }
+                    }));
+            mCamera.setFrameListener(mStream);
+        }
+
+        /**
+         * Opens the camera, runs a search per target and closes it again.
+         */
+        void run() {
+            mCamera.open(new SimulatedCamera.DeviceCallback() {
+                @Override
+                public void onOpened(SimulatedCamera.Device device) {
+                    mDevice = device;
+                    device.createCaptureSession(new SimulatedCamera.SessionCallback() {
+                        @Override
+                        public void onConfigured(SimulatedCamera.Session session) {
+                            mSession = session;
+                            session.setRepeatingRequest(mRequestBuilder.setFocusDistance(0).build(), mCaptureCallback);
+                            mClock.post(mNextSearchRunnable, SEARCH_INTERVAL_NANOS);
+                        }
+
+                        @Override
+                        public void onConfigureFailed(SimulatedCamera.Session session) {
+                            close();
+                        }
+
+                        @Override
+                        public void onClosed(SimulatedCamera.Session session) {
+                        }
+                    });
+                }
+
+                @Override
+                public void onDisconnected(SimulatedCamera.Device device) {
+                }
+
+                @Override
+                public void onError(SimulatedCamera.Device device, int error) {
+                }
+
+                @Override
+                public void onClosed(SimulatedCamera.Device device) {
+                }
+            });
+            mClock.runAll();
+        }
+
+        @Override
+        public String toString() {
+            int searches = Math.max(0, mTarget);
+            StringBuilder sb = new StringBuilder("software_af threads=").append(mThreads).append(": searches=")
+                    .append(searches).append(" failures=").append(mFailures)
+                    .append(" meanError=").append(fmt(searches > 0 ? mErrorSum / searches : 0))
+                    .append(" maxError=").append(fmt(mMaxError))
+                    .append(" meanBurstFrames=").append(fmt(searches > 0 ? (double) mBurstFrames / searches : 0))
+                    .append(", ");
+            mTimeToFocus.appendText(sb);
+            return sb.append(", ").append(mStream).toString();
+        }
+
+        private void startNextSearch() {
+            if (++mTarget >= mTargets.length) {
+                close();
+                return;
+            }
+            mRegion = mTargets[mTarget];
+            mSearchStartNanos = mClock.nanoTime();
+            mHillClimbFocus.start(SimulatedCamera.DEFAULT_MODEL.minFocusDistance, mSearchStartNanos);
+        }
+
+        private void captureBurst(float[] distances, int firstStep) {
+            if (mSession == null) {
+                mHillClimbFocus.cancel();
+                return;
+            }
+            List<SimulatedCamera.Request> burst = new ArrayList<>(distances.length);
+            for (int i = 0; i < distances.length; i++) {
+                burst.add(mRequestBuilder.setFocusDistance(distances[i]).setTag(firstStep + i).build());
+            }
+            mRequestBuilder.setTag(null);
+            mBurstFrames += distances.length;
+            mSession.captureBurst(burst, mCaptureCallback);
+        }
+
+        private void onSearchFinished(boolean focused, float distance) {
+            mTimeToFocus.record(mClock.nanoTime() - mSearchStartNanos);
+            int[] region = mRegion;
+            double error = Math.abs(distance - mScene.getFocusDistance(region[0], region[1], region[2], region[3]));
+            if (!focused) mFailures++;
+            mErrorSum += error;
+            mMaxError = Math.max(mMaxError, error);
+            if (mSession != null) {
+                mSession.setRepeatingRequest(mRequestBuilder.setFocusDistance(distance).build(), mCaptureCallback);
+            }
+            mClock.post(mNextSearchRunnable, SEARCH_INTERVAL_NANOS);
+        }
+
+        private void close() {
+            mSession = null;
+            mStream.close();
+            if (mDevice != null) mDevice.close();
+            mDevice = null;
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package com.example.android.AFSample;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A camera device for running the camera control path off device, with a latency model instead of
+ * hardware.
+ * <p>
+ * It goes through the same steps as {@code camera2}: {@link #open} reports the {@link Device} to a
+ * {@link DeviceCallback} after the open latency, {@link Device#createCaptureSession} reports the
+ * {@link Session} to a {@link SessionCallback} after the configure latency, and requests set on the
+ * session produce a {@link Result} per frame on a {@link CaptureCallback}, a pipeline depth of
+ * frames after the frame was captured. The callbacks have the shape of the {@code camera2} ones
+ * {@link CameraFragment} implements.
+ * <p>
+ * The HAL's AF is modelled per frame: an AF trigger (in auto mode) or a change of AF regions (in
+ * continuous mode) starts a scan that waits {@link Model#afSearchNanos}, then moves the lens towards
+ * the focus distance of the {@link Scene} in the AF region along an exponential curve, and reports
+ * focused once it's within {@link Model#focusToleranceDiopters}. Like the HAL, every request that
+ * carries {@code AF_TRIGGER_START} restarts the scan, so the trigger must be cleared. With AF off
+ * the lens moves to the requested focus distance at {@link Model#lensSpeedDioptersPerSecond}.
+ * <p>
+ * All events go through an {@link EventLoop}: a {@link VirtualClock} runs the device in simulated
+ * time, reproducibly and faster than real time, {@link #realTimeLoop} on a thread of its own to
+ * exercise the threading of its clients. Latencies get a uniform jitter from a seeded random, so a
+ * run is reproducible on a virtual clock. Its state is guarded by the camera object, callbacks are
+ * called without holding it.
+ */
+class SimulatedCamera {
+
+    /**
+     * Runs the camera's events, like the {@code Handler} passed to {@code camera2}.
+     */
+    interface EventLoop {
+        void post(Runnable runnable, long delayNanos);
+
+        long nanoTime();
+    }
+
+    /**
+     * What the camera looks at.
+     */
+    interface Scene {
+        /**
+         * The focus distance that makes a region of the active array sharp, in diopters.
+         */
+        float getFocusDistance(int left, int top, int right, int bottom);
+    }
+
+    /**
+     * As {@code CameraDevice.StateCallback}.
+     */
+    interface DeviceCallback {
+        void onOpened(Device device);
+
+        void onDisconnected(Device device);
+
+        void onError(Device device, int error);
+
+        void onClosed(Device device);
+    }
+
+    /**
+     * As {@code CameraCaptureSession.StateCallback}.
+     */
+    interface SessionCallback {
+        void onConfigured(Session session);
+
+        void onConfigureFailed(Session session);
+
+        void onClosed(Session session);
+    }
+
+    /**
+     * As {@code CameraCaptureSession.CaptureCallback}.
+     */
+    interface CaptureCallback {
+        void onCaptureCompleted(Session session, Request request, Result result);
+
+        void onCaptureFailed(Session session, Request request);
+    }
+
+    /**
+     * Called on the event loop when a frame has been exposed, before its result. The analysis
+     * stream of the simulation hangs off this.
+     */
+    interface FrameListener {
+        void onFrame(long timestampNanos, float focusDistance, Request request);
+    }
+
+    /**
+     * Latencies and optics of the simulated device.
+     */
+    static final class Model {
+        final long openNanos;
+        final long configureNanos;
+        final long frameNanos;
+        final int pipelineDepth;
+        final long jitterNanos;
+        final float minFocusDistance;
+        final long afSearchNanos;
+        final long afTimeConstantNanos;
+        final float focusToleranceDiopters;
+        final float lensSpeedDioptersPerSecond;
+        final int activeWidth;
+        final int activeHeight;
+
+        /**
+         * @param pipelineDepth Frames between the capture of a frame and its result
+         * @param jitterNanos   Up to this much is added to every latency
+         */
+        Model(long openNanos, long configureNanos, long frameNanos, int pipelineDepth, long jitterNanos,
+              float minFocusDistance, long afSearchNanos, long afTimeConstantNanos, float focusToleranceDiopters,
+              float lensSpeedDioptersPerSecond, int activeWidth, int activeHeight) {
+            this.openNanos = openNanos;
+            this.configureNanos = configureNanos;
+            this.frameNanos = frameNanos;
+            this.pipelineDepth = pipelineDepth;
+            this.jitterNanos = jitterNanos;
+            this.minFocusDistance = minFocusDistance;
+            this.afSearchNanos = afSearchNanos;
+            this.afTimeConstantNanos = afTimeConstantNanos;
+            this.focusToleranceDiopters = focusToleranceDiopters;
+            this.lensSpeedDioptersPerSecond = lensSpeedDioptersPerSecond;
+            this.activeWidth = activeWidth;
+            this.activeHeight = activeHeight;
+        }
+    }
+
+    /**
+     * A mid-range phone: 30 fps, a 4 frame pipeline, a 10 diopter lens and contrast AF taking
+     * about 300 ms.
+     */
+    static final Model DEFAULT_MODEL = new Model(250000000L, 150000000L, 33333333L, 4, 5000000L,
+            10f, 100000000L, 40000000L, 0.05f, 40f, 4032, 3024);
+
+    /**
+     * A capture request. Built like {@code CaptureRequest}, fields unset in the builder keep their
+     * defaults.
+     */
+    static final class Request {
+        final int[] regions;
+        final int afMode;
+        final int afTrigger;
+        final float focusDistance;
+        final Object tag;
+
+        private Request(Builder builder) {
+            regions = builder.mRegions;
+            afMode = builder.mAfMode;
+            afTrigger = builder.mAfTrigger;
+            focusDistance = builder.mFocusDistance;
+            tag = builder.mTag;
+        }
+
+        static final class Builder {
+            private int[] mRegions;
+            private int mAfMode = AfControlPath.AF_MODE_AUTO;
+            private int mAfTrigger = AfController.AF_TRIGGER_IDLE;
+            private float mFocusDistance;
+            private Object mTag;
+
+            /**
+             * @param regions {left, top, right, bottom} in the active array, or null for the center
+             */
+            Builder setRegions(int[] regions) {
+                mRegions = regions;
+                return this;
+            }
+
+            Builder setAfMode(int afMode) {
+                mAfMode = afMode;
+                return this;
+            }
+
+            Builder setAfTrigger(int afTrigger) {
+                mAfTrigger = afTrigger;
+                return this;
+            }
+
+            Builder setFocusDistance(float focusDistance) {
+                mFocusDistance = focusDistance;
+                return this;
+            }
+
+            Builder setTag(Object tag) {
+                mTag = tag;
+                return this;
+            }
+
+            Request build() {
+                return new Request(this);
+            }
+        }
+    }
+
+    /**
+     * The metadata of a frame, as the keys of {@code CaptureResult} {@link AfControlPath} reads.
+     */
+    static final class Result {
+        final long frameNumber;
+        final long sensorTimestampNanos;
+        final int afState;
+        final int afTrigger;
+        final int lensState;
+        final float focusDistance;
+
+        Result(long frameNumber, long sensorTimestampNanos, int afState, int afTrigger, int lensState,
+               float focusDistance) {
+            this.frameNumber = frameNumber;
+            this.sensorTimestampNanos = sensorTimestampNanos;
+            this.afState = afState;
+            this.afTrigger = afTrigger;
+            this.lensState = lensState;
+            this.focusDistance = focusDistance;
+        }
+    }
+
+    /**
+     * The opened device.
+     */
+    final class Device {
+        private Device() {
+        }
+
+        /**
+         * Creates a session, closing the current one.
+         */
+        void createCaptureSession(final SessionCallback callback) {
+            final Session session;
+            synchronized (SimulatedCamera.this) {
+                if (mDevice != this) return;
+                closeSessionLocked();
+                session = new Session(callback);
+                mSession = session;
+            }
+            mLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SimulatedCamera.this) {
+                        if (mSession != session) return;
+                    }
+                    callback.onConfigured(session);
+                }
+            }, latency(mModel.configureNanos));
+        }
+
+        void close() {
+            final DeviceCallback callback;
+            final Session session;
+            synchronized (SimulatedCamera.this) {
+                if (mDevice != this) return;
+                session = mSession;
+                closeSessionLocked();
+                mDevice = null;
+                callback = mDeviceCallback;
+            }
+            if (session != null) postSessionClosed(session);
+            mLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onClosed(Device.this);
+                }
+            }, 0);
+        }
+    }
+
+    /**
+     * A configured capture session.
+     */
+    final class Session {
+        private final SessionCallback mCallback;
+
+        // Guarded by the camera.
+        private Request mRepeatingRequest;
+        private CaptureCallback mRepeatingCallback;
+        private final ArrayDeque<Request> mQueue = new ArrayDeque<>();
+        private final ArrayDeque<CaptureCallback> mQueueCallbacks = new ArrayDeque<>();
+        private boolean mClosed;
+
+        private Session(SessionCallback callback) {
+            mCallback = callback;
+        }
+
+        void setRepeatingRequest(Request request, CaptureCallback callback) {
+            synchronized (SimulatedCamera.this) {
+                if (mClosed) throw new IllegalStateException("Session closed");
+                mRepeatingRequest = request;
+                mRepeatingCallback = callback;
+                mRequests++;
+                startFramesLocked();
+            }
+        }
+
+        /**
+         * Captures the request on the next frame, before the repeating request resumes.
+         */
+        void capture(Request request, CaptureCallback callback) {
+            synchronized (SimulatedCamera.this) {
+                if (mClosed) throw new IllegalStateException("Session closed");
+                mQueue.add(request);
+                mQueueCallbacks.add(callback);
+                mRequests++;
+                startFramesLocked();
+            }
+        }
+
+        /**
+         * Captures the requests on consecutive frames, before the repeating request resumes.
+         */
+        void captureBurst(List<Request> requests, CaptureCallback callback) {
+            synchronized (SimulatedCamera.this) {
+                if (mClosed) throw new IllegalStateException("Session closed");
+                for (Request request : requests) {
+                    mQueue.add(request);
+                    mQueueCallbacks.add(callback);
+                }
+                mRequests += requests.size();
+                startFramesLocked();
+            }
+        }
+
+        void close() {
+            synchronized (SimulatedCamera.this) {
+                if (mSession != this) return;
+                closeSessionLocked();
+            }
+            postSessionClosed(this);
+        }
+    }
+
+    private final Model mModel;
+    private final Scene mScene;
+    private final EventLoop mLoop;
+
+    // Guarded by this.
+    private final Random mRandom;
+    private DeviceCallback mDeviceCallback;
+    private Device mDevice;
+    private Session mSession;
+    private FrameListener mFrameListener;
+    private boolean mFramePending;
+    private long mFrameNumber;
+    private long mNextFrameNanos;
+
+    // The optics, guarded by this.
+    private float mLensPosition;
+    private int mAfState = AfController.AF_STATE_INACTIVE;
+    private int mAfMode = -1;
+    private int[] mAfRegions;
+    private boolean mScanning;
+    private boolean mScanReachable;
+    private long mScanStartNanos;
+    private float mScanFrom;
+    private float mScanTarget;
+
+    // Counters, guarded by this.
+    private long mOpens;
+    private long mRequests;
+    private long mFrames;
+    private long mScans;
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            captureFrame();
+        }
+    };
+
+    SimulatedCamera(Model model, Scene scene, EventLoop loop, long seed) {
+        mModel = model;
+        mScene = scene;
+        mLoop = loop;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * An event loop running on a daemon thread in real time.
+     */
+    static EventLoop realTimeLoop(final String name) {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return new EventLoop() {
+            @Override
+            public void post(Runnable runnable, long delayNanos) {
+                executor.schedule(runnable, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+        };
+    }
+
+    Model getModel() {
+        return mModel;
+    }
+
+    synchronized void setFrameListener(FrameListener listener) {
+        mFrameListener = listener;
+    }
+
+    /**
+     * Opens the device, as {@code CameraManager.openCamera}.
+     */
+    void open(final DeviceCallback callback) {
+        final Device device;
+        synchronized (this) {
+            if (mDevice != null) throw new IllegalStateException("Camera in use");
+            device = new Device();
+            mDevice = device;
+            mDeviceCallback = callback;
+            mOpens++;
+        }
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedCamera.this) {
+                    if (mDevice != device) return;
+                }
+                callback.onOpened(device);
+            }
+        }, latency(mModel.openNanos));
+    }
+
+    /**
+     * Disconnects the open device, as when another app takes the camera.
+     */
+    void disconnect() {
+        final Device device;
+        final DeviceCallback callback;
+        final Session session;
+        synchronized (this) {
+            device = mDevice;
+            if (device == null) return;
+            session = mSession;
+            closeSessionLocked();
+            mDevice = null;
+            callback = mDeviceCallback;
+        }
+        if (session != null) postSessionClosed(session);
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onDisconnected(device);
+            }
+        }, 0);
+    }
+
+    synchronized float getLensPosition() {
+        return mLensPosition;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SimulatedCamera{opens=" + mOpens + ", requests=" + mRequests + ", frames=" + mFrames
+                + ", afScans=" + mScans + ", lens=" + mLensPosition + "}";
+    }
+
+    private long latency(long nanos) {
+        long jitter;
+        synchronized (this) {
+            jitter = (long) (mRandom.nextDouble() * mModel.jitterNanos);
+        }
+        return nanos + jitter;
+    }
+
+    /**
+     * Makes sure a frame is coming. Frames keep their cadence across sessions.
+     */
+    private void startFramesLocked() {
+        if (mFramePending) return;
+        mFramePending = true;
+        mLoop.post(mFrameRunnable, Math.max(0, mNextFrameNanos - mLoop.nanoTime()));
+    }
+
+    private void closeSessionLocked() {
+        if (mSession == null) return;
+        mSession.mClosed = true;
+        mSession.mQueue.clear();
+        mSession.mQueueCallbacks.clear();
+        mSession = null;
+    }
+
+    private void postSessionClosed(final Session session) {
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                session.mCallback.onClosed(session);
+            }
+        }, 0);
+    }
+
+    /**
+     * Exposes one frame with the next request and schedules its result and the next frame.
+     */
+    private void captureFrame() {
+        final Session session;
+        final Request request;
+        final CaptureCallback callback;
+        final Result result;
+        final FrameListener frameListener;
+        long delay;
+        synchronized (this) {
+            mFramePending = false;
+            session = mSession;
+            if (session == null) return;
+            if (!session.mQueue.isEmpty()) {
+                request = session.mQueue.poll();
+                callback = session.mQueueCallbacks.poll();
+            } else {
+                request = session.mRepeatingRequest;
+                callback = session.mRepeatingCallback;
+            }
+            if (request == null) return;
+            long now = mLoop.nanoTime();
+            updateOptics(request, now);
+            mFrames++;
+            result = new Result(mFrameNumber++, now, mAfState, request.afTrigger,
+                    mScanning || isLensMoving(request) ? AfController.LENS_STATE_MOVING : AfController.LENS_STATE_STATIONARY,
+                    mLensPosition);
+            frameListener = mFrameListener;
+            mNextFrameNanos = now + mModel.frameNanos;
+            mFramePending = true;
+            mLoop.post(mFrameRunnable, mModel.frameNanos);
+            delay = mModel.pipelineDepth * mModel.frameNanos;
+        }
+        if (frameListener != null) frameListener.onFrame(result.sensorTimestampNanos, result.focusDistance, request);
+        if (callback == null) return;
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedCamera.this) {
+                    // Results of a closed session are dropped, as in camera2.
+                    if (session.mClosed) return;
+                }
+                callback.onCaptureCompleted(session, request, result);
+            }
+        }, latency(delay));
+    }
+
+    private boolean isLensMoving(Request request) {
+        return request.afMode == AfControlPath.AF_MODE_OFF
+                && Math.abs(mLensPosition - clampFocus(request.focusDistance)) > 1e-6f;
+    }
+
+    /**
+     * Advances the AF and the lens to the frame starting at {@code now}.
+     */
+    private void updateOptics(Request request, long now) {
+        if (request.afMode != mAfMode) {
+            mAfMode = request.afMode;
+            mScanning = false;
+            mAfState = AfController.AF_STATE_INACTIVE;
+        }
+        if (request.afMode == AfControlPath.AF_MODE_OFF) {
+            float step = mModel.lensSpeedDioptersPerSecond * mModel.frameNanos / 1e9f;
+            float target = clampFocus(request.focusDistance);
+            mLensPosition = Math.abs(target - mLensPosition) <= step ? target
+                    : mLensPosition + Math.signum(target - mLensPosition) * step;
+            return;
+        }
+
+        boolean continuous = request.afMode == AfControlPath.AF_MODE_CONTINUOUS_VIDEO;
+        boolean regionsChanged = request.regions != mAfRegions;
+        mAfRegions = request.regions;
+        if (request.afTrigger == AfController.AF_TRIGGER_CANCEL) {
+            mScanning = false;
+            mAfState = AfController.AF_STATE_INACTIVE;
+            if (continuous) startScan(request, now);
+        } else if (request.afTrigger == AfController.AF_TRIGGER_START && !continuous) {
+            startScan(request, now);
+        } else if (continuous && (regionsChanged || mAfState == AfController.AF_STATE_INACTIVE)) {
+            startScan(request, now);
+        }
+        if (!mScanning) return;
+
+        long elapsed = now - mScanStartNanos - mModel.afSearchNanos;
+        if (elapsed < 0) return;
+        float position = mScanTarget + (mScanFrom - mScanTarget)
+                * (float) Math.exp(-(double) elapsed / mModel.afTimeConstantNanos);
+        mLensPosition = position;
+        if (Math.abs(position - mScanTarget) > mModel.focusToleranceDiopters) return;
+        mScanning = false;
+        if (continuous) {
+            mAfState = mScanReachable ? AfController.AF_STATE_PASSIVE_FOCUSED : AfController.AF_STATE_PASSIVE_UNFOCUSED;
+        } else {
+            mAfState = mScanReachable ? AfController.AF_STATE_FOCUSED_LOCKED : AfController.AF_STATE_NOT_FOCUSED_LOCKED;
+        }
+    }
+
+    private void startScan(Request request, long now) {
+        mScanning = true;
+        mScans++;
+        mScanStartNanos = now;
+        mScanFrom = mLensPosition;
+        float focus = sceneFocus(request);
+        mScanTarget = clampFocus(focus);
+        // Closer than the lens can focus.
+        mScanReachable = focus == mScanTarget;
+        mAfState = request.afMode == AfControlPath.AF_MODE_CONTINUOUS_VIDEO ? AfController.AF_STATE_PASSIVE_SCAN : AfController.AF_STATE_ACTIVE_SCAN;
+    }
+
+    private float sceneFocus(Request request) {
+        if (mScene == null) return mModel.minFocusDistance / 2;
+        int[] r = request.regions;
+        if (r == null) {
+            return mScene.getFocusDistance(mModel.activeWidth * 2 / 5, mModel.activeHeight * 2 / 5,
+                    mModel.activeWidth * 3 / 5, mModel.activeHeight * 3 / 5);
+        }
+        return mScene.getFocusDistance(r[0], r[1], r[2], r[3]);
+    }
+
+    private float clampFocus(float distance) {
+        return Math.max(0, Math.min(mModel.minFocusDistance, distance));
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.android.AFSample;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * The analysis stream of a {@link SimulatedCamera}: renders every frame of the camera from a
+ * {@link SyntheticScene}, with the lens where the camera has it, and gives it to an analyzer
+ * through an {@link AnalysisPipeline}, the way {@link AnalysisStream} does with the images of an
+ * {@code ImageReader}.
+ * <p>
+ * Frames are rendered on the camera's event loop into a pool of {@link SyntheticScene.Image}s one
+ * larger than the pipeline can hold, as the reader's images.
+ */
+class SyntheticAnalysisStream implements SimulatedCamera.FrameListener {
+
+    /**
+     * Frames that may wait while the analyzer is busy, as in {@link AnalysisStream}.
+     */
+    private static final int QUEUE_CAPACITY = 2;
+
+    private final SyntheticScene mScene;
+    private final int mWidth;
+    private final int mHeight;
+    private final float mExposure;
+    private final AnalysisPipeline mPipeline;
+
+    // Guarded by mImages.
+    private final ArrayDeque<SyntheticScene.Image> mImages = new ArrayDeque<>();
+
+    // Only touched on the camera's event loop.
+    private long mFrameNumber;
+    private long mRenderNanos;
+
+    /**
+     * @param exposure Gain on the scene's luma, 1 for a normal exposure
+     * @param executor Runs the analyzer
+     */
+    SyntheticAnalysisStream(SyntheticScene scene, int width, int height, float exposure, Executor executor) {
+        mScene = scene;
+        mWidth = width;
+        mHeight = height;
+        mExposure = exposure;
+        mPipeline = new AnalysisPipeline(QUEUE_CAPACITY, executor, new AnalysisPipeline.Releaser() {
+            @Override
+            public void release(AnalysisFrame frame) {
+                synchronized (mImages) {
+                    mImages.add((SyntheticScene.Image) frame.image);
+                }
+            }
+        });
+        for (int i = 0; i < AnalysisPipeline.maxHeldFrames(QUEUE_CAPACITY) + 1; i++) {
+            mImages.add(new SyntheticScene.Image(width, height));
+        }
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Sets the analyzer, called on the executor. May be null.
+     */
+    void setAnalyzer(AnalysisPipeline.Analyzer analyzer) {
+        mPipeline.setAnalyzer(analyzer);
+    }
+
+    @Override
+    public void onFrame(long timestampNanos, float focusDistance, SimulatedCamera.Request request) {
+        AnalysisFrame frame = mPipeline.obtain();
+        if (frame == null) return;
+        SyntheticScene.Image image;
+        synchronized (mImages) {
+            image = mImages.poll();
+        }
+        long startNanos = System.nanoTime();
+        image.timestampNanos = timestampNanos;
+        mScene.render(image, focusDistance, mExposure, mFrameNumber++);
+        long acquiredNanos = System.nanoTime();
+        mRenderNanos += acquiredNanos - startNanos;
+        frame.set(image.y, image.yRowStride, 1, mWidth, mHeight, timestampNanos, acquiredNanos, image);
+        mPipeline.submit(frame);
+    }
+
+    /**
+     * Drops the frames waiting for the analyzer.
+     */
+    void close() {
+        mPipeline.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "SyntheticAnalysisStream{" + mWidth + "x" + mHeight + ", rendered=" + mFrameNumber
+                + ", meanRenderMs=" + (mFrameNumber > 0 ? mRenderNanos / 1e6 / mFrameNumber : 0)
+                + ", " + mPipeline + "}";
+    }
+}
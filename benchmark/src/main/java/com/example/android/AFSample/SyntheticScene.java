@@ -0,0 +1,414 @@
+package com.example.android.AFSample;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A test scene of flat layers at different depths, rendered as the frames a camera would give with
+ * its lens at a given focus distance, for benchmarking the focus algorithms off device.
+ * <p>
+ * Layers are rectangles of the active array, given back to front, each with a depth and a
+ * {@link #TEXTURE} or {@link #TEXT} pattern. A frame is rendered layer by layer: every layer is
+ * blurred with a box filter as wide as its circle of confusion, which grows with the difference
+ * between its depth and the focus distance ({@link #mBlurPerDiopter}), and laid over the layers
+ * behind it with its blurred outline as alpha, so edges between layers bleed like real defocus.
+ * Exposure scales the luma, then read and shot noise are added from a seeded table, so frames are
+ * reproducible.
+ * <p>
+ * Frames are {@link Image}s shaped like {@code YUV_420_888} images of a camera: a Y plane with
+ * padded rows and interleaved chroma planes, which stay neutral grey. Images of any size show the
+ * same scene, as the largest centered crop of the active array, like camera outputs.
+ * <p>
+ * As a {@link SimulatedCamera.Scene} it tells the simulated HAL AF which layer a region shows.
+ * {@link #render} must be called from one thread at a time, the rest from any thread.
+ */
+class SyntheticScene implements SimulatedCamera.Scene {
+
+    static final int TEXTURE = 0;
+    static final int TEXT = 1;
+
+    /**
+     * Blur radius per diopter of defocus, as a fraction of the image width, by default.
+     */
+    static final float DEFAULT_BLUR_PER_DIOPTER = 0.004f;
+
+    private static final int NOISE_TABLE_SIZE = 1 << 16;
+
+    /**
+     * Bytes camera buffers align their rows to.
+     */
+    private static final int ROW_ALIGNMENT = 64;
+
+    /**
+     * A layer of the scene.
+     */
+    static final class Layer {
+        final float left;
+        final float top;
+        final float right;
+        final float bottom;
+        final float depth;
+        final int pattern;
+        final int mean;
+        final int contrast;
+        final float featureSize;
+
+        /**
+         * @param left        Edges as fractions of the active array
+         * @param depth       Focus distance that makes the layer sharp, in diopters
+         * @param pattern     {@link #TEXTURE} or {@link #TEXT}
+         * @param mean        Mean luma of the pattern
+         * @param contrast    Luma from the mean to the darkest and brightest parts
+         * @param featureSize Size of the pattern's details (texture cells, text height) as a
+         *                    fraction of the active array width
+         */
+        Layer(float left, float top, float right, float bottom, float depth, int pattern, int mean, int contrast,
+              float featureSize) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.depth = depth;
+            this.pattern = pattern;
+            this.mean = mean;
+            this.contrast = contrast;
+            this.featureSize = featureSize;
+        }
+    }
+
+    /**
+     * A frame laid out like a {@code YUV_420_888} image. The chroma planes share one buffer with
+     * interleaved samples, as on most devices.
+     */
+    static final class Image {
+        final int width;
+        final int height;
+        final ByteBuffer y;
+        final int yRowStride;
+        final ByteBuffer u;
+        final ByteBuffer v;
+        final int uvRowStride;
+        final int uvPixelStride = 2;
+
+        /**
+         * Sensor timestamp of the frame, set by the caller.
+         */
+        long timestampNanos;
+
+        Image(int width, int height) {
+            this.width = width;
+            this.height = height;
+            yRowStride = align(width);
+            y = ByteBuffer.allocateDirect(yRowStride * height);
+            uvRowStride = align(width);
+            int chromaRows = (height + 1) / 2;
+            ByteBuffer uv = ByteBuffer.allocateDirect(uvRowStride * chromaRows);
+            for (int i = 0; i < uv.capacity(); i++) uv.put(i, (byte) 128);
+            u = uv.duplicate();
+            uv.position(1);
+            v = uv.slice();
+        }
+
+        private static int align(int width) {
+            return (width + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+        }
+    }
+
+    private final int mActiveWidth;
+    private final int mActiveHeight;
+    private final Layer[] mLayers;
+    private final float mBlurPerDiopter;
+    private final float[] mNoise = new float[NOISE_TABLE_SIZE];
+    private final float[] mNoiseSigma = new float[256];
+    private final long mSeed;
+
+    // The layers rendered sharp at the last image size, and scratch buffers. Only touched by render.
+    private int mWidth;
+    private int mHeight;
+    private float[][] mSharp;
+    private int[][] mBounds;
+    private float[] mAccumulator;
+    private float[] mRows;
+    private float[] mColumn;
+    private float[] mAlphaX;
+    private float[] mAlphaY;
+    private float[] mOnes;
+
+    /**
+     * @param layers         Back to front; the first one should cover the whole frame
+     * @param blurPerDiopter Blur radius per diopter of defocus, as a fraction of the image width
+     * @param readNoise      Standard deviation of the noise in the dark, in luma levels
+     * @param shotNoise      Variance of the noise added per luma level
+     */
+    SyntheticScene(int activeWidth, int activeHeight, Layer[] layers, float blurPerDiopter, float readNoise,
+                   float shotNoise, long seed) {
+        mActiveWidth = activeWidth;
+        mActiveHeight = activeHeight;
+        mLayers = layers.clone();
+        mBlurPerDiopter = blurPerDiopter;
+        mSeed = seed;
+        Random random = new Random(seed);
+        for (int i = 0; i < NOISE_TABLE_SIZE; i++) mNoise[i] = (float) random.nextGaussian();
+        for (int i = 0; i < mNoiseSigma.length; i++) {
+            mNoiseSigma[i] = (float) Math.sqrt(readNoise * readNoise + shotNoise * i);
+        }
+    }
+
+    /**
+     * A textured wall at 4 m, a page of text at 50 cm and a smaller one at 1 m, and a textured
+     * object at 17 cm, with the noise of a phone sensor in good light.
+     */
+    static SyntheticScene standard(int activeWidth, int activeHeight, long seed) {
+        return new SyntheticScene(activeWidth, activeHeight, new Layer[]{
+                new Layer(0f, 0f, 1f, 1f, 0.25f, TEXTURE, 110, 40, 0.05f),
+                new Layer(0.08f, 0.15f, 0.42f, 0.55f, 2f, TEXT, 150, 90, 0.03f),
+                new Layer(0.12f, 0.65f, 0.4f, 0.85f, 1f, TEXT, 130, 80, 0.02f),
+                new Layer(0.55f, 0.45f, 0.9f, 0.9f, 6f, TEXTURE, 140, 60, 0.015f)},
+                DEFAULT_BLUR_PER_DIOPTER, 1.5f, 0.05f, seed);
+    }
+
+    int getActiveWidth() {
+        return mActiveWidth;
+    }
+
+    int getActiveHeight() {
+        return mActiveHeight;
+    }
+
+    Layer[] getLayers() {
+        return mLayers.clone();
+    }
+
+    /**
+     * The depth of the layer covering most of a region of the active array, in diopters; 0 if no
+     * layer covers it.
+     */
+    @Override
+    public float getFocusDistance(int left, int top, int right, int bottom) {
+        final int samples = 8;
+        int[] counts = new int[mLayers.length];
+        for (int j = 0; j < samples; j++) {
+            float y = (top + (bottom - top) * (j + 0.5f) / samples) / mActiveHeight;
+            for (int i = 0; i < samples; i++) {
+                float x = (left + (right - left) * (i + 0.5f) / samples) / mActiveWidth;
+                int layer = layerAt(x, y);
+                if (layer >= 0) counts[layer]++;
+            }
+        }
+        int best = -1;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0 && (best < 0 || counts[i] >= counts[best])) best = i;
+        }
+        return best >= 0 ? mLayers[best].depth : 0;
+    }
+
+    /**
+     * Renders the Y plane of the frame seen with the lens at {@code focusDistance}.
+     *
+     * @param exposure    Gain on the scene's luma, 1 for a normal exposure
+     * @param frameNumber Picks the noise of the frame
+     */
+    void render(Image image, float focusDistance, float exposure, long frameNumber) {
+        int width = image.width;
+        int height = image.height;
+        prepare(width, height);
+        float[] acc = mAccumulator;
+        Arrays.fill(acc, 0);
+        for (int l = 0; l < mLayers.length; l++) {
+            int[] bounds = mBounds[l];
+            if (bounds[2] <= bounds[0] || bounds[3] <= bounds[1]) continue;
+            float radius = Math.abs(focusDistance - mLayers[l].depth) * mBlurPerDiopter * width;
+            composite(mSharp[l], bounds, radius, width, height, acc);
+        }
+
+        ByteBuffer y = image.y;
+        int rowStride = image.yRowStride;
+        int mask = NOISE_TABLE_SIZE - 1;
+        for (int row = 0; row < height; row++) {
+            int noise = hash((int) frameNumber, row, (int) mSeed);
+            int a = row * width;
+            int i = row * rowStride;
+            for (int x = 0; x < width; x++) {
+                float value = acc[a + x] * exposure;
+                int clean = value <= 0 ? 0 : value >= 255 ? 255 : (int) value;
+                int luma = Math.round(value + mNoiseSigma[clean] * mNoise[(noise + x) & mask]);
+                y.put(i + x, (byte) (luma < 0 ? 0 : luma > 255 ? 255 : luma));
+            }
+        }
+    }
+
+    /**
+     * Renders the layers sharp for images of {@code width x height} and sizes the scratch buffers,
+     * unless that's the size of the previous frame.
+     */
+    private void prepare(int width, int height) {
+        if (width == mWidth && height == mHeight) return;
+        mWidth = width;
+        mHeight = height;
+        mAccumulator = new float[width * height];
+        mRows = new float[width * height];
+        mColumn = new float[height];
+        mAlphaX = new float[width];
+        mAlphaY = new float[height];
+        mOnes = new float[Math.max(width, height)];
+        Arrays.fill(mOnes, 1f);
+
+        // The same crop of the active array as SharpnessEngine.toImageRegion.
+        double cropWidth = mActiveWidth;
+        double cropHeight = mActiveHeight;
+        if ((long) mActiveWidth * height > (long) width * mActiveHeight) {
+            cropWidth = (double) mActiveHeight * width / height;
+        } else {
+            cropHeight = (double) mActiveWidth * height / width;
+        }
+        double cropLeft = (mActiveWidth - cropWidth) / 2;
+        double cropTop = (mActiveHeight - cropHeight) / 2;
+        double scale = width / cropWidth;
+
+        mSharp = new float[mLayers.length][];
+        mBounds = new int[mLayers.length][];
+        for (int l = 0; l < mLayers.length; l++) {
+            Layer layer = mLayers[l];
+            int x0 = clamp((int) Math.round((layer.left * mActiveWidth - cropLeft) * scale), 0, width);
+            int y0 = clamp((int) Math.round((layer.top * mActiveHeight - cropTop) * scale), 0, height);
+            int x1 = clamp((int) Math.round((layer.right * mActiveWidth - cropLeft) * scale), 0, width);
+            int y1 = clamp((int) Math.round((layer.bottom * mActiveHeight - cropTop) * scale), 0, height);
+            mBounds[l] = new int[]{x0, y0, x1, y1};
+            int w = Math.max(0, x1 - x0);
+            float[] sharp = new float[w * Math.max(0, y1 - y0)];
+            for (int y = y0; y < y1; y++) {
+                // Pattern coordinates in units of the active array width.
+                float v = (float) ((cropTop + (y + 0.5) / scale) / mActiveWidth);
+                for (int x = x0; x < x1; x++) {
+                    float u = (float) ((cropLeft + (x + 0.5) / scale) / mActiveWidth);
+                    float value = layer.mean + layer.contrast * pattern(layer, l, u, v);
+                    sharp[(y - y0) * w + x - x0] = Math.max(0, Math.min(255, value));
+                }
+            }
+            mSharp[l] = sharp;
+        }
+    }
+
+    /**
+     * Blurs a layer by {@code radius} pixels and lays it over {@code acc}. Layers are opaque, so
+     * the blurred alpha is the product of the blurred rows and columns of the rectangle.
+     */
+    private void composite(float[] sharp, int[] bounds, float radius, int width, int height, float[] acc) {
+        int x0 = bounds[0], y0 = bounds[1], x1 = bounds[2], y1 = bounds[3];
+        int w = x1 - x0;
+        int reach = (int) Math.ceil(radius) + 1;
+        int ex0 = Math.max(0, x0 - reach), ex1 = Math.min(width, x1 + reach);
+        int ey0 = Math.max(0, y0 - reach), ey1 = Math.min(height, y1 + reach);
+
+        float[] rows = mRows;
+        for (int y = y0; y < y1; y++) {
+            blur(sharp, (y - y0) * w, 1, x0, x1, width, radius, rows, y * width, 1, ex0, ex1);
+        }
+        blur(mOnes, 0, 1, x0, x1, width, radius, mAlphaX, 0, 1, ex0, ex1);
+        blur(mOnes, 0, 1, y0, y1, height, radius, mAlphaY, 0, 1, ey0, ey1);
+        float[] column = mColumn;
+        for (int x = ex0; x < ex1; x++) {
+            blur(rows, y0 * width + x, width, y0, y1, height, radius, column, 0, 1, ey0, ey1);
+            float alphaX = mAlphaX[x];
+            for (int y = ey0; y < ey1; y++) {
+                int i = y * width + x;
+                acc[i] = acc[i] * (1 - alphaX * mAlphaY[y]) + column[y];
+            }
+        }
+    }
+
+    /**
+     * One dimensional box blur of a fractional radius: the values within {@code radius} of a
+     * sample, the two at the fractional ends weighted by the fraction. Reads samples {@code from}
+     * to {@code to} of {@code src}, zero elsewhere, with indices clamped to {@code [0, n)} like
+     * the edge of the image; writes samples {@code outFrom} to {@code outTo} of {@code dst}.
+     */
+    private static void blur(float[] src, int srcOffset, int srcStride, int from, int to, int n, float radius,
+                             float[] dst, int dstOffset, int dstStride, int outFrom, int outTo) {
+        int r = (int) radius;
+        float fraction = radius - r;
+        float norm = 1f / (2 * r + 1 + 2 * fraction);
+        float sum = 0;
+        for (int k = outFrom - r; k <= outFrom + r; k++) sum += sample(src, srcOffset, srcStride, from, to, n, k);
+        for (int x = outFrom; x < outTo; x++) {
+            float ends = sample(src, srcOffset, srcStride, from, to, n, x - r - 1)
+                    + sample(src, srcOffset, srcStride, from, to, n, x + r + 1);
+            dst[dstOffset + x * dstStride] = (sum + fraction * ends) * norm;
+            sum += sample(src, srcOffset, srcStride, from, to, n, x + r + 1)
+                    - sample(src, srcOffset, srcStride, from, to, n, x - r);
+        }
+    }
+
+    private static float sample(float[] src, int offset, int stride, int from, int to, int n, int k) {
+        k = k < 0 ? 0 : k >= n ? n - 1 : k;
+        return k >= from && k < to ? src[offset + (k - from) * stride] : 0;
+    }
+
+    /**
+     * The pattern of a layer at {@code (u, v)}, in units of the active array width, from -1 to 1.
+     */
+    private float pattern(Layer layer, int index, float u, float v) {
+        float size = layer.featureSize;
+        int seed = (int) mSeed * 31 + index;
+        if (layer.pattern == TEXT) {
+            // Lines of 5x7 glyphs, a column and two rows of spacing each, and some spaces.
+            float cellWidth = size * 0.6f;
+            int line = (int) Math.floor(v / size);
+            int cell = (int) Math.floor(u / cellWidth);
+            int gx = (int) ((u / cellWidth - cell) * 6);
+            int gy = (int) ((v / size - line) * 9);
+            if (gx >= 5 || gy >= 7 || (hash(cell, line, seed) & 7) == 0) return 1;
+            return (hash(cell * 64 + gx, line * 64 + gy, seed) & 0xFF) < 100 ? -1 : 1;
+        }
+        // Three octaves of value noise.
+        float value = 0;
+        float amplitude = 0.6f;
+        float frequency = 1 / size;
+        for (int octave = 0; octave < 3; octave++) {
+            value += amplitude * valueNoise(u * frequency, v * frequency, seed + octave);
+            amplitude *= 0.5f;
+            frequency *= 2;
+        }
+        return Math.max(-1, Math.min(1, value / 0.9f));
+    }
+
+    private static float valueNoise(float x, float y, int seed) {
+        int ix = (int) Math.floor(x);
+        int iy = (int) Math.floor(y);
+        float fx = smooth(x - ix);
+        float fy = smooth(y - iy);
+        float a = lattice(ix, iy, seed), b = lattice(ix + 1, iy, seed);
+        float c = lattice(ix, iy + 1, seed), d = lattice(ix + 1, iy + 1, seed);
+        return (a + (b - a) * fx) * (1 - fy) + (c + (d - c) * fx) * fy;
+    }
+
+    private static float smooth(float t) {
+        return t * t * (3 - 2 * t);
+    }
+
+    private static float lattice(int x, int y, int seed) {
+        return (hash(x, y, seed) & 0xFFFF) / 32767.5f - 1;
+    }
+
+    private static int hash(int x, int y, int seed) {
+        int h = x * 0x27D4EB2D ^ y * 0x165667B1 ^ seed * 0x9E3779B9;
+        h ^= h >>> 15;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ h >>> 16;
+    }
+
+    private int layerAt(float x, float y) {
+        for (int l = mLayers.length - 1; l >= 0; l--) {
+            Layer layer = mLayers[l];
+            if (x >= layer.left && x < layer.right && y >= layer.top && y < layer.bottom) return l;
+        }
+        return -1;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+}
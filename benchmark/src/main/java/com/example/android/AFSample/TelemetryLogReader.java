@@ -0,0 +1,293 @@
+package com.example.android.AFSample;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Converts the segment files of a {@link TelemetryLog} to CSV or JSON lines, on a workstation:
+ * <pre>
+ *   adb pull /sdcard/Android/data/com.example.android.AFSample/files/telemetry
+ *   ./gradlew :benchmark:classes
+ *   java -cp benchmark/build/classes/java/main com.example.android.AFSample.TelemetryLogReader [--json] telemetry &gt; telemetry.csv
+ * </pre>
+ * Arguments are segment files or directories of them; segments are read in the order they were
+ * written, records in the order their slots were claimed, which may differ from their time order
+ * by a few records when several threads logged at once. Records that were never completed are
+ * skipped. The CSV has one column for every field of any record type, left empty when a record
+ * doesn't have it; the JSON objects only have the fields of their type.
+ * <p>
+ * {@link #read(List, Visitor)} gives the raw records to other tools, e.g. {@link AfReplay}.
+ */
+class TelemetryLogReader {
+
+    /**
+     * A raw record. Reused for every record of a read.
+     */
+    static final class Record {
+        long segment;
+        int type;
+        long timeNanos;
+        final long[] words = new long[6];
+
+        float lowFloat(int word) {
+            return Float.intBitsToFloat((int) words[word]);
+        }
+
+        float highFloat(int word) {
+            return Float.intBitsToFloat((int) (words[word] >> 32));
+        }
+
+        int low(int word) {
+            return (int) words[word];
+        }
+
+        int high(int word) {
+            return (int) (words[word] >> 32);
+        }
+
+        /**
+         * One of the AF state bytes of a capture result, -1 if unknown.
+         */
+        int stateByte(int index) {
+            int b = (int) (words[4] >> 8 * index & 0xFF);
+            return b == 0xFF ? -1 : b;
+        }
+
+        int regionShort(int index) {
+            return (int) (words[5] >> 16 * index & 0xFFFF);
+        }
+    }
+
+    interface Visitor {
+        void visit(Record record) throws IOException;
+    }
+
+    private static final String[] COLUMNS = {
+            "segment", "type", "time_ns", "timestamp_ns", "frame_number", "af_state", "af_trigger",
+            "lens_state", "focus_distance", "exposure_ns", "iso", "af_left", "af_top", "af_right", "af_bottom",
+            "x", "y", "view_width", "view_height", "action", "cell", "af_mode", "surface", "latch_ns", "draw_ns",
+            "rotation", "active_width", "active_height", "continuous", "software"};
+
+    private final Writer mOut;
+    private final boolean mJson;
+    private final Object[] mRow = new Object[COLUMNS.length];
+
+    TelemetryLogReader(Writer out, boolean json) {
+        mOut = out;
+        mJson = json;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean json = false;
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--json")) {
+                json = true;
+            } else {
+                paths.add(arg);
+            }
+        }
+        List<File> files = findSegments(paths);
+        if (files.isEmpty()) {
+            System.err.println("Usage: TelemetryLogReader [--json] <segment file or directory>...");
+            System.exit(2);
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        final TelemetryLogReader reader = new TelemetryLogReader(out, json);
+        reader.writeHeader();
+        long skipped = read(files, new Visitor() {
+            @Override
+            public void visit(Record record) throws IOException {
+                reader.write(record);
+            }
+        });
+        out.flush();
+        System.err.println(skipped + " incomplete records skipped");
+    }
+
+    /**
+     * Lists the segment files among {@code paths} and in the directories among them, oldest first.
+     */
+    static List<File> findSegments(List<String> paths) {
+        List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path);
+            File[] children = file.isDirectory() ? file.listFiles() : new File[]{file};
+            if (children == null) continue;
+            for (File child : children) {
+                if (TelemetryLog.segmentIndex(child.getName()) >= 0) files.add(child);
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long indexA = TelemetryLog.segmentIndex(a.getName());
+                long indexB = TelemetryLog.segmentIndex(b.getName());
+                return indexA < indexB ? -1 : (indexA == indexB ? 0 : 1);
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Hands every completed record of {@code files} to {@code visitor}, in file and slot order.
+     *
+     * @return The number of records that were never completed
+     */
+    static long read(List<File> files, Visitor visitor) throws IOException {
+        Record record = new Record();
+        long skipped = 0;
+        for (File file : files) {
+            MappedByteBuffer buffer;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.capacity() < TelemetryLog.RECORD_SIZE || buffer.getInt(0) != TelemetryLog.MAGIC) {
+                throw new IOException(file + " is not a telemetry segment");
+            }
+            if (buffer.getInt(4) != TelemetryLog.VERSION || buffer.getInt(8) != TelemetryLog.RECORD_SIZE) {
+                throw new IOException(file + " has version " + buffer.getInt(4) + " and records of "
+                        + buffer.getInt(8) + " bytes");
+            }
+            record.segment = buffer.getLong(16);
+            for (int offset = TelemetryLog.RECORD_SIZE; offset + TelemetryLog.RECORD_SIZE <= buffer.capacity();
+                 offset += TelemetryLog.RECORD_SIZE) {
+                record.type = buffer.getInt(offset);
+                record.timeNanos = buffer.getLong(offset + 8);
+                if (record.type == 0) {
+                    // The rest of a segment that wasn't filled is zero too.
+                    if (record.timeNanos != 0) skipped++;
+                    continue;
+                }
+                for (int i = 0; i < record.words.length; i++) record.words[i] = buffer.getLong(offset + 16 + 8 * i);
+                visitor.visit(record);
+            }
+        }
+        return skipped;
+    }
+
+    void writeHeader() throws IOException {
+        if (mJson) return;
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) mOut.write(',');
+            mOut.write(COLUMNS[i]);
+        }
+        mOut.write('\n');
+    }
+
+    /**
+     * Writes a record as a CSV line or a JSON object.
+     */
+    void write(Record record) throws IOException {
+        Object[] row = mRow;
+        Arrays.fill(row, null);
+        row[0] = record.segment;
+        row[2] = record.timeNanos;
+        long[] words = record.words;
+        switch (record.type) {
+            case TelemetryLog.TYPE_CAPTURE_RESULT:
+                row[1] = "capture_result";
+                row[3] = words[0];
+                row[4] = words[1];
+                row[5] = record.stateByte(0);
+                row[6] = record.stateByte(1);
+                row[7] = record.stateByte(2);
+                row[8] = record.lowFloat(3);
+                row[9] = words[2];
+                row[10] = record.high(3);
+                for (int i = 0; i < 4; i++) row[11 + i] = record.regionShort(i);
+                break;
+            case TelemetryLog.TYPE_TAP:
+                row[1] = "tap";
+                row[15] = record.lowFloat(0);
+                row[16] = record.highFloat(0);
+                row[17] = record.low(1);
+                row[18] = record.high(1);
+                row[19] = record.low(2);
+                row[20] = record.high(2);
+                row[21] = record.low(3);
+                break;
+            case TelemetryLog.TYPE_FRAME:
+                row[1] = "frame";
+                row[3] = words[0];
+                row[23] = words[1];
+                row[24] = words[2];
+                row[22] = record.low(3) == TelemetryLog.SURFACE_GL ? "gl" : "texture_view";
+                break;
+            case TelemetryLog.TYPE_DISPLAY:
+                row[1] = "display";
+                row[25] = record.low(0);
+                row[26] = record.low(1);
+                row[27] = record.low(2);
+                break;
+            case TelemetryLog.TYPE_AF_SWITCHES:
+                row[1] = "af_switches";
+                row[28] = words[0] != 0;
+                row[29] = words[1] != 0;
+                break;
+            case TelemetryLog.TYPE_SESSION_CONFIGURED:
+                row[1] = "session_configured";
+                row[21] = record.low(0);
+                break;
+            default:
+                row[1] = "unknown_" + record.type;
+                break;
+        }
+        if (mJson) {
+            writeJson(row);
+        } else {
+            writeCsv(row);
+        }
+    }
+
+    private void writeCsv(Object[] row) throws IOException {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) mOut.write(',');
+            if (row[i] != null && !isNaN(row[i])) mOut.write(String.valueOf(row[i]));
+        }
+        mOut.write('\n');
+    }
+
+    private void writeJson(Object[] row) throws IOException {
+        mOut.write('{');
+        boolean first = true;
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] == null) continue;
+            if (!first) mOut.write(',');
+            first = false;
+            mOut.write('"');
+            mOut.write(COLUMNS[i]);
+            mOut.write("\":");
+            if (row[i] instanceof String) {
+                mOut.write('"');
+                mOut.write((String) row[i]);
+                mOut.write('"');
+            } else {
+                // JSON has no NaN, e.g. the focus distance of a result without one.
+                mOut.write(isNaN(row[i]) ? "null" : String.valueOf(row[i]));
+            }
+        }
+        mOut.write("}\n");
+    }
+
+    private static boolean isNaN(Object value) {
+        return value instanceof Float && ((Float) value).isNaN();
+    }
+}
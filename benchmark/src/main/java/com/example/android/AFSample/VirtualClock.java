@@ -0,0 +1,115 @@
+package com.example.android.AFSample;
+
+import java.util.PriorityQueue;
+
+/**
+ * A single threaded event loop on simulated time, standing in for the camera {@code Handler} and
+ * the clocks when the AF logic runs off device.
+ * <p>
+ * Events run in time order, events of the same time in the order they were posted, and time jumps
+ * straight to the next event, so a session replays deterministically and as fast as the CPU
+ * allows. As an {@link AfCommandScheduler.Dispatcher} it runs the scheduler's flushes, as a
+ * {@link SimulatedCamera.EventLoop} the simulated camera.
+ * <p>
+ * This class is not thread safe.
+ */
+class VirtualClock implements AfCommandScheduler.Dispatcher, SimulatedCamera.EventLoop {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static final class Event implements Comparable<Event> {
+        final long timeNanos;
+        final long sequence;
+        final Runnable runnable;
+
+        Event(long timeNanos, long sequence, Runnable runnable) {
+            this.timeNanos = timeNanos;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (timeNanos != other.timeNanos) return timeNanos < other.timeNanos ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+    private long mNowNanos;
+    private long mSequence;
+    private long mExecuted;
+
+    VirtualClock(long startNanos) {
+        mNowNanos = startNanos;
+    }
+
+    @Override
+    public long nanoTime() {
+        return mNowNanos;
+    }
+
+    /**
+     * Runs {@code runnable} {@code delayNanos} from now.
+     */
+    @Override
+    public void post(Runnable runnable, long delayNanos) {
+        postAt(runnable, mNowNanos + Math.max(0, delayNanos));
+    }
+
+    /**
+     * Runs {@code runnable} at {@code timeNanos}, or now if that has passed.
+     */
+    void postAt(Runnable runnable, long timeNanos) {
+        mEvents.add(new Event(Math.max(mNowNanos, timeNanos), mSequence++, runnable));
+    }
+
+    @Override
+    public void dispatch(Runnable runnable, long delayMillis) {
+        post(runnable, delayMillis * NANOS_PER_MILLI);
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return mNowNanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Runs the next event, advancing the time to it.
+     *
+     * @return False if there are no events left
+     */
+    boolean runNext() {
+        Event event = mEvents.poll();
+        if (event == null) return false;
+        mNowNanos = event.timeNanos;
+        mExecuted++;
+        event.runnable.run();
+        return true;
+    }
+
+    /**
+     * Runs the events up to {@code timeNanos} and advances the time to it.
+     */
+    void runUntil(long timeNanos) {
+        while (!mEvents.isEmpty() && mEvents.peek().timeNanos <= timeNanos) runNext();
+        mNowNanos = Math.max(mNowNanos, timeNanos);
+    }
+
+    /**
+     * Runs events until there are none left, including the ones they post.
+     */
+    void runAll() {
+        while (runNext()) {
+            // Keep going.
+        }
+    }
+
+    long getExecutedCount() {
+        return mExecuted;
+    }
+
+    int getPendingCount() {
+        return mEvents.size();
+    }
+}
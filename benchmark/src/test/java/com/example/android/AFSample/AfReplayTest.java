@@ -0,0 +1,155 @@
+package com.example.android.AFSample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays scripted sessions, laid out as {@link TelemetryLog} records, and checks what
+ * {@link AfControlPath} submitted to the stand-in session.
+ */
+public class AfReplayTest {
+
+    private static final long MS = 1000000L;
+    private static final long START_NANOS = 1000 * MS;
+    private static final long FRAME_NANOS = 33 * MS;
+
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1440;
+    private static final float[] CENTER = {540, 720};
+    private static final float[] CORNER = {100, 100};
+
+    private final List<long[]> mRecords = new ArrayList<>();
+    private AfReplay mReplay;
+
+    @Before
+    public void setUp() {
+        record(0, TelemetryLog.TYPE_DISPLAY, 0, 4000, 3000);
+        record(0, TelemetryLog.TYPE_SESSION_CONFIGURED, AfControlPath.AF_MODE_AUTO);
+    }
+
+    @Test
+    public void tapSendsOneStart() {
+        tap(200, CENTER);
+        replay(1000);
+
+        assertScheduler(1, 1, 0);
+        assertTriggers(1, 0);
+        // The request of the session, then the one with the regions.
+        assertEquals(2, mReplay.getSession().getRepeatingRequestCount());
+    }
+
+    @Test
+    public void doubleTapTriggersTwice() {
+        tap(200, CENTER);
+        tap(350, CENTER);
+        replay(1000);
+
+        // The second tap doesn't change the request, but a START is always sent.
+        assertScheduler(2, 2, 0);
+        assertTriggers(2, 0);
+    }
+
+    @Test
+    public void tapsWithinAFrameAreCoalesced() {
+        // The first tap is submitted at once, the next two wait for the frame interval and only
+        // the last one is submitted.
+        tap(200, CENTER);
+        tap(205, CORNER);
+        tap(220, CENTER);
+        replay(1000);
+
+        assertScheduler(3, 2, 1);
+        assertTriggers(2, 0);
+    }
+
+    @Test
+    public void doubleTapWithinAFrameKeepsItsStart() {
+        // The second START waits for the frame interval; nothing in between may drop it.
+        tap(200, CENTER);
+        tap(210, CENTER);
+        replay(1000);
+
+        assertScheduler(2, 2, 0);
+        assertTriggers(2, 0);
+    }
+
+    @Test
+    public void continuousTapsCancelOnlyWhenTheRegionChanges() {
+        record(100, TelemetryLog.TYPE_AF_SWITCHES, 1, 0);
+        tap(300, CENTER);
+        tap(500, CENTER);
+        tap(700, CORNER);
+        replay(1000);
+
+        // The switch and the first and last taps; the second one changes nothing.
+        assertScheduler(4, 3, 1);
+        assertTriggers(0, 3);
+        assertEquals(AfControlPath.AF_MODE_CONTINUOUS_VIDEO, mReplay.getControlPath().getAfMode());
+    }
+
+    @Test
+    public void tapBeforeTheSessionIsSubmittedOnceItStarts() {
+        mRecords.clear();
+        record(0, TelemetryLog.TYPE_DISPLAY, 0, 4000, 3000);
+        tap(50, CENTER);
+        record(300, TelemetryLog.TYPE_SESSION_CONFIGURED, AfControlPath.AF_MODE_AUTO);
+        replay(1000);
+
+        assertScheduler(1, 1, 0);
+        assertTriggers(1, 0);
+    }
+
+    private void record(long timeMs, int type, long... words) {
+        long[] record = new long[2 + 6];
+        record[0] = START_NANOS + timeMs * MS;
+        record[1] = type;
+        System.arraycopy(words, 0, record, 2, words.length);
+        mRecords.add(record);
+    }
+
+    private void tap(long timeMs, float[] position) {
+        record(timeMs, TelemetryLog.TYPE_TAP,
+                pack(Float.floatToRawIntBits(position[0]), Float.floatToRawIntBits(position[1])),
+                pack(VIEW_WIDTH, VIEW_HEIGHT), 0, AfControlPath.AF_MODE_AUTO);
+    }
+
+    /**
+     * Adds a capture result every frame from the first session on, then replays everything.
+     */
+    private void replay(long endMs) {
+        long sessionNanos = Long.MAX_VALUE;
+        for (long[] record : mRecords) {
+            if (record[1] == TelemetryLog.TYPE_SESSION_CONFIGURED) sessionNanos = Math.min(sessionNanos, record[0]);
+        }
+        long frameNumber = 0;
+        for (long t = sessionNanos + FRAME_NANOS; t <= START_NANOS + endMs * MS; t += FRAME_NANOS) {
+            mRecords.add(new long[]{t, TelemetryLog.TYPE_CAPTURE_RESULT, t, frameNumber++, 0, 0,
+                    AfController.AF_STATE_INACTIVE | (long) AfController.LENS_STATE_STATIONARY << 16, 0});
+        }
+        mReplay = new AfReplay(START_NANOS, AfReplay.DEFAULT_PIPELINE_NANOS);
+        for (long[] record : mRecords) mReplay.post(record);
+        mReplay.run();
+    }
+
+    private void assertScheduler(long requested, long submitted, long coalesced) {
+        AfCommandScheduler<int[]> scheduler = mReplay.getControlPath().getScheduler();
+        assertEquals("requested", requested, scheduler.getRequestedCount());
+        assertEquals("submitted", submitted, scheduler.getSubmittedCount());
+        assertEquals("coalesced", coalesced, scheduler.getCoalescedCount());
+    }
+
+    private void assertTriggers(long start, long cancel) {
+        AfReplay.Session session = mReplay.getSession();
+        assertEquals("start", start, session.getTriggerCount(AfController.AF_TRIGGER_START));
+        assertEquals("cancel", cancel, session.getTriggerCount(AfController.AF_TRIGGER_CANCEL));
+    }
+
+    private static long pack(int low, int high) {
+        return (low & 0xFFFFFFFFL) | (long) high << 32;
+    }
+}